@@ -0,0 +1,47 @@
+package io.sesam.odata.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.sesam.odata.infrastructure.AppStartListener;
+import io.sesam.odata.infrastructure.Metrics;
+import io.sesam.odata.infrastructure.SchemaRefresher;
+import java.io.IOException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Service administration endpoints mapped to admin/* HTTP requests
+ * <ul><li>GET admin/stats - runtime statistics as JSON</li>
+ * <li>POST admin/refresh - starts asynchronous schema refresh</li></ul>
+ */
+public class AdminController extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Override
+    protected void doGet(final HttpServletRequest req, final HttpServletResponse resp)
+            throws ServletException, IOException {
+        if (!"/stats".equals(req.getPathInfo())) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        MAPPER.writerWithDefaultPrettyPrinter().writeValue(resp.getOutputStream(), Metrics.snapshot());
+    }
+
+    @Override
+    protected void doPost(final HttpServletRequest req, final HttpServletResponse resp)
+            throws ServletException, IOException {
+        SchemaRefresher refresher = (SchemaRefresher) getServletContext()
+                .getAttribute(AppStartListener.SCHEMA_REFRESHER);
+        if (!"/refresh".equals(req.getPathInfo()) || null == refresher) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        refresher.requestRefresh();
+        resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+    }
+}
@@ -0,0 +1,582 @@
+package io.sesam.odata.controller;
+
+import io.sesam.odata.infrastructure.Metrics;
+import io.sesam.odata.infrastructure.Settings;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compresses responses with gzip or deflate as negotiated by Accept-Encoding. Response is compressed while it is
+ * written, only first bytes up to minimal size are held back to decide if it is worth compressing, so smaller
+ * responses, responses without body (304, 204) and responses already encoded are sent as is.
+ * <p>
+ * Compression is finished when the filter chain returns, or in async mode when the response output stream is
+ * closed. Native zlib memory is released also when the response is aborted.</p>
+ */
+public class CompressionFilter implements Filter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompressionFilter.class);
+
+    /**
+     * Env variable to switch response compression off
+     */
+    public static final String COMPRESSION = "SESAM_COMPRESSION";
+    /**
+     * Min response size in bytes to compress
+     */
+    public static final String MIN_SIZE = "SESAM_COMPRESSION_MIN_SIZE";
+    /**
+     * Compression level from 1 (fastest) to 9 (smallest)
+     */
+    public static final String LEVEL = "SESAM_COMPRESSION_LEVEL";
+
+    private static final String GZIP = "gzip";
+    private static final String DEFLATE = "deflate";
+
+    private boolean enabled;
+    private int minSize;
+    private int level;
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong uncompressed = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong cpuNanos = new AtomicLong();
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+        this.enabled = Settings.getBoolean(COMPRESSION, true);
+        this.minSize = Math.max(1, Settings.getInt(MIN_SIZE, 1024));
+        this.level = Math.min(Deflater.BEST_COMPRESSION, Math.max(Deflater.BEST_SPEED, Settings.getInt(LEVEL, 6)));
+        if (this.enabled) {
+            Metrics.register("compression", this::getStats);
+        }
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        if (!this.enabled || !(request instanceof HttpServletRequest)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+        String encoding = negotiate(httpRequest.getHeader("Accept-Encoding"));
+        if (null == encoding || "HEAD".equals(httpRequest.getMethod())) {
+            chain.doFilter(request, response);
+            return;
+        }
+        httpResponse.addHeader("Vary", "Accept-Encoding");
+        CompressingResponse compressing = new CompressingResponse(httpResponse, encoding);
+        boolean completed = false;
+        try {
+            chain.doFilter(request, compressing);
+            completed = true;
+        } finally {
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new Releaser(compressing));
+            } else if (completed) {
+                compressing.finish();
+            } else {
+                compressing.abort();
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        //nothing to release
+    }
+
+    public Map<String, Object> getStats() {
+        long in = this.bytesIn.get();
+        long out = this.bytesOut.get();
+        long responses = this.compressed.get();
+        Map<String, Object> stats = new LinkedHashMap<>(8);
+        stats.put("compressed", responses);
+        stats.put("uncompressed", this.uncompressed.get());
+        stats.put("bytesIn", in);
+        stats.put("bytesOut", out);
+        stats.put("ratio", out == 0 ? 0 : (double) in / out);
+        stats.put("cpuMillis", TimeUnit.NANOSECONDS.toMillis(this.cpuNanos.get()));
+        stats.put("cpuMicrosPerResponse", responses == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(this.cpuNanos.get())
+                / responses);
+        return stats;
+    }
+
+    /**
+     * Picks encoding with the highest quality, gzip wins a tie
+     *
+     * @param acceptEncoding Accept-Encoding header
+     * @return gzip, deflate or null if neither is accepted
+     */
+    static String negotiate(String acceptEncoding) {
+        if (null == acceptEncoding) {
+            return null;
+        }
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase(Locale.ROOT);
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException ex) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (GZIP.equals(name) || "x-gzip".equals(name)) {
+                gzip = quality;
+            } else if (DEFLATE.equals(name)) {
+                deflate = quality;
+            } else if ("*".equals(name)) {
+                any = quality;
+            }
+        }
+        gzip = gzip < 0 ? any : gzip;
+        deflate = deflate < 0 ? any : deflate;
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    private static boolean isCompressible(String contentType) {
+        if (null == contentType) {
+            return true;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        return type.contains("json") || type.contains("xml") || type.startsWith("text/")
+                || type.startsWith("multipart/");
+    }
+
+    /**
+     * Response which passes body through {@link CompressingStream}, content length is dropped if body gets compressed
+     */
+    private final class CompressingResponse extends HttpServletResponseWrapper {
+
+        private final String encoding;
+        private CompressingStream stream;
+        private PrintWriter writer;
+        private long contentLength = -1;
+
+        CompressingResponse(HttpServletResponse response, String encoding) {
+            super(response);
+            this.encoding = encoding;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (null == this.stream) {
+                this.stream = new CompressingStream(this);
+            }
+            return this.stream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (null == this.writer) {
+                this.writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+            }
+            return this.writer;
+        }
+
+        @Override
+        public void setContentLength(int length) {
+            setContentLengthLong(length);
+        }
+
+        @Override
+        public void setContentLengthLong(long length) {
+            if (null != this.stream && this.stream.encoder != null) {
+                return;
+            }
+            this.contentLength = length;
+            if (length < CompressionFilter.this.minSize) {
+                //known to be small, no need to hold anything back
+                super.setContentLengthLong(length);
+            }
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                setContentLengthLong(parseLength(value));
+            } else {
+                super.setHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                setContentLengthLong(parseLength(value));
+            } else {
+                super.addHeader(name, value);
+            }
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (null != this.writer) {
+                this.writer.flush();
+            }
+            if (null != this.stream) {
+                this.stream.flush();
+            }
+        }
+
+        @Override
+        public void resetBuffer() {
+            super.resetBuffer();
+            if (null != this.stream) {
+                this.stream.restart(true);
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            this.contentLength = -1;
+            //headers are cleared, so compression is decided again
+            addHeader("Vary", "Accept-Encoding");
+            if (null != this.stream) {
+                this.stream.restart(false);
+            }
+        }
+
+        boolean shouldCompress() {
+            int status = getStatus();
+            return status != HttpServletResponse.SC_NOT_MODIFIED && status != HttpServletResponse.SC_NO_CONTENT
+                    && (this.contentLength < 0 || this.contentLength >= CompressionFilter.this.minSize)
+                    && null == getHeader("Content-Encoding") && isCompressible(getContentType());
+        }
+
+        void finish() throws IOException {
+            if (null != this.writer) {
+                this.writer.close();
+            } else if (null != this.stream) {
+                this.stream.close();
+            }
+        }
+
+        /**
+         * Releases compressor of not finished response
+         */
+        void abort() {
+            if (null != this.stream) {
+                this.stream.release();
+            }
+        }
+
+        private long parseLength(String value) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException ex) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Holds back first bytes up to min size, then either writes them as is or starts compression
+     */
+    private final class CompressingStream extends ServletOutputStream {
+
+        private final CompressingResponse response;
+        private final byte[] head = new byte[CompressionFilter.this.minSize];
+        private int count;
+        private ServletOutputStream out;
+        private Encoder encoder;
+        private boolean closed;
+
+        CompressingStream(CompressingResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (this.closed) {
+                throw new IOException("Stream is closed");
+            }
+            if (null == this.out && this.count + len <= this.head.length) {
+                System.arraycopy(b, off, this.head, this.count, len);
+                this.count += len;
+                return;
+            }
+            if (null == this.out) {
+                decide(true);
+            }
+            if (null != this.encoder) {
+                this.encoder.write(b, off, len);
+            } else {
+                this.out.write(b, off, len);
+            }
+        }
+
+        /**
+         * Called once held back bytes are to be written, body is compressed if it reaches min size
+         *
+         * @param overflow true if more than held back bytes is being written
+         */
+        private void decide(boolean overflow) throws IOException {
+            HttpServletResponse raw = (HttpServletResponse) this.response.getResponse();
+            boolean large = overflow || this.count == this.head.length
+                    || this.response.contentLength >= this.head.length;
+            if (large && this.response.shouldCompress()) {
+                raw.setHeader("Content-Encoding", this.response.encoding);
+                this.out = raw.getOutputStream();
+                this.encoder = new Encoder(this.out, GZIP.equals(this.response.encoding),
+                        CompressionFilter.this.level);
+                this.encoder.write(this.head, 0, this.count);
+            } else {
+                if (!large && this.response.contentLength < 0) {
+                    raw.setContentLength(this.count);
+                } else if (this.response.contentLength >= this.head.length) {
+                    raw.setContentLengthLong(this.response.contentLength);
+                }
+                this.out = raw.getOutputStream();
+                this.out.write(this.head, 0, this.count);
+                CompressionFilter.this.uncompressed.incrementAndGet();
+            }
+            this.count = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            //held back bytes are kept until min size is reached or stream is closed
+            if (null == this.out) {
+                return;
+            }
+            if (null != this.encoder) {
+                this.encoder.flush();
+            }
+            this.out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            if (null == this.out) {
+                if (this.count == 0 && this.response.contentLength < 0) {
+                    //nothing written, e.g. 304 or error sent by container
+                    return;
+                }
+                decide(false);
+            }
+            if (null != this.encoder) {
+                try {
+                    this.encoder.finish();
+                } finally {
+                    this.encoder.end();
+                }
+                CompressionFilter.this.compressed.incrementAndGet();
+                CompressionFilter.this.bytesIn.addAndGet(this.encoder.bytesIn);
+                CompressionFilter.this.bytesOut.addAndGet(this.encoder.bytesOut);
+                CompressionFilter.this.cpuNanos.addAndGet(this.encoder.nanos);
+                LOGGER.debug("Compressed {} bytes to {} in {} us", this.encoder.bytesIn, this.encoder.bytesOut,
+                        TimeUnit.NANOSECONDS.toMicros(this.encoder.nanos));
+            }
+            this.out.close();
+        }
+
+        /**
+         * Called after response buffer was cleared, nothing written so far reaches the client
+         *
+         * @param keepEncoding true if headers were kept, compressed response then starts again with new encoder
+         */
+        void restart(boolean keepEncoding) {
+            this.count = 0;
+            if (null == this.encoder) {
+                return;
+            }
+            this.encoder.end();
+            if (keepEncoding) {
+                try {
+                    this.encoder = new Encoder(this.out, GZIP.equals(this.response.encoding),
+                            CompressionFilter.this.level);
+                } catch (IOException ex) {
+                    throw new IllegalStateException("Couldn't restart compression", ex);
+                }
+            } else {
+                this.encoder = null;
+                this.out = null;
+            }
+        }
+
+        void release() {
+            if (null != this.encoder) {
+                this.encoder.end();
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            return null == this.out || this.out.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            try {
+                this.response.getResponse().getOutputStream().setWriteListener(writeListener);
+            } catch (IOException ex) {
+                throw new IllegalStateException("Output stream is not available", ex);
+            }
+        }
+    }
+
+    /**
+     * Releases compressor when async response is done, finished or not
+     */
+    private static final class Releaser implements AsyncListener {
+
+        private final CompressingResponse response;
+
+        Releaser(CompressingResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            this.response.abort();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            this.response.abort();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            this.response.abort();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            //still the same response
+        }
+    }
+
+    /**
+     * Deflater writing gzip or zlib (HTTP deflate) format, time spent in compression is measured separately from
+     * writing to the client
+     */
+    private static final class Encoder {
+
+        private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        private final OutputStream out;
+        private final Deflater deflater;
+        private final CRC32 crc;
+        private final byte[] buffer = new byte[8192];
+        private long bytesIn;
+        private long bytesOut;
+        private long nanos;
+
+        Encoder(OutputStream out, boolean gzip, int level) throws IOException {
+            this.out = out;
+            this.deflater = new Deflater(level, gzip);
+            this.crc = gzip ? new CRC32() : null;
+            if (gzip) {
+                out.write(GZIP_HEADER);
+                this.bytesOut += GZIP_HEADER.length;
+            }
+        }
+
+        void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            if (null != this.crc) {
+                this.crc.update(b, off, len);
+            }
+            this.bytesIn += len;
+            this.deflater.setInput(b, off, len);
+            while (!this.deflater.needsInput()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+        }
+
+        void flush() throws IOException {
+            while (deflate(Deflater.SYNC_FLUSH) == this.buffer.length) {
+                //output buffer was full, more to flush
+            }
+        }
+
+        void finish() throws IOException {
+            this.deflater.finish();
+            while (!this.deflater.finished()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+            if (null != this.crc) {
+                byte[] trailer = new byte[8];
+                writeInt(trailer, 0, this.crc.getValue());
+                writeInt(trailer, 4, this.bytesIn);
+                this.out.write(trailer);
+                this.bytesOut += trailer.length;
+            }
+        }
+
+        /**
+         * Releases native zlib memory, may be called more than once
+         */
+        void end() {
+            this.deflater.end();
+        }
+
+        private int deflate(int flush) throws IOException {
+            long started = System.nanoTime();
+            int length = this.deflater.deflate(this.buffer, 0, this.buffer.length, flush);
+            this.nanos += System.nanoTime() - started;
+            if (length > 0) {
+                this.out.write(this.buffer, 0, length);
+                this.bytesOut += length;
+            }
+            return length;
+        }
+
+        private static void writeInt(byte[] target, int offset, long value) {
+            for (int i = 0; i < 4; i++) {
+                target[offset + i] = (byte) (value >>> (8 * i));
+            }
+        }
+    }
+}
@@ -1,18 +1,17 @@
 package io.sesam.odata.controller;
 
+import io.sesam.odata.edm.EdmSchema;
 import io.sesam.odata.edm.SesamEdmProvider;
-import io.sesam.odata.service.ServiceProcessor;
-import io.sesam.odata.service.SesamEntityCollectionProcessor;
-import io.sesam.odata.service.SesamEntityProcessor;
+import io.sesam.odata.infrastructure.AppStartListener;
+import io.sesam.odata.infrastructure.RequestExecutor;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.apache.olingo.server.api.OData;
 import org.apache.olingo.server.api.ODataHttpHandler;
-import org.apache.olingo.server.api.ServiceMetadata;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,24 +25,97 @@ public class SesamOdataController extends HttpServlet {
     private static final long serialVersionUID = 1L;
     private static final Logger LOGGER = LoggerFactory.getLogger(SesamOdataController.class);
 
+    private final transient AtomicReference<SesamServiceStack> serviceStack = new AtomicReference<>();
+
     @Override
     protected void service(final HttpServletRequest req, final HttpServletResponse resp)
             throws ServletException, IOException {
+        RequestExecutor executor = (RequestExecutor) getServletContext()
+                .getAttribute(AppStartListener.REQUEST_EXECUTOR);
+        if (null == executor || !req.isAsyncSupported()) {
+            try {
+                process(req, resp);
+            } catch (RuntimeException e) {
+                LOGGER.error("Server Error occurred in SesamOdataController", e);
+                throw new ServletException(e);
+            }
+            return;
+        }
+
+        //async mode: container thread is released, request is processed by worker
+        //request and response are passed on, so wrappers of filters stay in place
+        AsyncContext async = req.startAsync(req, resp);
+        async.setTimeout(0);
+        boolean queued = executor.submit(() -> {
+            try {
+                process(req, resp);
+                //filters finish their output (i.e. compression) when stream is closed
+                resp.getOutputStream().close();
+            } catch (RuntimeException e) {
+                LOGGER.error("Server Error occurred in SesamOdataController", e);
+                sendError(resp, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            } catch (IOException e) {
+                LOGGER.debug("Couldn't complete response: {}", e.getMessage());
+            } finally {
+                async.complete();
+            }
+        }, () -> refuse(async));
+        if (!queued) {
+            refuse(async);
+        }
+    }
+
+    private void process(HttpServletRequest req, HttpServletResponse resp) {
+        LOGGER.debug("Serving request {} from {}", req.getRequestURI(), req.getRemoteAddr());
+
+        ODataHttpHandler handler = getServiceStack().createHandler(getServletContext());
+        handler.process(req, resp);
+    }
+
+    /**
+     * Answers async request which couldn't be processed in time with 503
+     */
+    private static void refuse(AsyncContext async) {
         try {
-            LOGGER.debug("Serving request {} from {}", req.getRequestURI(), req.getRemoteAddr());
-            
-            OData odata = OData.newInstance();
-            ServiceMetadata edm = odata.createServiceMetadata(new SesamEdmProvider(), new ArrayList<>());
-            ODataHttpHandler handler = odata.createHandler(edm);
-            
-            handler.register(new SesamEntityCollectionProcessor(getServletContext()));
-            handler.register(new SesamEntityProcessor(getServletContext()));
-            handler.register(new ServiceProcessor());
-            
-            handler.process(req, resp);
-        } catch (RuntimeException e) {
-            LOGGER.error("Server Error occurred in SesamOdataController", e);
-            throw new ServletException(e);
+            HttpServletResponse resp = (HttpServletResponse) async.getResponse();
+            resp.setHeader("Retry-After", "1");
+            sendError(resp, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            async.complete();
+        } catch (IllegalStateException ex) {
+            //request was already completed by the container, i.e. on shutdown
+            LOGGER.debug("Couldn't refuse request: {}", ex.getMessage());
+        }
+    }
+
+    private static void sendError(HttpServletResponse resp, int status) {
+        if (resp.isCommitted()) {
+            return;
+        }
+        try {
+            resp.sendError(status);
+        } catch (IOException ex) {
+            LOGGER.debug("Couldn't send error {}: {}", status, ex.getMessage());
+        }
+    }
+
+    /**
+     * Returns service stack for current schema version, stack is rebuilt and atomically replaced only when schema has
+     * been changed since last build
+     *
+     * @return current service stack
+     */
+    SesamServiceStack getServiceStack() {
+        SesamServiceStack stack = this.serviceStack.get();
+        EdmSchema schema = SesamEdmProvider.getSchema();
+        while (stack == null || stack.getSchema() != schema) {
+            SesamServiceStack freshStack = new SesamServiceStack(schema);
+            if (this.serviceStack.compareAndSet(stack, freshStack)) {
+                LOGGER.info("OData service stack built for schema version {}", schema.getVersion());
+                return freshStack;
+            }
+            stack = this.serviceStack.get();
+            schema = SesamEdmProvider.getSchema();
         }
+        return stack;
     }
 }
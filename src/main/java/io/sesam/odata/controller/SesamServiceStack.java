@@ -0,0 +1,81 @@
+package io.sesam.odata.controller;
+
+import io.sesam.odata.edm.EdmSchema;
+import io.sesam.odata.edm.SchemaETagSupport;
+import io.sesam.odata.edm.SesamEdmProvider;
+import io.sesam.odata.infrastructure.AppStartListener;
+import io.sesam.odata.infrastructure.BatchExecutor;
+import io.sesam.odata.service.ServiceDocuments;
+import io.sesam.odata.service.ServiceProcessor;
+import io.sesam.odata.service.SesamBatchProcessor;
+import io.sesam.odata.service.SesamEntityCollectionProcessor;
+import io.sesam.odata.service.SesamEntityProcessor;
+import java.util.ArrayList;
+import javax.servlet.ServletContext;
+import org.apache.olingo.server.api.OData;
+import org.apache.olingo.server.api.ODataHttpHandler;
+import org.apache.olingo.server.api.ServiceMetadata;
+
+/**
+ * Prebuilt OData service stack for one schema version. OData instance and service metadata (with its lazily filled EDM
+ * caches) are thread safe and shared by all requests, so EDM is built only once per schema version. Processors are bound
+ * to the same schema version, so a request is served by the version it started with even if schema is refreshed.
+ * <p>
+ * Olingo handler keeps per request state (parsed uri info, last exception), so it is not shareable between threads and
+ * is created for every request from the shared metadata, which is cheap.</p>
+ * <p>
+ * Metadata and service documents are serialized once per version and validated by schema version ETag.</p>
+ */
+public final class SesamServiceStack {
+
+    private final EdmSchema schema;
+    private final OData odata;
+    private final ServiceMetadata serviceMetadata;
+    private final ServiceDocuments documents;
+
+    SesamServiceStack(EdmSchema schema) {
+        this.schema = schema;
+        this.odata = OData.newInstance();
+        this.serviceMetadata = this.odata.createServiceMetadata(new SesamEdmProvider(schema), new ArrayList<>(),
+                new SchemaETagSupport(schema));
+        this.documents = new ServiceDocuments(this.odata, this.serviceMetadata);
+    }
+
+    /**
+     * Creates request handler with all Sesam processors registered
+     *
+     * @param servletContext
+     * @return handler ready to process one request
+     */
+    public ODataHttpHandler createHandler(ServletContext servletContext) {
+        ODataHttpHandler handler = createPartHandler(servletContext);
+        BatchExecutor batchExecutor = (BatchExecutor) servletContext.getAttribute(AppStartListener.BATCH_EXECUTOR);
+        if (null != batchExecutor) {
+            handler.register(new SesamBatchProcessor(batchExecutor, () -> createPartHandler(servletContext)));
+        }
+        return handler;
+    }
+
+    /**
+     * Creates handler without batch processor, used for parts of a batch request
+     */
+    private ODataHttpHandler createPartHandler(ServletContext servletContext) {
+        ODataHttpHandler handler = this.odata.createHandler(this.serviceMetadata);
+        handler.register(new SesamEntityCollectionProcessor(servletContext, this.schema));
+        handler.register(new SesamEntityProcessor(servletContext, this.schema));
+        handler.register(new ServiceProcessor(this.documents));
+        return handler;
+    }
+
+    public EdmSchema getSchema() {
+        return schema;
+    }
+
+    public OData getOdata() {
+        return odata;
+    }
+
+    public ServiceMetadata getServiceMetadata() {
+        return serviceMetadata;
+    }
+}
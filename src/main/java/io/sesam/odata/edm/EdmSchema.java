@@ -0,0 +1,109 @@
+package io.sesam.odata.edm;
+
+import io.sesam.odata.infrastructure.models.Dataset;
+import io.sesam.odata.infrastructure.models.PipeMetadata;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable version of registered EDM types. A new instance is built for every change and published as a whole, so a
+ * request keeps consistent view of the schema it started with.
+ */
+public final class EdmSchema {
+
+    private final long version;
+    private final Map<String, List<PipeMetadata>> types;
+    private final Map<String, Dataset> datasets;
+    private final Map<String, EntityMapper> mappers;
+
+    /**
+     *
+     * @param version schema version
+     * @param types EDM types by name
+     * @param datasets datasets of EDM types by type name
+     */
+    EdmSchema(long version, Map<String, List<PipeMetadata>> types, Map<String, Dataset> datasets) {
+        this(version, types, datasets, Collections.emptyMap());
+    }
+
+    /**
+     *
+     * @param version schema version
+     * @param types EDM types by name
+     * @param datasets datasets of EDM types by type name
+     * @param knownMappers already compiled mappers which may be reused if their type didn't change
+     */
+    EdmSchema(long version, Map<String, List<PipeMetadata>> types, Map<String, Dataset> datasets,
+            Map<String, EntityMapper> knownMappers) {
+        this.version = version;
+        Map<String, List<PipeMetadata>> typesCopy = new HashMap<>(types.size() * 2);
+        Map<String, EntityMapper> mappersCopy = new HashMap<>(types.size() * 2);
+        types.forEach((name, metadata) -> {
+            List<PipeMetadata> metadataCopy = Collections.unmodifiableList(metadata);
+            typesCopy.put(name, metadataCopy);
+            EntityMapper mapper = knownMappers.get(name);
+            mappersCopy.put(name, null != mapper && mapper.isCompiledFrom(metadata) ? mapper
+                    : new EntityMapper(metadataCopy));
+        });
+        this.types = Collections.unmodifiableMap(typesCopy);
+        this.datasets = Collections.unmodifiableMap(new HashMap<>(datasets));
+        this.mappers = Collections.unmodifiableMap(mappersCopy);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     *
+     * @return unmodifiable map of EDM types
+     */
+    public Map<String, List<PipeMetadata>> getTypes() {
+        return types;
+    }
+
+    /**
+     *
+     * @return unmodifiable map of datasets by type name
+     */
+    public Map<String, Dataset> getDatasets() {
+        return datasets;
+    }
+
+    /**
+     *
+     * @return unmodifiable map of property mappers by type name
+     */
+    Map<String, EntityMapper> getMappers() {
+        return mappers;
+    }
+
+    /**
+     *
+     * @param name type name
+     * @return true if type registered in this schema
+     */
+    public boolean contains(String name) {
+        return this.types.containsKey(name);
+    }
+
+    /**
+     *
+     * @param name type name
+     * @return dataset of given type or null
+     */
+    public Dataset getDataset(String name) {
+        return this.datasets.get(name);
+    }
+
+    /**
+     *
+     * @param name type name
+     * @return property mapper of given type or null
+     */
+    public EntityMapper getEntityMapper(String name) {
+        return this.mappers.get(name);
+    }
+}
@@ -0,0 +1,323 @@
+package io.sesam.odata.edm;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.sesam.odata.infrastructure.models.PipeMetadata;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.Property;
+import org.apache.olingo.commons.api.data.ValueType;
+
+/**
+ * Mapping plan from Sesam entity to OData entity properties, compiled once per registered EDM type.
+ * <p>
+ * Every property of the type has a slot number. Raw Sesam keys (namespaced or not) are resolved to slots by hash lookup,
+ * so converting an entity is a single pass over its fields without string splitting.</p>
+ */
+public final class EntityMapper {
+
+    /**
+     * Typed conversion of Sesam JSON value to OData property value
+     */
+    @FunctionalInterface
+    public interface ValueConverter {
+
+        Object convert(JsonNode value);
+    }
+
+    private static final int NO_SLOT = -1;
+    //upper bound for cached unknown raw keys, protects from datasets with unbounded key sets
+    private static final int MAX_RAW_KEYS = 10000;
+
+    private final String[] names;
+    private final String[] types;
+    private final ValueConverter[] converters;
+    private final Map<String, Integer> slotsByName;
+    private final Map<String, Integer> slotsByRawKey = new ConcurrentHashMap<>(64);
+
+    /**
+     *
+     * @param metadata properties of the type with namespaces already removed from names
+     */
+    public EntityMapper(List<PipeMetadata> metadata) {
+        int size = metadata.size();
+        this.names = new String[size];
+        this.types = new String[size];
+        this.converters = new ValueConverter[size];
+        this.slotsByName = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            PipeMetadata property = metadata.get(i);
+            this.names[i] = property.getName();
+            this.types[i] = property.getType();
+            this.converters[i] = converterFor(property.getType());
+            this.slotsByName.put(property.getName(), i);
+        }
+    }
+
+    /**
+     *
+     * @param metadata
+     * @return true if this mapper has exactly the same properties with the same types
+     */
+    public boolean isCompiledFrom(List<PipeMetadata> metadata) {
+        if (metadata.size() != this.names.length) {
+            return false;
+        }
+        for (int i = 0; i < this.names.length; i++) {
+            PipeMetadata property = metadata.get(i);
+            if (!Objects.equals(this.names[i], property.getName()) || !Objects.equals(this.types[i], property.getType())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return number of property slots
+     */
+    public int size() {
+        return this.names.length;
+    }
+
+    /**
+     *
+     * @param slot
+     * @return property name in given slot
+     */
+    public String getName(int slot) {
+        return this.names[slot];
+    }
+
+    /**
+     *
+     * @param slot
+     * @return Sesam type of property in given slot
+     */
+    public String getType(int slot) {
+        return this.types[slot];
+    }
+
+    /**
+     *
+     * @param propertyName OData property name
+     * @return slot of the property or -1 if type has no such property
+     */
+    public int slotOf(String propertyName) {
+        Integer slot = this.slotsByName.get(propertyName);
+        return null == slot ? NO_SLOT : slot;
+    }
+
+    /**
+     * Resolves raw Sesam key to property slot, key may be namespaced as ns:name
+     *
+     * @param rawKey
+     * @return slot of the property or -1 if key isn't mapped
+     */
+    public int slotOfRawKey(String rawKey) {
+        Integer slot = this.slotsByRawKey.get(rawKey);
+        if (null != slot) {
+            return slot;
+        }
+        Integer resolved = this.slotsByName.get(rawKey);
+        if (null == resolved) {
+            resolved = this.slotsByName.get(rawKey.substring(rawKey.lastIndexOf(':') + 1));
+        }
+        int result = null == resolved ? NO_SLOT : resolved;
+        if (this.slotsByRawKey.size() < MAX_RAW_KEYS) {
+            this.slotsByRawKey.put(rawKey, result);
+        }
+        return result;
+    }
+
+    /**
+     * Reads property values of Sesam entity in one pass over its fields
+     *
+     * @param sesamEntity
+     * @return values by slot, missing properties are not present in result
+     */
+    public Values read(JsonNode sesamEntity) {
+        return read(sesamEntity, null);
+    }
+
+    /**
+     * Reads values of given properties only, other fields are skipped without conversion
+     *
+     * @param sesamEntity
+     * @param slots slots to read, null for all
+     * @return values by slot
+     */
+    public Values read(JsonNode sesamEntity, BitSet slots) {
+        Values values = new Values(this.names.length);
+        Iterator<Map.Entry<String, JsonNode>> fields = sesamEntity.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            int slot = slotOfRawKey(field.getKey());
+            if (slot != NO_SLOT && (null == slots || slots.get(slot))) {
+                values.set(slot, this.converters[slot].convert(field.getValue()));
+            }
+        }
+        return values;
+    }
+
+    /**
+     *
+     * @return empty values with a slot for every property of this type
+     */
+    public Values newValues() {
+        return new Values(this.names.length);
+    }
+
+    /**
+     * Creates OData entity with properties which are present in given values
+     *
+     * @param values
+     * @return entity without id
+     */
+    public Entity toEntity(Values values) {
+        return toEntity(values, null);
+    }
+
+    /**
+     * Creates OData entity with given properties only
+     *
+     * @param values
+     * @param slots slots to convert, null for all
+     * @return entity without id
+     */
+    public Entity toEntity(Values values, BitSet slots) {
+        Entity entity = new Entity();
+        for (int slot = 0; slot < this.names.length; slot++) {
+            if (values.isPresent(slot) && (null == slots || slots.get(slot))) {
+                entity.addProperty(new Property(null, this.names[slot], ValueType.PRIMITIVE, values.get(slot)));
+            }
+        }
+        return entity;
+    }
+
+    /**
+     * Converts Sesam entity to OData entity
+     *
+     * @param sesamEntity
+     * @return entity without id
+     */
+    public Entity toEntity(JsonNode sesamEntity) {
+        return toEntity(read(sesamEntity));
+    }
+
+    /**
+     * Converts given properties of Sesam entity to OData entity
+     *
+     * @param sesamEntity
+     * @param slots slots to convert, null for all
+     * @return entity without id
+     */
+    public Entity toEntity(JsonNode sesamEntity, BitSet slots) {
+        return toEntity(read(sesamEntity, slots), slots);
+    }
+
+    /**
+     * Converts property value to comparable form: integers to long, datetimes to instant, other values to string
+     *
+     * @param slot
+     * @param value property value as produced by this mapper
+     * @return comparable value or null if value is null or can't be converted
+     */
+    public Object toComparable(int slot, Object value) {
+        if (null == value) {
+            return null;
+        }
+        switch (null == this.types[slot] ? "" : this.types[slot]) {
+            case "integer":
+                if (value instanceof Number) {
+                    return ((Number) value).longValue();
+                }
+                try {
+                    return Long.valueOf(value.toString());
+                } catch (NumberFormatException ex) {
+                    return null;
+                }
+            case "datetime":
+                return value instanceof Instant ? value : parseInstant(value.toString());
+            default:
+                return value.toString();
+        }
+    }
+
+    /**
+     *
+     * @param text ISO date time with offset or ISO date
+     * @return instant or null if text can't be parsed
+     */
+    public static Instant parseInstant(String text) {
+        try {
+            return OffsetDateTime.parse(text).toInstant();
+        } catch (DateTimeParseException ex) {
+            try {
+                return LocalDate.parse(text).atStartOfDay(ZoneOffset.UTC).toInstant();
+            } catch (DateTimeParseException notDate) {
+                return null;
+            }
+        }
+    }
+
+    private static ValueConverter converterFor(String type) {
+        switch (null == type ? "" : type) {
+            case "integer":
+                return (value) -> {
+                    if (value.isNull()) {
+                        return null;
+                    }
+                    return value.isNumber() ? value.longValue() : Long.valueOf(value.asText());
+                };
+            case "datetime":
+                return (value) -> {
+                    if (value.isNull()) {
+                        return null;
+                    }
+                    String text = value.asText();
+                    return text.startsWith("~t") ? text.substring(2) : text;
+                };
+            default:
+                //fallback to string as default
+                return (value) -> value.isNull() ? null : value.asText();
+        }
+    }
+
+    /**
+     * Property values of one entity indexed by slot
+     */
+    public static final class Values {
+
+        private final Object[] values;
+        private final boolean[] present;
+
+        Values(int size) {
+            this.values = new Object[size];
+            this.present = new boolean[size];
+        }
+
+        public void set(int slot, Object value) {
+            this.values[slot] = value;
+            this.present[slot] = true;
+        }
+
+        public Object get(int slot) {
+            return this.values[slot];
+        }
+
+        public boolean isPresent(int slot) {
+            return this.present[slot];
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package io.sesam.odata.edm;
+
+import org.apache.olingo.server.api.etag.ServiceMetadataETagSupport;
+
+/**
+ * Metadata and service document ETags derived from schema version. Version numbers restart with the process, so the
+ * ETag also carries process start time to never match a document served before restart.
+ */
+public final class SchemaETagSupport implements ServiceMetadataETagSupport {
+
+    private static final String EPOCH = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+
+    private final String eTag;
+
+    public SchemaETagSupport(EdmSchema schema) {
+        this.eTag = "W/\"" + EPOCH + "-" + schema.getVersion() + "\"";
+    }
+
+    @Override
+    public String getMetadataETag() {
+        return this.eTag;
+    }
+
+    @Override
+    public String getServiceDocumentETag() {
+        return this.eTag;
+    }
+}
@@ -8,6 +8,7 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind;
 import org.apache.olingo.commons.api.edm.FullQualifiedName;
 import org.apache.olingo.commons.api.edm.provider.CsdlAbstractEdmProvider;
@@ -30,8 +31,9 @@ import org.slf4j.LoggerFactory;
 public class SesamEdmProvider extends CsdlAbstractEdmProvider {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(SesamEdmProvider.class);
-    private static final Map<String, List<PipeMetadata>> EDM_MAP = new HashMap<>(16);
-    private static final Map<String, Dataset> EDM_REF_MAP = new HashMap<>(16);
+    //registry is copy-on-write: every change publishes new immutable schema version
+    private static final AtomicReference<EdmSchema> CURRENT_SCHEMA = new AtomicReference<>(
+            new EdmSchema(0, Collections.emptyMap(), Collections.emptyMap()));
     public static final String SET_POSTFIX = "_set";
     public static final String ID_PROPERTY = "_id";
 
@@ -42,8 +44,29 @@ public class SesamEdmProvider extends CsdlAbstractEdmProvider {
     public static final String CONTAINER_NAME = "Odata";
     public static final FullQualifiedName CONTAINER = new FullQualifiedName(NAMESPACE, CONTAINER_NAME);
 
-    public static void registerEdmReference(String camelCasedId, Dataset t) {
-        SesamEdmProvider.EDM_REF_MAP.put(camelCasedId, t);
+    private final EdmSchema schema;
+
+    /**
+     * Creates provider for currently published schema
+     */
+    public SesamEdmProvider() {
+        this(getSchema());
+    }
+
+    /**
+     * Creates provider for given schema version
+     *
+     * @param schema
+     */
+    public SesamEdmProvider(EdmSchema schema) {
+        this.schema = schema;
+    }
+
+    public static synchronized void registerEdmReference(String camelCasedId, Dataset t) {
+        EdmSchema current = CURRENT_SCHEMA.get();
+        Map<String, Dataset> datasets = new HashMap<>(current.getDatasets());
+        datasets.put(camelCasedId, t);
+        publish(new EdmSchema(current.getVersion() + 1, current.getTypes(), datasets, current.getMappers()));
     }
 
     /**
@@ -54,7 +77,7 @@ public class SesamEdmProvider extends CsdlAbstractEdmProvider {
     public CsdlEntityContainer getEntityContainer() throws ODataException {
         // create EntitySets
         List<CsdlEntitySet> entitySets = new ArrayList<>();
-        EDM_MAP.forEach((k, v) -> {
+        this.schema.getTypes().forEach((k, v) -> {
             try {
                 entitySets.add(getEntitySet(CONTAINER, k));
             } catch (ODataException ex) {
@@ -82,7 +105,7 @@ public class SesamEdmProvider extends CsdlAbstractEdmProvider {
 
         // add EntityTypes
         List<CsdlEntityType> entityTypes = new ArrayList<>();
-        EDM_MAP.forEach((k, v) -> {
+        this.schema.getTypes().forEach((k, v) -> {
             try {
                 FullQualifiedName fullQualifiedName = new FullQualifiedName(NAMESPACE, k);
                 entityTypes.add(getEntityType(fullQualifiedName));
@@ -137,7 +160,7 @@ public class SesamEdmProvider extends CsdlAbstractEdmProvider {
         if (entitySetName.endsWith(SET_POSTFIX)) {
             localEntitySetName = entitySetName.replace(SET_POSTFIX, "");
         }
-        if (!contnrName.equals(CONTAINER) || !EDM_MAP.containsKey(localEntitySetName)) {
+        if (!contnrName.equals(CONTAINER) || !this.schema.contains(localEntitySetName)) {
             return null;
         }
         CsdlEntitySet entitySet = new CsdlEntitySet();
@@ -155,10 +178,10 @@ public class SesamEdmProvider extends CsdlAbstractEdmProvider {
     @Override
     public CsdlEntityType getEntityType(FullQualifiedName entityTypeName) throws ODataException {
         // this method is called for one of the EntityTypes that are configured in the Schema
-        if (!EDM_MAP.containsKey(entityTypeName.getName())) {
+        if (!this.schema.contains(entityTypeName.getName())) {
             return null;
         }
-        List<PipeMetadata> metadata = EDM_MAP.get(entityTypeName.getName());
+        List<PipeMetadata> metadata = this.schema.getTypes().get(entityTypeName.getName());
         //create EntityType properties
         List<CsdlProperty> properties = new LinkedList<>();
         //id in sesam datasets is always String _id
@@ -195,21 +218,63 @@ public class SesamEdmProvider extends CsdlAbstractEdmProvider {
      * @param metadata
      * @return false if already registered with the same name (don't added) or true otherwise
      */
-    public static boolean registerEdmType(String name, List<PipeMetadata> metadata) {
-        if (SesamEdmProvider.EDM_MAP.containsKey(name)) {
+    public static synchronized boolean registerEdmType(String name, List<PipeMetadata> metadata) {
+        EdmSchema current = CURRENT_SCHEMA.get();
+        if (current.contains(name)) {
             LOGGER.debug("Metadata for {} already exists", name);
             return false;
         }
         LOGGER.info("Register metadata for pipe {}", name);
-        SesamEdmProvider.EDM_MAP.put(name, metadata);
+        Map<String, List<PipeMetadata>> types = new HashMap<>(current.getTypes());
+        types.put(name, metadata);
+        publish(new EdmSchema(current.getVersion() + 1, types, current.getDatasets(), current.getMappers()));
         return true;
     }
 
+    /**
+     * Replaces all registered types and references with given ones. New schema version is built aside and published
+     * by single atomic swap, requests which already started keep previous version.
+     *
+     * @param types EDM types
+     * @param references datasets of EDM types
+     * @return published schema
+     */
+    public static synchronized EdmSchema replaceSchema(Map<String, List<PipeMetadata>> types,
+            Map<String, Dataset> references) {
+        EdmSchema current = CURRENT_SCHEMA.get();
+        EdmSchema schema = new EdmSchema(current.getVersion() + 1, types, references, current.getMappers());
+        publish(schema);
+        LOGGER.info("Schema version {} published with {} types", schema.getVersion(), types.size());
+        return schema;
+    }
+
     /**
      * removes everything from EDM type map
      */
-    public static void cleanEdmMap() {
-        SesamEdmProvider.EDM_MAP.clear();
+    public static synchronized void cleanEdmMap() {
+        EdmSchema current = CURRENT_SCHEMA.get();
+        publish(new EdmSchema(current.getVersion() + 1, Collections.emptyMap(), current.getDatasets()));
+    }
+
+    private static void publish(EdmSchema schema) {
+        CURRENT_SCHEMA.set(schema);
+    }
+
+    /**
+     *
+     * @return currently published schema version
+     */
+    public static EdmSchema getSchema() {
+        return CURRENT_SCHEMA.get();
+    }
+
+    /**
+     * Current schema version, changes every time registered types are modified
+     *
+     * @return schema version
+     */
+    public static long getSchemaVersion() {
+        return CURRENT_SCHEMA.get().getVersion();
     }
 
     /**
@@ -217,7 +282,16 @@ public class SesamEdmProvider extends CsdlAbstractEdmProvider {
      * @return
      */
     public static Map<String, List<PipeMetadata>> getEdmMap() {
-        return SesamEdmProvider.EDM_MAP;
+        return CURRENT_SCHEMA.get().getTypes();
+    }
+
+    /**
+     *
+     * @param name registered type name
+     * @return property mapper compiled for given type or null if type isn't registered
+     */
+    public static EntityMapper getEntityMapper(String name) {
+        return CURRENT_SCHEMA.get().getEntityMapper(name);
     }
 
     /**
@@ -225,7 +299,7 @@ public class SesamEdmProvider extends CsdlAbstractEdmProvider {
      * @return
      */
     public static Map<String, Dataset> getEdmRefMap() {
-        return SesamEdmProvider.EDM_REF_MAP;
+        return CURRENT_SCHEMA.get().getDatasets();
     }
 
     /**
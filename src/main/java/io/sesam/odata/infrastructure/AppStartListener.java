@@ -2,11 +2,10 @@ package io.sesam.odata.infrastructure;
 
 import io.sesam.odata.edm.SesamEdmProvider;
 import io.sesam.odata.infrastructure.models.Dataset;
-import io.sesam.odata.infrastructure.models.PipeMetadata;
-import java.io.IOException;
+import io.sesam.odata.replica.Replicator;
 import java.nio.charset.Charset;
-import java.util.Arrays;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
@@ -33,6 +32,38 @@ public class AppStartListener implements ServletContextListener {
     public static final String SESAM_TOKEN = "SESAM_JWT";
 
     public static final String SESAM_BASE_API_PATH = "api/";
+    /**
+     * Servlet context attribute with shared {@link SesamHttpClient}
+     */
+    public static final String SESAM_CLIENT = "SESAM_CLIENT";
+    /**
+     * Servlet context attribute with {@link SchemaRefresher}
+     */
+    public static final String SCHEMA_REFRESHER = "SCHEMA_REFRESHER";
+    /**
+     * Servlet context attribute with {@link Replicator}, set only if replication is switched on
+     */
+    public static final String REPLICATOR = "REPLICATOR";
+    /**
+     * Servlet context attribute with {@link Prefetcher}, set only if read-ahead is switched on
+     */
+    public static final String PREFETCHER = "PREFETCHER";
+    /**
+     * Servlet context attribute with {@link EntityCache}, set only if entity cache is switched on
+     */
+    public static final String ENTITY_CACHE = "ENTITY_CACHE";
+    /**
+     * Servlet context attribute with {@link SingleFlight}, set only if coalescing of upstream calls is switched on
+     */
+    public static final String SINGLE_FLIGHT = "SINGLE_FLIGHT";
+    /**
+     * Servlet context attribute with {@link BatchExecutor}, set only if $batch requests are supported
+     */
+    public static final String BATCH_EXECUTOR = "BATCH_EXECUTOR";
+    /**
+     * Servlet context attribute with {@link RequestExecutor}, set only if async request handling is switched on
+     */
+    public static final String REQUEST_EXECUTOR = "REQUEST_EXECUTOR";
 
     private String sesamBaseUrl;
 
@@ -52,45 +83,86 @@ public class AppStartListener implements ServletContextListener {
         servletContext.setAttribute(SESAM_TOKEN, jwtToken);
         servletContext.setAttribute(SESAM_BASE_URL, this.sesamBaseUrl);
 
+        SesamHttpClient client = new SesamHttpClient(this.sesamBaseUrl, jwtToken);
+        servletContext.setAttribute(SESAM_CLIENT, client);
+        Metrics.register("upstream", client::getStats);
+
         LOGGER.info("Service started: ");
-        LOGGER.info("Getting metadata from Sesam appliance");
 
         MetadataProvider mProvider = new MetadataProvider(sce.getServletContext());
+        SchemaSnapshot snapshot = new SchemaSnapshot(this.sesamBaseUrl);
+        SchemaSnapshot.Content cachedSchema = snapshot.load();
+        SchemaRefresher refresher = new SchemaRefresher(mProvider, snapshot);
+        servletContext.setAttribute(SCHEMA_REFRESHER, refresher);
+
+        if (null != cachedSchema) {
+            //warm start: serve from snapshot immediately and rediscover changed pipes in background
+            SesamEdmProvider.replaceSchema(cachedSchema.getTypes(), cachedSchema.getDatasets());
+            LOGGER.info("Serving {} types from schema snapshot, revalidating against Sesam appliance",
+                    cachedSchema.getTypes().size());
+            refresher.requestRefresh();
+        } else {
+            LOGGER.info("Getting metadata from Sesam appliance");
+            discoverSchema(mProvider, (type) -> {
+                SesamEdmProvider.registerEdmType(type.getName(), type.getMetadata());
+                SesamEdmProvider.registerEdmReference(type.getName(), type.getDataset());
+            });
+            snapshot.save(SesamEdmProvider.getEdmMap(), SesamEdmProvider.getEdmRefMap());
+        }
+        refresher.start();
+
+        if (Replicator.isEnabled()) {
+            Replicator replicator = new Replicator(new SesamDataLoader(client));
+            servletContext.setAttribute(REPLICATOR, replicator);
+            Metrics.register("replica", replicator::getStats);
+            replicator.start();
+        }
+
+        if (Prefetcher.isEnabled()) {
+            Prefetcher prefetcher = new Prefetcher(new SesamDataLoader(client));
+            servletContext.setAttribute(PREFETCHER, prefetcher);
+            Metrics.register("prefetch", prefetcher::getStats);
+        }
+
+        if (EntityCache.isEnabled()) {
+            EntityCache cache = new EntityCache();
+            servletContext.setAttribute(ENTITY_CACHE, cache);
+            Metrics.register("entityCache", cache::getStats);
+        }
+
+        if (SingleFlight.isEnabled()) {
+            SingleFlight singleFlight = new SingleFlight();
+            servletContext.setAttribute(SINGLE_FLIGHT, singleFlight);
+            Metrics.register("singleFlight", singleFlight::getStats);
+        }
+
+        if (BatchExecutor.isEnabled()) {
+            BatchExecutor batchExecutor = new BatchExecutor();
+            servletContext.setAttribute(BATCH_EXECUTOR, batchExecutor);
+            Metrics.register("batch", batchExecutor::getStats);
+        }
+
+        if (RequestExecutor.isEnabled()) {
+            RequestExecutor requestExecutor = new RequestExecutor();
+            servletContext.setAttribute(REQUEST_EXECUTOR, requestExecutor);
+            Metrics.register("async", requestExecutor::getStats);
+        }
+    }
+
+    /**
+     * Discovers metadata of all user datasets
+     *
+     * @param mProvider
+     * @param onDiscovered called for every discovered type
+     */
+    private void discoverSchema(MetadataProvider mProvider, Consumer<MetadataDiscovery.DiscoveredType> onDiscovered) {
         List<Dataset> datasets = mProvider.getDatasets();
 
-        datasets.stream().filter((t) -> {
-            return "user".equals(t.runtime.getOrigin());
-        }).forEach((Dataset t) -> {
-            try {
-                List<PipeMetadata> pipeMetadata = mProvider.getPipeMetadata(t.getId());
-
-                if (pipeMetadata.isEmpty()) {
-                    return;
-                }
-
-                //convert hyphen strings to camelCase as OData don't like dashes in URI
-                String camelCasedId = Arrays.stream(t.getId().split("\\-"))
-                        .map(String::toLowerCase)
-                        .map(s -> s.substring(0, 1).toUpperCase() + s.substring(1))
-                        .collect(Collectors.joining());
-
-                //removing namespaces as : is not allowed in odata names and will cause serialization exception
-                pipeMetadata.replaceAll((PipeMetadata p) -> {
-                    String[] splitedName = p.getName().split(":");
-                    p.setName(splitedName[splitedName.length - 1]);
-                    return p;
-                });
-                //add _id property as it exixts but not in metadata
-                PipeMetadata _idObj = new PipeMetadata();
-                _idObj.setName("_id");
-                _idObj.setType("string");
-                pipeMetadata.add(_idObj);
-                SesamEdmProvider.registerEdmType(camelCasedId, pipeMetadata);
-                SesamEdmProvider.registerEdmReference(camelCasedId, t);
-            } catch (IOException ex) {
-                LOGGER.warn("Couldn't get meatadta for pipe {}. Reason: {}", t.getId(), ex.getMessage());
-            }
-        });
+        List<Dataset> userDatasets = datasets.stream()
+                .filter((t) -> "user".equals(t.runtime.getOrigin()))
+                .collect(Collectors.toList());
+
+        new MetadataDiscovery(mProvider).discover(userDatasets, onDiscovered);
     }
 
     /**
@@ -105,6 +177,30 @@ public class AppStartListener implements ServletContextListener {
 
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
+        SchemaRefresher refresher = (SchemaRefresher) sce.getServletContext().getAttribute(SCHEMA_REFRESHER);
+        if (null != refresher) {
+            refresher.stop();
+        }
+        Replicator replicator = (Replicator) sce.getServletContext().getAttribute(REPLICATOR);
+        if (null != replicator) {
+            replicator.stop();
+        }
+        Prefetcher prefetcher = (Prefetcher) sce.getServletContext().getAttribute(PREFETCHER);
+        if (null != prefetcher) {
+            prefetcher.stop();
+        }
+        BatchExecutor batchExecutor = (BatchExecutor) sce.getServletContext().getAttribute(BATCH_EXECUTOR);
+        if (null != batchExecutor) {
+            batchExecutor.stop();
+        }
+        RequestExecutor requestExecutor = (RequestExecutor) sce.getServletContext().getAttribute(REQUEST_EXECUTOR);
+        if (null != requestExecutor) {
+            requestExecutor.stop();
+        }
+        SesamHttpClient client = (SesamHttpClient) sce.getServletContext().getAttribute(SESAM_CLIENT);
+        if (null != client) {
+            client.close();
+        }
         LOGGER.info("Service stopped");
     }
 
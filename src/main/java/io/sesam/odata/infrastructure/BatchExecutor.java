@@ -0,0 +1,156 @@
+package io.sesam.odata.infrastructure;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Bounded pool executing GET parts of $batch requests. When all workers are busy and the queue is full, the part is
+ * executed by the request thread, so a batch never fails because of the pool size and never runs more parts in parallel
+ * than workers plus batch requests in flight. With {@link VirtualThreads} switched on every part gets its own virtual
+ * thread. Parts which can't run any more because the executor is stopped fail their future, so no batch waits for them.
+ */
+public class BatchExecutor {
+
+    /**
+     * Number of batch parts executed in parallel, 0 switches $batch support off
+     */
+    public static final String THREADS = "SESAM_BATCH_THREADS";
+    /**
+     * Max time in ms a batch waits for its GET parts
+     */
+    public static final String PART_TIMEOUT = "SESAM_BATCH_PART_TIMEOUT";
+
+    private final ExecutorService workers;
+    //null when running on virtual threads
+    private final ThreadPoolExecutor pool;
+    private final long partTimeout;
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong parts = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong callerRuns = new AtomicLong();
+
+    public BatchExecutor() {
+        this.partTimeout = Math.max(1, Settings.getLong(PART_TIMEOUT, 120000));
+        ExecutorService virtualThreads = VirtualThreads.newPerTaskExecutor("batch-");
+        if (null != virtualThreads) {
+            this.workers = virtualThreads;
+            this.pool = null;
+            return;
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        int threads = Math.max(1, Settings.getInt(THREADS, 8));
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(threads * 4), (runnable) -> {
+            Thread thread = new Thread(runnable, "batch-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, (runnable, executor) -> {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Batch executor is stopped");
+            }
+            this.callerRuns.incrementAndGet();
+            runnable.run();
+        });
+        this.workers = this.pool;
+    }
+
+    /**
+     *
+     * @return true if $batch requests are supported
+     */
+    public static boolean isEnabled() {
+        return Settings.getInt(THREADS, 8) > 0;
+    }
+
+    /**
+     * Starts batch part
+     *
+     * @param <T> result type
+     * @param part computes part result
+     * @return future of the result, failed with {@link RejectedExecutionException} if the executor is stopped before
+     * the part runs
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> part) {
+        Task<T> task = new Task<>(part);
+        try {
+            this.workers.execute(task);
+        } catch (RejectedExecutionException ex) {
+            task.result.completeExceptionally(ex);
+        }
+        return task.result;
+    }
+
+    /**
+     *
+     * @return max time in ms a batch waits for its GET parts
+     */
+    public long getPartTimeout() {
+        return this.partTimeout;
+    }
+
+    /**
+     * Records one processed batch
+     *
+     * @param parts number of parts in the batch
+     * @param coalesced number of GET parts answered by execution of identical part
+     */
+    public void record(int parts, int coalesced) {
+        this.batches.incrementAndGet();
+        this.parts.addAndGet(parts);
+        this.coalesced.addAndGet(coalesced);
+    }
+
+    public void stop() {
+        for (Runnable drained : this.workers.shutdownNow()) {
+            if (drained instanceof Task) {
+                ((Task<?>) drained).result.completeExceptionally(
+                        new RejectedExecutionException("Batch executor is stopped"));
+            }
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>(8);
+        stats.put("batches", this.batches.get());
+        stats.put("parts", this.parts.get());
+        stats.put("coalesced", this.coalesced.get());
+        stats.put("callerRuns", this.callerRuns.get());
+        stats.put("virtualThreads", null == this.pool);
+        if (null != this.pool) {
+            stats.put("active", this.pool.getActiveCount());
+            stats.put("queued", this.pool.getQueue().size());
+        }
+        return stats;
+    }
+
+    /**
+     * Part with its result future
+     */
+    private static final class Task<T> implements Runnable {
+
+        private final Supplier<T> part;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        Task(Supplier<T> part) {
+            this.part = part;
+        }
+
+        @Override
+        public void run() {
+            try {
+                this.result.complete(this.part.get());
+            } catch (RuntimeException ex) {
+                this.result.completeExceptionally(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package io.sesam.odata.infrastructure;
+
+import io.sesam.odata.edm.EntityMapper;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of single entities read from Sesam. Entries are weighted by estimated size of their values and evicted
+ * in least recently used order when the byte budget is exceeded or when they are older than TTL. The cache is split
+ * into segments with own lock, so concurrent lookups of different entities rarely contend.
+ */
+public class EntityCache {
+
+    /**
+     * Max total estimated size in bytes of cached entities, 0 (default) switches the cache off
+     */
+    public static final String MAX_BYTES = "SESAM_ENTITY_CACHE_MAX_BYTES";
+    /**
+     * Time in ms an entity is served from the cache
+     */
+    public static final String TTL = "SESAM_ENTITY_CACHE_TTL";
+
+    private static final int SEGMENTS = 16;
+    //estimated overhead of an entry and of one value slot
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final int SLOT_OVERHEAD = 24;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long ttl;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    public EntityCache() {
+        long maxBytes = Settings.getLong(MAX_BYTES, 0);
+        this.ttl = Settings.getLong(TTL, 60000);
+        for (int i = 0; i < SEGMENTS; i++) {
+            this.segments[i] = new Segment(Math.max(1, maxBytes / SEGMENTS));
+        }
+    }
+
+    /**
+     *
+     * @return true if entity cache is switched on
+     */
+    public static boolean isEnabled() {
+        return Settings.getLong(MAX_BYTES, 0) > 0;
+    }
+
+    /**
+     * Cached version of an entity
+     */
+    public static final class Entry {
+
+        private final EntityMapper mapper;
+        private final EntityMapper.Values values;
+        private final String hash;
+        private final long weight;
+        private final long expiresAt;
+
+        Entry(EntityMapper mapper, EntityMapper.Values values, String hash, long weight, long expiresAt) {
+            this.mapper = mapper;
+            this.values = values;
+            this.hash = hash;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+
+        public EntityMapper.Values getValues() {
+            return values;
+        }
+
+        /**
+         *
+         * @return Sesam _hash of the entity or null if entity has none
+         */
+        public String getHash() {
+            return hash;
+        }
+    }
+
+    /**
+     *
+     * @param datasetId
+     * @param entityId
+     * @param mapper mapper the values must have been read by
+     * @return cached entity or null if not cached, expired or read by another mapper
+     */
+    public Entry get(String datasetId, String entityId, EntityMapper mapper) {
+        String key = key(datasetId, entityId);
+        Entry entry = segmentOf(key).get(key);
+        if (null == entry || entry.mapper != mapper) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        this.hits.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     *
+     * @param datasetId
+     * @param entityId
+     * @param mapper mapper the values were read by
+     * @param values
+     * @param hash Sesam _hash of the entity, may be null
+     * @return cached entry
+     */
+    public Entry put(String datasetId, String entityId, EntityMapper mapper, EntityMapper.Values values, String hash) {
+        String key = key(datasetId, entityId);
+        Entry entry = new Entry(mapper, values, hash, weigh(key, mapper, values),
+                System.currentTimeMillis() + this.ttl);
+        segmentOf(key).put(key, entry);
+        return entry;
+    }
+
+    private static long weigh(String key, EntityMapper mapper, EntityMapper.Values values) {
+        long weight = ENTRY_OVERHEAD + 2L * key.length();
+        for (int slot = 0; slot < mapper.size(); slot++) {
+            Object value = values.get(slot);
+            weight += SLOT_OVERHEAD + (value instanceof String ? 2L * ((String) value).length() : 0);
+        }
+        return weight;
+    }
+
+    private Segment segmentOf(String key) {
+        int hash = key.hashCode();
+        return this.segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    private static String key(String datasetId, String entityId) {
+        return datasetId + '\u0000' + entityId;
+    }
+
+    public Map<String, Object> getStats() {
+        long entries = 0;
+        long bytes = 0;
+        for (Segment segment : this.segments) {
+            synchronized (segment) {
+                entries += segment.entries.size();
+                bytes += segment.bytes;
+            }
+        }
+        long hitCount = this.hits.get();
+        long requests = hitCount + this.misses.get();
+        Map<String, Object> stats = new LinkedHashMap<>(8);
+        stats.put("hits", hitCount);
+        stats.put("misses", this.misses.get());
+        stats.put("hitRatio", requests == 0 ? 0.0 : (double) hitCount / requests);
+        stats.put("evictions", this.evictions.get());
+        stats.put("expirations", this.expirations.get());
+        stats.put("entries", entries);
+        stats.put("bytes", bytes);
+        return stats;
+    }
+
+    /**
+     * LRU ordered part of the cache with own byte budget
+     */
+    private final class Segment {
+
+        private final long maxBytes;
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+        private long bytes;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized Entry get(String key) {
+            Entry entry = this.entries.get(key);
+            if (null != entry && entry.expiresAt < System.currentTimeMillis()) {
+                this.entries.remove(key);
+                this.bytes -= entry.weight;
+                expirations.incrementAndGet();
+                return null;
+            }
+            return entry;
+        }
+
+        synchronized void put(String key, Entry entry) {
+            if (entry.weight > this.maxBytes) {
+                return;
+            }
+            Entry previous = this.entries.put(key, entry);
+            if (null != previous) {
+                this.bytes -= previous.weight;
+            }
+            this.bytes += entry.weight;
+            long now = System.currentTimeMillis();
+            Iterator<Entry> eldest = this.entries.values().iterator();
+            while (this.bytes > this.maxBytes && eldest.hasNext()) {
+                Entry evicted = eldest.next();
+                eldest.remove();
+                this.bytes -= evicted.weight;
+                if (evicted.expiresAt < now) {
+                    expirations.incrementAndGet();
+                } else {
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package io.sesam.odata.infrastructure;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Entities of a dataset from given sequence on, read from Sesam in batches. Next batch is requested only when the
+ * previous one has been consumed, so a caller which stops early doesn't fetch more than one batch ahead.
+ */
+public class EntityFeed implements Iterator<JsonNode>, Closeable {
+
+    private final SesamDataLoader loader;
+    private final String datasetId;
+    private final int batchSize;
+    private EntityStream batch;
+    private int readInBatch;
+    private long sequence;
+    private boolean finished;
+
+    /**
+     *
+     * @param loader
+     * @param datasetId
+     * @param since sequence to read after
+     * @param batchSize max number of entities in one upstream request
+     * @throws IOException if the first batch couldn't be opened
+     */
+    public EntityFeed(SesamDataLoader loader, String datasetId, long since, int batchSize) throws IOException {
+        this(loader, datasetId, since, batchSize, null);
+    }
+
+    /**
+     *
+     * @param loader
+     * @param datasetId
+     * @param since sequence to read after
+     * @param batchSize max number of entities in one upstream request
+     * @param firstBatch already fetched first batch or null to request it from Sesam
+     * @throws IOException if the first batch couldn't be opened
+     */
+    public EntityFeed(SesamDataLoader loader, String datasetId, long since, int batchSize, EntityStream firstBatch)
+            throws IOException {
+        this.loader = loader;
+        this.datasetId = datasetId;
+        this.batchSize = batchSize;
+        this.sequence = since;
+        this.batch = null == firstBatch ? loader.openData(datasetId, since, batchSize) : firstBatch;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!this.finished) {
+            if (this.batch.hasNext()) {
+                return true;
+            }
+            if (this.readInBatch < this.batchSize) {
+                //short batch, end of dataset reached
+                this.finished = true;
+                return false;
+            }
+            try {
+                this.batch = this.loader.openData(this.datasetId, this.sequence, this.batchSize);
+                this.readInBatch = 0;
+            } catch (IOException ex) {
+                this.finished = true;
+                throw new UncheckedIOException("Couldn't read next batch of " + this.datasetId, ex);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public JsonNode next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        JsonNode entity = this.batch.next();
+        this.readInBatch++;
+        this.sequence = entity.path("_updated").asLong(this.sequence);
+        return entity;
+    }
+
+    @Override
+    public void close() {
+        this.finished = true;
+        this.batch.close();
+    }
+}
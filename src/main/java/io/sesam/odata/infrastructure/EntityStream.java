@@ -0,0 +1,116 @@
+package io.sesam.odata.infrastructure;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over JSON array of Sesam entities reading them one by one from upstream response stream, so only one entity
+ * is kept in memory at a time. Must be closed to release upstream connection.
+ */
+public class EntityStream implements Iterator<JsonNode>, Closeable {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Closeable response;
+    private final JsonParser parser;
+    private JsonNode nextEntity;
+    private boolean finished;
+
+    EntityStream(SesamHttpClient.StreamingResponse response) throws IOException {
+        this(response.getBody(), response);
+    }
+
+    /**
+     *
+     * @param body JSON array of entities
+     * @param response released when the stream is closed
+     * @throws IOException if body isn't JSON array
+     */
+    EntityStream(InputStream body, Closeable response) throws IOException {
+        this.response = response;
+        try {
+            this.parser = MAPPER.getFactory().createParser(body);
+            if (this.parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Sesam response is not JSON array of entities");
+            }
+        } catch (IOException ex) {
+            response.close();
+            throw ex;
+        }
+    }
+
+    /**
+     *
+     * @param content JSON array of entities
+     * @return stream over entities held in memory
+     * @throws IOException if content isn't JSON array
+     */
+    public static EntityStream of(byte[] content) throws IOException {
+        return new EntityStream(new ByteArrayInputStream(content), () -> {
+        });
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (null != this.nextEntity) {
+            return true;
+        }
+        if (this.finished) {
+            return false;
+        }
+        try {
+            if (this.parser.nextToken() == JsonToken.START_OBJECT) {
+                this.nextEntity = MAPPER.readTree(this.parser);
+                return true;
+            }
+        } catch (IOException ex) {
+            close();
+            throw new UncheckedIOException("Couldn't read entity from Sesam response", ex);
+        }
+        //end of array reached
+        close();
+        return false;
+    }
+
+    @Override
+    public JsonNode next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        JsonNode entity = this.nextEntity;
+        this.nextEntity = null;
+        return entity;
+    }
+
+    private void closeResponse() {
+        try {
+            this.response.close();
+        } catch (IOException ex) {
+            //nothing to do, stream is finished anyway
+        }
+    }
+
+    @Override
+    public void close() {
+        if (this.finished) {
+            return;
+        }
+        this.finished = true;
+        try {
+            this.parser.close();
+        } catch (IOException ex) {
+            //nothing to do, connection is released anyway
+        } finally {
+            closeResponse();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package io.sesam.odata.infrastructure;
+
+import io.sesam.odata.infrastructure.models.Dataset;
+import io.sesam.odata.infrastructure.models.PipeMetadata;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Discovers metadata of Sesam pipes on bounded worker pool. Discovered types are handed over to consumer on calling
+ * thread as soon as they complete, pipes which exceed time budget are abandoned.
+ */
+public class MetadataDiscovery {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetadataDiscovery.class);
+
+    /**
+     * Number of pipes discovered in parallel
+     */
+    public static final String PARALLELISM = "SESAM_DISCOVERY_PARALLELISM";
+    /**
+     * Time budget in ms for discovery of one pipe
+     */
+    public static final String PIPE_TIMEOUT = "SESAM_DISCOVERY_PIPE_TIMEOUT";
+
+    private static final int SLOWEST_PIPES_REPORTED = 5;
+    private static final long POLL_INTERVAL = 100;
+
+    private final MetadataProvider provider;
+    private final int parallelism;
+    private final long pipeTimeout;
+
+    public MetadataDiscovery(MetadataProvider provider) {
+        this.provider = provider;
+        this.parallelism = Math.max(1, Settings.getInt(PARALLELISM, 8));
+        this.pipeTimeout = Settings.getLong(PIPE_TIMEOUT, 30000);
+    }
+
+    /**
+     * Discovered pipe ready to be registered as EDM type
+     */
+    public static final class DiscoveredType {
+
+        private final String name;
+        private final Dataset dataset;
+        private final List<PipeMetadata> metadata;
+
+        DiscoveredType(String name, Dataset dataset, List<PipeMetadata> metadata) {
+            this.name = name;
+            this.dataset = dataset;
+            this.metadata = metadata;
+        }
+
+        /**
+         *
+         * @return camel cased type name
+         */
+        public String getName() {
+            return name;
+        }
+
+        public Dataset getDataset() {
+            return dataset;
+        }
+
+        public List<PipeMetadata> getMetadata() {
+            return metadata;
+        }
+    }
+
+    /**
+     * Discovers metadata of given datasets, blocks until all pipes are discovered or abandoned
+     *
+     * @param datasets
+     * @param onDiscovered called on calling thread for every successfully discovered pipe
+     */
+    public void discover(List<Dataset> datasets, Consumer<DiscoveredType> onDiscovered) {
+        long started = System.nanoTime();
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(this.parallelism, (runnable) -> {
+            Thread thread = new Thread(runnable, "metadata-discovery-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        ExecutorCompletionService<DiscoveredType> completion = new ExecutorCompletionService<>(pool);
+        Map<Future<DiscoveredType>, Dataset> pending = new HashMap<>(datasets.size() * 2);
+        Map<String, Long> startTimes = new ConcurrentHashMap<>(datasets.size() * 2);
+        Map<String, Long> durations = new HashMap<>(datasets.size() * 2);
+        int registered = 0;
+        int abandoned = 0;
+
+        for (Dataset dataset : datasets) {
+            pending.put(completion.submit(() -> {
+                long start = System.nanoTime();
+                startTimes.put(dataset.getId(), start);
+                return discover(dataset, start);
+            }), dataset);
+        }
+
+        try {
+            while (!pending.isEmpty()) {
+                Future<DiscoveredType> done = completion.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (null != done) {
+                    Dataset dataset = pending.remove(done);
+                    if (null == dataset) {
+                        //abandoned task, already accounted
+                        continue;
+                    }
+                    Long start = startTimes.get(dataset.getId());
+                    durations.put(dataset.getId(), System.nanoTime() - (null == start ? started : start));
+                    DiscoveredType type = getResult(done, dataset);
+                    if (null != type) {
+                        onDiscovered.accept(type);
+                        registered++;
+                    }
+                }
+                abandoned += abandonExpired(pending, startTimes, durations);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Metadata discovery interrupted, {} pipes not discovered", pending.size());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        LOGGER.info("Metadata discovery of {} pipes took {} ms: {} registered, {} abandoned after {} ms budget",
+                datasets.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), registered, abandoned,
+                this.pipeTimeout);
+        LOGGER.info("Slowest pipes: {}", durations.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()))
+                .limit(SLOWEST_PIPES_REPORTED)
+                .map((e) -> e.getKey() + " (" + TimeUnit.NANOSECONDS.toMillis(e.getValue()) + " ms)")
+                .collect(Collectors.joining(", ")));
+    }
+
+    private int abandonExpired(Map<Future<DiscoveredType>, Dataset> pending, Map<String, Long> startTimes,
+            Map<String, Long> durations) {
+        long now = System.nanoTime();
+        List<Future<DiscoveredType>> expired = new ArrayList<>();
+        pending.forEach((future, dataset) -> {
+            Long start = startTimes.get(dataset.getId());
+            if (null != start && TimeUnit.NANOSECONDS.toMillis(now - start) > this.pipeTimeout) {
+                expired.add(future);
+            }
+        });
+        expired.forEach((future) -> {
+            Dataset dataset = pending.remove(future);
+            future.cancel(true);
+            durations.put(dataset.getId(), now - startTimes.get(dataset.getId()));
+            LOGGER.warn("Metadata discovery of pipe {} exceeded time budget of {} ms, pipe skipped", dataset.getId(),
+                    this.pipeTimeout);
+        });
+        return expired.size();
+    }
+
+    private static DiscoveredType getResult(Future<DiscoveredType> future, Dataset dataset) {
+        try {
+            return future.get();
+        } catch (ExecutionException | CancellationException ex) {
+            LOGGER.warn("Couldn't get metadata for pipe {}. Reason: {}", dataset.getId(), ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    /**
+     *
+     * @param datasetId
+     * @return EDM type name of given dataset
+     */
+    public static String typeName(String datasetId) {
+        //convert hyphen strings to camelCase as OData don't like dashes in URI
+        return Arrays.stream(datasetId.split("\\-"))
+                .map(String::toLowerCase)
+                .map(s -> s.substring(0, 1).toUpperCase() + s.substring(1))
+                .collect(Collectors.joining());
+    }
+
+    private DiscoveredType discover(Dataset t, long start) throws IOException {
+        //interrupt doesn't stop blocked socket read, so the call itself gives up when the budget is spent
+        long remaining = this.pipeTimeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        List<PipeMetadata> pipeMetadata = this.provider.getPipeMetadata(t.getId(),
+                (int) Math.max(1, Math.min(Integer.MAX_VALUE, remaining)));
+
+        if (pipeMetadata.isEmpty()) {
+            return null;
+        }
+        //result may be shared, make own copy before modifying it
+        pipeMetadata = new ArrayList<>(pipeMetadata);
+
+        String camelCasedId = typeName(t.getId());
+
+        //removing namespaces as : is not allowed in odata names and will cause serialization exception
+        pipeMetadata.replaceAll((PipeMetadata p) -> {
+            String[] splitedName = p.getName().split(":");
+            p.setName(splitedName[splitedName.length - 1]);
+            return p;
+        });
+        //add _id property as it exixts but not in metadata
+        PipeMetadata _idObj = new PipeMetadata();
+        _idObj.setName("_id");
+        _idObj.setType("string");
+        pipeMetadata.add(_idObj);
+        return new DiscoveredType(camelCasedId, t, pipeMetadata);
+    }
+}
@@ -3,20 +3,13 @@ package io.sesam.odata.infrastructure;
 import io.sesam.odata.infrastructure.models.Dataset;
 import io.sesam.odata.infrastructure.models.PipeMetadata;
 import java.io.IOException;
-import java.nio.charset.Charset;
 import java.util.Collections;
 import java.util.List;
 import javax.servlet.ServletContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.core.ParameterizedTypeReference;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpMethod;
-import org.springframework.http.ResponseEntity;
 import org.springframework.web.client.RestClientException;
-import org.springframework.web.client.RestTemplate;
 
 /**
  *
@@ -26,56 +19,32 @@ public class MetadataProvider {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MetadataProvider.class);
 
-    private final ServletContext ctx;
+    private final SesamHttpClient client;
 
     MetadataProvider(final ServletContext servletContext) {
-        this.ctx = servletContext;
+        this.client = (SesamHttpClient) servletContext.getAttribute(AppStartListener.SESAM_CLIENT);
+        assert (this.client != null);
     }
 
     public List<Dataset> getDatasets() {
-        byte[] tokenBytes = (byte[]) this.ctx.getAttribute(AppStartListener.SESAM_TOKEN);
-        String sesamUrl = (String) this.ctx.getAttribute(AppStartListener.SESAM_BASE_URL);
-        
-        assert(tokenBytes != null && sesamUrl != null);
-        
-        RestTemplate restTemplate = new RestTemplateBuilder().setConnectTimeout(30000).setReadTimeout(30000).build();
-
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("Authorization", "Bearer ".concat(new String(tokenBytes, Charset.defaultCharset())));
-        HttpEntity entity = new HttpEntity(headers);
-        ResponseEntity<List<Dataset>> response = restTemplate.exchange(
-                String.format("https://%s/api/datasets", sesamUrl),
-                HttpMethod.GET,
-                entity,
+        return this.client.get(SesamHttpClient.Route.DATASETS, "datasets",
                 new ParameterizedTypeReference<List<Dataset>>() {
         });
-        List<Dataset> datasetList = response.getBody();
-        return datasetList;
     }
     /**
      * 
      * @param pipeId
+     * @param readTimeout max time in ms to wait for response data
      * @return
      * @throws IOException 
      */
-    public List<PipeMetadata> getPipeMetadata(String pipeId) throws IOException {
+    public List<PipeMetadata> getPipeMetadata(String pipeId, int readTimeout) throws IOException {
         LOGGER.debug("Getting metadata");
-        byte[] tokenBytes = (byte[]) this.ctx.getAttribute(AppStartListener.SESAM_TOKEN);
-        String sesamUrl = (String) this.ctx.getAttribute(AppStartListener.SESAM_BASE_URL);
-        RestTemplate restTemplate = new RestTemplateBuilder().setConnectTimeout(30000).setReadTimeout(30000).build();
-
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("Authorization", "Bearer ".concat(new String(tokenBytes, Charset.defaultCharset())));
-        HttpEntity entity = new HttpEntity(headers);
         try {
-            ResponseEntity<List<PipeMetadata>> response = restTemplate.exchange(
-                    String.format("https://%s/api/pipes/%s/generate-schema-definition?sample_size=50", sesamUrl, pipeId),
-                    HttpMethod.GET,
-                    entity,
+            return this.client.get(SesamHttpClient.Route.SCHEMA,
+                    String.format("pipes/%s/generate-schema-definition?sample_size=50", pipeId),
                     new ParameterizedTypeReference<List<PipeMetadata>>() {
-            });
-            List<PipeMetadata> metadataObjectList = response.getBody();
-            return metadataObjectList;
+            }, readTimeout);
         } catch (RestClientException ex) {
             LOGGER.warn("Couldn't retrieve metadata for pipe {}. Reason: {}", pipeId, ex.getMessage());
             return Collections.EMPTY_LIST;
@@ -0,0 +1,37 @@
+package io.sesam.odata.infrastructure;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Registry of runtime statistics exposed by admin controller
+ */
+public final class Metrics {
+
+    private static final Map<String, Supplier<Map<String, Object>>> SOURCES = new ConcurrentHashMap<>(16);
+
+    private Metrics() {
+    }
+
+    /**
+     * Registers (or replaces) statistics source with given name
+     *
+     * @param name
+     * @param source supplier of current values, called on every stats request
+     */
+    public static void register(String name, Supplier<Map<String, Object>> source) {
+        SOURCES.put(name, source);
+    }
+
+    /**
+     *
+     * @return current values of all registered sources sorted by source name
+     */
+    public static Map<String, Map<String, Object>> snapshot() {
+        Map<String, Map<String, Object>> result = new TreeMap<>();
+        SOURCES.forEach((name, source) -> result.put(name, source.get()));
+        return result;
+    }
+}
@@ -0,0 +1,224 @@
+package io.sesam.odata.infrastructure;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read-ahead of upstream entity batches. When a page with next link is served, the batch the next page will start with
+ * is fetched in background and kept in memory until the client asks for it or it expires. Buffered batches are kept as
+ * raw response bytes, total size is capped.
+ */
+public class Prefetcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Prefetcher.class);
+
+    /**
+     * Env variable to switch on read-ahead of next pages
+     */
+    public static final String PREFETCH = "SESAM_PREFETCH";
+    /**
+     * Max total size in bytes of buffered batches
+     */
+    public static final String MAX_BYTES = "SESAM_PREFETCH_MAX_BYTES";
+    /**
+     * Time in ms a buffered batch waits for its page
+     */
+    public static final String TTL = "SESAM_PREFETCH_TTL";
+    /**
+     * Number of background fetches running in parallel
+     */
+    public static final String THREADS = "SESAM_PREFETCH_THREADS";
+
+    private final SesamDataLoader loader;
+    private final long maxBytes;
+    private final long ttl;
+    private final ExecutorService workers;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>(64);
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong wasted = new AtomicLong();
+    private final AtomicLong wastedBytes = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public Prefetcher(SesamDataLoader loader) {
+        this.loader = loader;
+        this.maxBytes = Settings.getLong(MAX_BYTES, 64L * 1024 * 1024);
+        this.ttl = Settings.getLong(TTL, 30000);
+        AtomicInteger threadNumber = new AtomicInteger();
+        int threads = Math.max(1, Settings.getInt(THREADS, 2));
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(threads * 4), (runnable) -> {
+            Thread thread = new Thread(runnable, "prefetch-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     *
+     * @return true if read-ahead is switched on
+     */
+    public static boolean isEnabled() {
+        return Settings.getBoolean(PREFETCH, false);
+    }
+
+    /**
+     * Starts background fetch of the batch unless it is already buffered or the buffer is full
+     *
+     * @param datasetId
+     * @param since
+     * @param elements max number of entities in the batch
+     */
+    public void prefetch(String datasetId, long since, int elements) {
+        expire();
+        if (this.bufferedBytes.get() >= this.maxBytes) {
+            this.rejected.incrementAndGet();
+            return;
+        }
+        String key = key(datasetId, since, elements);
+        Entry entry = new Entry();
+        if (null != this.entries.putIfAbsent(key, entry)) {
+            return;
+        }
+        try {
+            this.workers.execute(() -> fetch(key, entry, datasetId, since, elements));
+        } catch (RejectedExecutionException ex) {
+            //all workers busy, read-ahead is best effort
+            this.entries.remove(key, entry);
+            this.rejected.incrementAndGet();
+        }
+    }
+
+    private void fetch(String key, Entry entry, String datasetId, long since, int elements) {
+        try {
+            byte[] batch = this.loader.readData(datasetId, since, elements,
+                    this.maxBytes - this.bufferedBytes.get());
+            if (null == batch) {
+                this.rejected.incrementAndGet();
+                this.entries.remove(key, entry);
+            } else {
+                this.bufferedBytes.addAndGet(batch.length);
+            }
+            entry.content.complete(batch);
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.debug("Read-ahead of {} after {} failed: {}", datasetId, since, ex.getMessage());
+            this.failed.incrementAndGet();
+            this.entries.remove(key, entry);
+            entry.content.complete(null);
+        }
+    }
+
+    /**
+     * Takes buffered batch, waits for it if the fetch is still running
+     *
+     * @param datasetId
+     * @param since
+     * @param elements max number of entities in the batch
+     * @return stream over buffered batch or null if batch wasn't prefetched
+     */
+    public EntityStream take(String datasetId, long since, int elements) {
+        Entry entry = this.entries.remove(key(datasetId, since, elements));
+        byte[] batch = null;
+        if (null != entry) {
+            try {
+                batch = entry.content.get(this.ttl, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                release(entry);
+            } catch (ExecutionException | TimeoutException ex) {
+                //fall back to direct read, entry is no longer mapped so its bytes are released when fetch completes
+                release(entry);
+            }
+        }
+        if (null == batch) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        this.bufferedBytes.addAndGet(-batch.length);
+        this.hits.incrementAndGet();
+        try {
+            return EntityStream.of(batch);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Releases buffered bytes of removed entry once its fetch is completed
+     */
+    private void release(Entry entry) {
+        entry.content.thenAccept((batch) -> {
+            if (null != batch) {
+                this.bufferedBytes.addAndGet(-batch.length);
+            }
+        });
+    }
+
+    /**
+     * Drops batches nobody asked for within TTL and fetches running longer than TTL
+     */
+    private void expire() {
+        long now = System.currentTimeMillis();
+        this.entries.forEach((key, entry) -> {
+            if (now - entry.created <= this.ttl || !this.entries.remove(key, entry)) {
+                return;
+            }
+            byte[] batch = entry.content.getNow(null);
+            if (null == batch) {
+                release(entry);
+                return;
+            }
+            this.bufferedBytes.addAndGet(-batch.length);
+            this.wasted.incrementAndGet();
+            this.wastedBytes.addAndGet(batch.length);
+        });
+    }
+
+    public void stop() {
+        this.workers.shutdownNow();
+    }
+
+    public Map<String, Object> getStats() {
+        expire();
+        Map<String, Object> stats = new LinkedHashMap<>(12);
+        stats.put("hits", this.hits.get());
+        stats.put("misses", this.misses.get());
+        stats.put("wasted", this.wasted.get());
+        stats.put("wastedBytes", this.wastedBytes.get());
+        stats.put("rejected", this.rejected.get());
+        stats.put("failed", this.failed.get());
+        stats.put("bufferedBatches", this.entries.size());
+        stats.put("bufferedBytes", this.bufferedBytes.get());
+        stats.put("maxBytes", this.maxBytes);
+        return stats;
+    }
+
+    private static String key(String datasetId, long since, int elements) {
+        return datasetId + '@' + since + '/' + elements;
+    }
+
+    /**
+     * Buffered or running fetch
+     */
+    private static final class Entry {
+
+        final long created = System.currentTimeMillis();
+        final CompletableFuture<byte[]> content = new CompletableFuture<>();
+    }
+}
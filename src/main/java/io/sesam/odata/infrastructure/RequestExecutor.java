@@ -0,0 +1,154 @@
+package io.sesam.odata.infrastructure;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes OData requests detached from container threads (async mode). Waiting requests hold only a queue slot, not a
+ * Jetty thread, so a slow Sesam appliance doesn't exhaust the container pool and admin requests stay responsive. Both
+ * number of workers and queue are bounded, request which can't be queued or waited too long in the queue is refused.
+ * <p>
+ * With {@link VirtualThreads} switched on every request gets its own virtual thread instead, blocking upstream calls
+ * then don't occupy any platform thread and concurrency is limited only by the upstream call limit of
+ * {@link SesamHttpClient}.</p>
+ */
+public class RequestExecutor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RequestExecutor.class);
+
+    /**
+     * Env variable to switch on async request handling
+     */
+    public static final String ASYNC = "SESAM_ASYNC";
+    /**
+     * Number of requests processed in parallel
+     */
+    public static final String THREADS = "SESAM_ASYNC_THREADS";
+    /**
+     * Max number of requests waiting for a worker
+     */
+    public static final String QUEUE = "SESAM_ASYNC_QUEUE";
+    /**
+     * Max time in ms a request may wait for a worker
+     */
+    public static final String QUEUE_TIMEOUT = "SESAM_ASYNC_QUEUE_TIMEOUT";
+
+    private final ExecutorService workers;
+    //null when running on virtual threads
+    private final ThreadPoolExecutor pool;
+    private final long queueTimeout;
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong waitedMillis = new AtomicLong();
+
+    public RequestExecutor() {
+        this.queueTimeout = TimeUnit.MILLISECONDS.toNanos(Settings.getLong(QUEUE_TIMEOUT, 30000));
+        ExecutorService virtualThreads = VirtualThreads.newPerTaskExecutor("odata-");
+        if (null != virtualThreads) {
+            this.workers = virtualThreads;
+            this.pool = null;
+            LOGGER.info("OData requests are processed on virtual threads");
+            return;
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        int threads = Math.max(1, Settings.getInt(THREADS, 200));
+        this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(Math.max(1, Settings.getInt(QUEUE, 1000))), (runnable) -> {
+            Thread thread = new Thread(runnable, "odata-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.pool.allowCoreThreadTimeOut(true);
+        this.workers = this.pool;
+    }
+
+    /**
+     *
+     * @return true if async request handling is switched on, directly or by running on virtual threads
+     */
+    public static boolean isEnabled() {
+        return Settings.getBoolean(ASYNC, false) || VirtualThreads.isEnabled();
+    }
+
+    /**
+     * Queues request for processing
+     *
+     * @param request processes the request
+     * @param refusal answers the request if it waited in the queue longer than allowed or the executor was stopped
+     * before it ran
+     * @return false if the queue is full or the executor is stopped, the request is not processed then
+     */
+    public boolean submit(Runnable request, Runnable refusal) {
+        try {
+            this.workers.execute(new Task(request, refusal));
+            return true;
+        } catch (RejectedExecutionException ex) {
+            this.rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Stops workers, queued requests are refused
+     */
+    public void stop() {
+        for (Runnable drained : this.workers.shutdownNow()) {
+            if (drained instanceof Task) {
+                this.rejected.incrementAndGet();
+                ((Task) drained).refusal.run();
+            }
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>(8);
+        stats.put("processed", this.processed.get());
+        stats.put("rejected", this.rejected.get());
+        stats.put("expired", this.expired.get());
+        stats.put("waitedMillis", this.waitedMillis.get());
+        stats.put("virtualThreads", null == this.pool);
+        if (null != this.pool) {
+            stats.put("active", this.pool.getActiveCount());
+            stats.put("queued", this.pool.getQueue().size());
+        }
+        return stats;
+    }
+
+    /**
+     * Queued request
+     */
+    private final class Task implements Runnable {
+
+        private final Runnable request;
+        private final Runnable refusal;
+        private final long queued = System.nanoTime();
+
+        Task(Runnable request, Runnable refusal) {
+            this.request = request;
+            this.refusal = refusal;
+        }
+
+        @Override
+        public void run() {
+            long waited = System.nanoTime() - this.queued;
+            waitedMillis.addAndGet(TimeUnit.NANOSECONDS.toMillis(waited));
+            if (waited > queueTimeout) {
+                expired.incrementAndGet();
+                this.refusal.run();
+                return;
+            }
+            processed.incrementAndGet();
+            this.request.run();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package io.sesam.odata.infrastructure;
+
+import io.sesam.odata.edm.EdmSchema;
+import io.sesam.odata.edm.EntityMapper;
+import io.sesam.odata.edm.SesamEdmProvider;
+import io.sesam.odata.infrastructure.models.Dataset;
+import io.sesam.odata.infrastructure.models.PipeMetadata;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Refreshes EDM schema off the request path. New schema version is built from current one and published with single
+ * atomic swap, requests in flight keep the version they started with. Only pipes of new datasets or datasets which were
+ * modified since last refresh are rediscovered, metadata of other pipes is reused. Datasets are modified by every data
+ * write, so new version is published only if rediscovered properties differ from the served ones.
+ */
+public class SchemaRefresher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SchemaRefresher.class);
+
+    /**
+     * Interval in seconds between periodic schema refreshes, 0 disables periodic refresh
+     */
+    public static final String REFRESH_INTERVAL = "SESAM_SCHEMA_REFRESH_INTERVAL";
+
+    private final MetadataProvider provider;
+    private final SchemaSnapshot snapshot;
+    //dataset id to last-modified of the dataset when its pipe was last discovered, used by refresh thread only
+    private final Map<String, String> checked = new HashMap<>(64);
+    //single thread, so refreshes never overlap
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "schema-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SchemaRefresher(MetadataProvider provider, SchemaSnapshot snapshot) {
+        this.provider = provider;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Schedules periodic refresh if enabled by {@link #REFRESH_INTERVAL}
+     */
+    public void start() {
+        long interval = Settings.getLong(REFRESH_INTERVAL, 0);
+        if (interval > 0) {
+            this.executor.scheduleWithFixedDelay(this::refreshQuietly, interval, interval, TimeUnit.SECONDS);
+            LOGGER.info("Schema will be refreshed every {} s", interval);
+        }
+    }
+
+    /**
+     * Requests asynchronous refresh
+     *
+     * @return future completed when refresh is done
+     */
+    public Future<?> requestRefresh() {
+        return this.executor.submit(this::refreshQuietly);
+    }
+
+    public void stop() {
+        this.executor.shutdownNow();
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (RuntimeException ex) {
+            LOGGER.warn("Schema refresh failed, serving schema version {}. Reason: {}",
+                    SesamEdmProvider.getSchemaVersion(), ex.getMessage());
+        }
+    }
+
+    /**
+     * Rediscovers changed pipes and publishes new schema version if anything has changed
+     *
+     * @return true if new schema version was published
+     */
+    public boolean refresh() {
+        long started = System.nanoTime();
+        EdmSchema current = SesamEdmProvider.getSchema();
+        Map<String, Dataset> currentByDatasetId = new HashMap<>(current.getDatasets().size() * 2);
+        current.getDatasets().values().forEach((dataset) -> currentByDatasetId.put(dataset.getId(), dataset));
+
+        List<Dataset> userDatasets = this.provider.getDatasets().stream()
+                .filter((t) -> null != t.runtime && "user".equals(t.runtime.getOrigin()))
+                .collect(Collectors.toList());
+
+        Map<String, List<PipeMetadata>> types = new HashMap<>(userDatasets.size() * 2);
+        Map<String, Dataset> references = new HashMap<>(userDatasets.size() * 2);
+        List<Dataset> changed = new ArrayList<>();
+        for (Dataset dataset : userDatasets) {
+            String name = MetadataDiscovery.typeName(dataset.getId());
+            Dataset known = currentByDatasetId.get(dataset.getId());
+            String checkedModified = this.checked.containsKey(dataset.getId()) ? this.checked.get(dataset.getId())
+                    : null == known ? null : lastModified(known);
+            if (null != known && current.contains(name) && Objects.equals(checkedModified, lastModified(dataset))) {
+                types.put(name, current.getTypes().get(name));
+                references.put(name, known);
+            } else {
+                changed.add(dataset);
+            }
+        }
+
+        Map<String, String> discovered = new HashMap<>(changed.size() * 2);
+        new MetadataDiscovery(this.provider).discover(changed, (type) -> {
+            types.put(type.getName(), type.getMetadata());
+            references.put(type.getName(), type.getDataset());
+            discovered.put(type.getDataset().getId(), lastModified(type.getDataset()));
+        });
+        //keep previous version of changed pipes which couldn't be rediscovered
+        changed.forEach((dataset) -> {
+            String name = MetadataDiscovery.typeName(dataset.getId());
+            if (!types.containsKey(name) && current.contains(name)) {
+                types.put(name, current.getTypes().get(name));
+                references.put(name, current.getDataset(name));
+            }
+        });
+
+        long modified = changed.stream().map((dataset) -> MetadataDiscovery.typeName(dataset.getId()))
+                .filter((name) -> types.containsKey(name) && !isServed(current, name, types.get(name),
+                        references.get(name)))
+                .count();
+        int removed = (int) current.getTypes().keySet().stream().filter((name) -> !types.containsKey(name)).count();
+        //datasets removed from Sesam are forgotten, pipes which failed discovery are tried again next time
+        this.checked.keySet().retainAll(userDatasets.stream().map(Dataset::getId).collect(Collectors.toSet()));
+        this.checked.putAll(discovered);
+        if (modified == 0 && removed == 0) {
+            LOGGER.info("Schema version {} is up to date, {} pipes rediscovered in {} ms", current.getVersion(),
+                    changed.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+            return false;
+        }
+        EdmSchema published = SesamEdmProvider.replaceSchema(types, references);
+        LOGGER.info("Schema version {} published in {} ms: {} pipes rediscovered, {} modified, {} removed, {} types in "
+                + "total", published.getVersion(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started),
+                changed.size(), modified, removed, types.size());
+        this.snapshot.save(types, references);
+        return true;
+    }
+
+    /**
+     *
+     * @param current served schema
+     * @param name type name
+     * @param metadata rediscovered properties of the type
+     * @param reference rediscovered dataset of the type
+     * @return true if served schema has the type with the same properties and dataset
+     */
+    private static boolean isServed(EdmSchema current, String name, List<PipeMetadata> metadata, Dataset reference) {
+        EntityMapper mapper = current.getEntityMapper(name);
+        Dataset served = current.getDataset(name);
+        return null != mapper && mapper.isCompiledFrom(metadata) && null != served && null != reference
+                && Objects.equals(served.getId(), reference.getId());
+    }
+
+    private static String lastModified(Dataset dataset) {
+        return null == dataset.runtime ? null : dataset.runtime.getLastModified();
+    }
+}
@@ -0,0 +1,118 @@
+package io.sesam.odata.infrastructure;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.sesam.odata.infrastructure.models.Dataset;
+import io.sesam.odata.infrastructure.models.PipeMetadata;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local gzipped JSON copy of registered EDM types and their datasets, allows to start serving right after restart
+ * without waiting for metadata discovery
+ */
+public class SchemaSnapshot {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SchemaSnapshot.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Path to snapshot file, "none" disables snapshot
+     */
+    public static final String SNAPSHOT_FILE = "SESAM_SCHEMA_SNAPSHOT";
+
+    private final Path file;
+    private final String sesamUrl;
+
+    public SchemaSnapshot(String sesamUrl) {
+        String location = Settings.getString(SNAPSHOT_FILE,
+                Paths.get(System.getProperty("java.io.tmpdir"), "sesam-odata-schema.json.gz").toString());
+        this.file = "none".equalsIgnoreCase(location) ? null : Paths.get(location);
+        this.sesamUrl = sesamUrl;
+    }
+
+    /**
+     * Snapshot file content
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Content {
+
+        public int version;
+        public String sesamUrl;
+        public Map<String, List<PipeMetadata>> types = new HashMap<>(16);
+        public Map<String, Dataset> datasets = new HashMap<>(16);
+
+        public Map<String, List<PipeMetadata>> getTypes() {
+            return types;
+        }
+
+        public Map<String, Dataset> getDatasets() {
+            return datasets;
+        }
+    }
+
+    /**
+     * Loads snapshot if it exists and was made for the same Sesam instance
+     *
+     * @return snapshot content or null if there is no usable snapshot
+     */
+    public Content load() {
+        if (null == this.file || !Files.isReadable(this.file)) {
+            return null;
+        }
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(this.file))) {
+            Content content = MAPPER.readValue(in, Content.class);
+            if (content.version != FORMAT_VERSION || !this.sesamUrl.equals(content.sesamUrl)) {
+                LOGGER.info("Schema snapshot {} was made by other version or for other Sesam instance, ignored",
+                        this.file);
+                return null;
+            }
+            return content;
+        } catch (IOException ex) {
+            LOGGER.warn("Couldn't read schema snapshot {}. Reason: {}", this.file, ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes snapshot of given types, file is replaced atomically so it is never seen half written
+     *
+     * @param types EDM types
+     * @param datasets datasets of EDM types
+     */
+    public void save(Map<String, List<PipeMetadata>> types, Map<String, Dataset> datasets) {
+        if (null == this.file) {
+            return;
+        }
+        Content content = new Content();
+        content.version = FORMAT_VERSION;
+        content.sesamUrl = this.sesamUrl;
+        content.types.putAll(types);
+        content.datasets.putAll(datasets);
+        try {
+            Path parent = this.file.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path tmp = Files.createTempFile(parent, "sesam-odata-schema", ".tmp");
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp))) {
+                MAPPER.writeValue(out, content);
+            }
+            Files.move(tmp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.info("Schema snapshot with {} types written to {}", types.size(), this.file);
+        } catch (IOException ex) {
+            LOGGER.warn("Couldn't write schema snapshot {}. Reason: {}", this.file, ex.getMessage());
+        }
+    }
+}
@@ -1,15 +1,10 @@
 package io.sesam.odata.infrastructure;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import java.nio.charset.Charset;
-import java.util.List;
-import org.springframework.boot.web.client.RestTemplateBuilder;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import org.springframework.core.ParameterizedTypeReference;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpMethod;
-import org.springframework.http.ResponseEntity;
-import org.springframework.web.client.RestTemplate;
 
 /**
  * Class used to getting data from sesam
@@ -18,35 +13,72 @@ import org.springframework.web.client.RestTemplate;
  */
 public class SesamDataLoader {
 
-    private final String url;
-    private final byte[] jwt;
+    private final SesamHttpClient client;
 
-    public SesamDataLoader(final String url, final byte[] jwt) {
-        this.url = url;
-        this.jwt = jwt;
+    public SesamDataLoader(final SesamHttpClient client) {
+        this.client = client;
     }
 
     /**
-     * get data from given dataset in Sesam appliance
+     * Opens stream of entities from given dataset in Sesam appliance, entities are parsed one by one while caller
+     * iterates the stream
      *
      * @param datasetId
-     * @return
+     * @param since last seen _updated or negative number to read from the beginning
+     * @param elements max number of entities
+     * @return open stream, must be closed by caller
+     * @throws IOException
      */
-    public final List<JsonNode> getData(final String datasetId, int skiptoken, int elements) {
-        final RestTemplate restTemplate = new RestTemplateBuilder().build();
+    public final EntityStream openData(final String datasetId, long since, int elements) throws IOException {
+        return new EntityStream(this.client.open(SesamHttpClient.Route.ENTITIES, entitiesPath(datasetId, since,
+                elements)));
+    }
 
-        final HttpHeaders headers = new HttpHeaders();
-        headers.add("Authorization", "Bearer ".concat(new String(this.jwt, Charset.defaultCharset())));
-        final HttpEntity entity = new HttpEntity(headers);
-        ResponseEntity<List<JsonNode>> response = restTemplate.exchange(
-                String.format("https://%s/api/datasets/%s/entities?deleted=false&limit=%d&since=%d",
-                        this.url, datasetId, elements, skiptoken),
-                HttpMethod.GET,
-                entity,
-                new ParameterizedTypeReference<List<JsonNode>>() {
-        });
-        final List<JsonNode> datasetList = response.getBody();
-        return datasetList;
+    /**
+     * Reads whole response with entities from given dataset into memory
+     *
+     * @param datasetId
+     * @param since last seen _updated or negative number to read from the beginning
+     * @param elements max number of entities
+     * @param maxBytes max size of the response
+     * @return JSON array of entities or null if response is larger than maxBytes
+     * @throws IOException
+     */
+    public final byte[] readData(final String datasetId, long since, int elements, long maxBytes) throws IOException {
+        try (SesamHttpClient.StreamingResponse response = this.client.open(SesamHttpClient.Route.ENTITIES,
+                entitiesPath(datasetId, since, elements))) {
+            InputStream body = response.getBody();
+            ByteArrayOutputStream content = new ByteArrayOutputStream(8192);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = body.read(buffer)) >= 0) {
+                if (content.size() + read > maxBytes) {
+                    return null;
+                }
+                content.write(buffer, 0, read);
+            }
+            return content.toByteArray();
+        }
+    }
+
+    private static String entitiesPath(String datasetId, long since, int elements) {
+        String path = String.format("datasets/%s/entities?deleted=false&limit=%d", datasetId, elements);
+        return since < 0 ? path : path + "&since=" + since;
+    }
+
+    /**
+     * Opens change feed of given dataset, deleted entities are included
+     *
+     * @param datasetId
+     * @param since last seen _updated or negative number to read from the beginning
+     * @param elements max number of entities
+     * @return open stream, must be closed by caller
+     * @throws IOException
+     */
+    public final EntityStream openChanges(final String datasetId, long since, int elements) throws IOException {
+        String path = String.format("datasets/%s/entities?deleted=true&history=false&limit=%d", datasetId, elements);
+        return new EntityStream(this.client.open(SesamHttpClient.Route.ENTITIES,
+                since < 0 ? path : path + "&since=" + since));
     }
 
     /**
@@ -57,20 +89,9 @@ public class SesamDataLoader {
      * @return
      */
     public final JsonNode getEntity(final String datasetId, final String entityId) {
-        final RestTemplate restTemplate = new RestTemplateBuilder().build();
-
-        final HttpHeaders headers = new HttpHeaders();
-        headers.add("Authorization", "Bearer ".concat(new String(this.jwt, Charset.defaultCharset())));
-        headers.add("Accept", "application/json");
-        final HttpEntity entity = new HttpEntity(headers);
-        ResponseEntity<JsonNode> response = restTemplate.exchange(
-                String.format("https://%s/api/datasets/%s/entity?entity_id=%s",
-                        this.url, datasetId, entityId),
-                HttpMethod.GET,
-                entity,
+        return this.client.get(SesamHttpClient.Route.ENTITY,
+                String.format("datasets/%s/entity?entity_id=%s", datasetId, entityId),
                 new ParameterizedTypeReference<JsonNode>() {
         });
-        final JsonNode resultEntity = response.getBody();
-        return resultEntity;
     }
 }
@@ -0,0 +1,305 @@
+package io.sesam.odata.infrastructure;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.DefaultResponseErrorHandler;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Shared HTTP client for all calls to Sesam appliance.
+ * <p>
+ * Calls lease connections from bounded keep-alive pools, callers wait for a free connection not longer than acquire
+ * timeout. Responses read by the caller as a stream keep their connection while the caller writes entities to its own
+ * client, so they lease from a separate pool and slow downstream clients can't take connections needed by other
+ * calls. Every route (kind of upstream call) has its own connect, read and acquire timeouts. HTTP/2 isn't supported by
+ * the pooled client, calls use HTTP/1.1 with persistent connections.</p>
+ */
+public class SesamHttpClient implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SesamHttpClient.class);
+
+    /**
+     * Max number of connections to Sesam appliance for calls which read whole response, so also max number of such
+     * concurrent calls
+     */
+    public static final String MAX_CONNECTIONS = "SESAM_HTTP_MAX_CONNECTIONS";
+    /**
+     * Max number of connections to Sesam appliance for streamed responses
+     */
+    public static final String MAX_STREAMS = "SESAM_HTTP_MAX_STREAMS";
+    /**
+     * Default max time in ms to wait for free connection, may be overridden per route with _ROUTE suffix
+     */
+    public static final String ACQUIRE_TIMEOUT = "SESAM_HTTP_ACQUIRE_TIMEOUT";
+    /**
+     * Default connect timeout in ms, may be overridden per route with _ROUTE suffix, i.e. SESAM_HTTP_CONNECT_TIMEOUT_SCHEMA
+     */
+    public static final String CONNECT_TIMEOUT = "SESAM_HTTP_CONNECT_TIMEOUT";
+    /**
+     * Default read timeout in ms, may be overridden per route with _ROUTE suffix, i.e. SESAM_HTTP_READ_TIMEOUT_ENTITIES
+     */
+    public static final String READ_TIMEOUT = "SESAM_HTTP_READ_TIMEOUT";
+
+    //idle connections are closed after this time, Sesam closes them anyway after a while
+    private static final long IDLE_TIMEOUT = 60;
+    //idle connection is checked before it is leased if it wasn't used for this time
+    private static final int VALIDATE_AFTER_INACTIVITY = 2000;
+
+    /**
+     * Kinds of upstream calls
+     */
+    public enum Route {
+        DATASETS, SCHEMA, ENTITIES, ENTITY
+    }
+
+    private final String baseUrl;
+    private final String authorization;
+    private final PoolingHttpClientConnectionManager callPool;
+    private final PoolingHttpClientConnectionManager streamPool;
+    private final CloseableHttpClient callClient;
+    private final CloseableHttpClient streamClient;
+    private final Map<Route, RestTemplate> templates = new EnumMap<>(Route.class);
+    private final Map<Route, HttpComponentsClientHttpRequestFactory> streamFactories = new EnumMap<>(Route.class);
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong acquireTimeouts = new AtomicLong();
+
+    public SesamHttpClient(final String sesamUrl, final byte[] jwt) {
+        this.baseUrl = String.format("https://%s/%s", sesamUrl, AppStartListener.SESAM_BASE_API_PATH);
+        this.authorization = "Bearer ".concat(new String(jwt, Charset.defaultCharset()));
+        int maxConnections = Math.max(1, Settings.getInt(MAX_CONNECTIONS, 50));
+        int maxStreams = Math.max(1, Settings.getInt(MAX_STREAMS, 50));
+        this.callPool = newPool(maxConnections);
+        this.streamPool = newPool(maxStreams);
+        this.callClient = newClient(this.callPool);
+        this.streamClient = newClient(this.streamPool);
+        for (Route route : Route.values()) {
+            this.templates.put(route, new RestTemplate(newFactory(this.callClient, route)));
+            this.streamFactories.put(route, newFactory(this.streamClient, route));
+        }
+        LOGGER.info("Sesam HTTP client created with pools of {} connections for calls and {} for streams", maxConnections,
+                maxStreams);
+    }
+
+    private static PoolingHttpClientConnectionManager newPool(int maxConnections) {
+        //TLS settings come from javax.net.ssl system properties as they did with HttpURLConnection
+        PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager(
+                RegistryBuilder.<ConnectionSocketFactory>create()
+                        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                        .register("https", SSLConnectionSocketFactory.getSystemSocketFactory())
+                        .build());
+        //all calls go to one host
+        pool.setMaxTotal(maxConnections);
+        pool.setDefaultMaxPerRoute(maxConnections);
+        pool.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY);
+        return pool;
+    }
+
+    private static CloseableHttpClient newClient(PoolingHttpClientConnectionManager pool) {
+        return HttpClients.custom()
+                .setConnectionManager(pool)
+                .evictExpiredConnections()
+                .evictIdleConnections(IDLE_TIMEOUT, TimeUnit.SECONDS)
+                .useSystemProperties()
+                .build();
+    }
+
+    private static int readTimeout(Route route) {
+        return Settings.getInt(READ_TIMEOUT + "_" + route, Settings.getInt(READ_TIMEOUT, 30000));
+    }
+
+    private static HttpComponentsClientHttpRequestFactory newFactory(CloseableHttpClient client, Route route) {
+        HttpComponentsClientHttpRequestFactory factory = new HttpComponentsClientHttpRequestFactory(client);
+        factory.setConnectTimeout(Settings.getInt(CONNECT_TIMEOUT + "_" + route, Settings.getInt(CONNECT_TIMEOUT,
+                30000)));
+        factory.setReadTimeout(readTimeout(route));
+        factory.setConnectionRequestTimeout(Settings.getInt(ACQUIRE_TIMEOUT + "_" + route,
+                Settings.getInt(ACQUIRE_TIMEOUT, 10000)));
+        return factory;
+    }
+
+    /**
+     * Executes GET request to Sesam API
+     *
+     * @param <T> response type
+     * @param route kind of call, defines timeouts
+     * @param path path relative to Sesam API base url
+     * @param responseType
+     * @return deserialized response body
+     */
+    public <T> T get(Route route, String path, ParameterizedTypeReference<T> responseType) {
+        return exchange(this.templates.get(route), route, path, responseType);
+    }
+
+    /**
+     * Executes GET request to Sesam API which gives up reading the response after given time of no data, e.g. when
+     * caller has a time budget for the call
+     *
+     * @param <T> response type
+     * @param route kind of call, defines timeouts
+     * @param path path relative to Sesam API base url
+     * @param responseType
+     * @param readTimeout read timeout in ms, used if it's shorter than read timeout of the route
+     * @return deserialized response body
+     */
+    public <T> T get(Route route, String path, ParameterizedTypeReference<T> responseType, int readTimeout) {
+        HttpComponentsClientHttpRequestFactory factory = newFactory(this.callClient, route);
+        factory.setReadTimeout(Math.max(1, Math.min(readTimeout, readTimeout(route))));
+        //message converters of the route template are reused, creating them for every call is expensive
+        RestTemplate template = new RestTemplate(this.templates.get(route).getMessageConverters());
+        template.setRequestFactory(factory);
+        return exchange(template, route, path, responseType);
+    }
+
+    private <T> T exchange(RestTemplate template, Route route, String path, ParameterizedTypeReference<T> responseType) {
+        this.requests.incrementAndGet();
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaders.AUTHORIZATION, this.authorization);
+        headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+        try {
+            return template.exchange(this.baseUrl + path, HttpMethod.GET, new HttpEntity<>(headers), responseType)
+                    .getBody();
+        } catch (ResourceAccessException ex) {
+            if (ex.getCause() instanceof ConnectionPoolTimeoutException) {
+                throw acquireTimeout(route, (IOException) ex.getCause());
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Executes GET request to Sesam API and returns not yet consumed response. Connection of the streams pool stays
+     * leased until returned response is closed, so caller must always close it.
+     *
+     * @param route kind of call, defines timeouts
+     * @param path path relative to Sesam API base url
+     * @return open response
+     * @throws IOException if request can't be executed or Sesam responded with error status
+     */
+    public StreamingResponse open(Route route, String path) throws IOException {
+        this.requests.incrementAndGet();
+        ClientHttpResponse response = null;
+        try {
+            ClientHttpRequest request = this.streamFactories.get(route).createRequest(URI.create(this.baseUrl + path),
+                    HttpMethod.GET);
+            request.getHeaders().add(HttpHeaders.AUTHORIZATION, this.authorization);
+            request.getHeaders().setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+            response = request.execute();
+            DefaultResponseErrorHandler errorHandler = new DefaultResponseErrorHandler();
+            if (errorHandler.hasError(response)) {
+                errorHandler.handleError(response);
+            }
+            return new StreamingResponse(response);
+        } catch (ConnectionPoolTimeoutException ex) {
+            throw acquireTimeout(route, ex);
+        } catch (IOException | RuntimeException ex) {
+            if (null != response) {
+                response.close();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Response of Sesam API which body is read by caller as stream
+     */
+    public static final class StreamingResponse implements Closeable {
+
+        private final ClientHttpResponse response;
+        private boolean closed;
+
+        private StreamingResponse(ClientHttpResponse response) {
+            this.response = response;
+        }
+
+        public InputStream getBody() throws IOException {
+            return this.response.getBody();
+        }
+
+        /**
+         * Closes response, connection goes back to the pool
+         */
+        @Override
+        public void close() {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            this.response.close();
+        }
+    }
+
+    private ResourceAccessException acquireTimeout(Route route, IOException cause) {
+        this.acquireTimeouts.incrementAndGet();
+        return new ResourceAccessException(String.format(Locale.ROOT,
+                "Timed out waiting for free upstream connection for %s", route), cause);
+    }
+
+    /**
+     * Closes pooled connections
+     */
+    @Override
+    public void close() {
+        for (CloseableHttpClient client : new CloseableHttpClient[]{this.callClient, this.streamClient}) {
+            try {
+                client.close();
+            } catch (IOException ex) {
+                LOGGER.warn("Couldn't close Sesam HTTP client. Reason: {}", ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Connection pool statistics
+     *
+     * @return current statistics
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("calls", poolStats(this.callPool));
+        stats.put("streams", poolStats(this.streamPool));
+        stats.put("requests", this.requests.get());
+        stats.put("acquireTimeouts", this.acquireTimeouts.get());
+        return stats;
+    }
+
+    private static Map<String, Object> poolStats(PoolingHttpClientConnectionManager pool) {
+        PoolStats total = pool.getTotalStats();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("maxConnections", total.getMax());
+        stats.put("leased", total.getLeased());
+        stats.put("idle", total.getAvailable());
+        stats.put("pending", total.getPending());
+        return stats;
+    }
+}
@@ -0,0 +1,72 @@
+package io.sesam.odata.infrastructure;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access to optional service settings provided as environmental variables
+ */
+public final class Settings {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Settings.class);
+
+    private Settings() {
+    }
+
+    /**
+     *
+     * @param name env variable name
+     * @param defaultValue value used if variable is not set or empty
+     * @return variable value or default
+     */
+    public static String getString(String name, String defaultValue) {
+        String value = System.getenv(name);
+        if (null == value || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    /**
+     *
+     * @param name env variable name
+     * @param defaultValue value used if variable is not set or not a number
+     * @return variable value or default
+     */
+    public static int getInt(String name, int defaultValue) {
+        return (int) getLong(name, defaultValue);
+    }
+
+    /**
+     *
+     * @param name env variable name
+     * @param defaultValue value used if variable is not set or not a number
+     * @return variable value or default
+     */
+    public static long getLong(String name, long defaultValue) {
+        String value = getString(name, null);
+        if (null == value) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            LOGGER.warn("Invalid numeric value '{}' of {}, using default {}", value, name, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     *
+     * @param name env variable name
+     * @param defaultValue value used if variable is not set
+     * @return true if variable set to "true" (case insensitive), default if not set
+     */
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = getString(name, null);
+        if (null == value) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value);
+    }
+}
@@ -0,0 +1,130 @@
+package io.sesam.odata.infrastructure;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces identical concurrent upstream calls. The first caller of a key executes the call, callers arriving while it
+ * is in flight wait for the same result instead of calling Sesam again. Results must not be modified by callers as they
+ * are shared.
+ */
+public class SingleFlight {
+
+    /**
+     * Env variable to switch on coalescing of identical upstream calls
+     */
+    public static final String SINGLE_FLIGHT = "SESAM_SINGLE_FLIGHT";
+    /**
+     * Max size in bytes of an entity batch shared by coalesced page requests
+     */
+    public static final String MAX_BYTES = "SESAM_SINGLE_FLIGHT_MAX_BYTES";
+
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>(64);
+    private final long maxBytes;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong saved = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public SingleFlight() {
+        this.maxBytes = Settings.getLong(MAX_BYTES, 16L * 1024 * 1024);
+    }
+
+    /**
+     *
+     * @return true if coalescing is switched on
+     */
+    public static boolean isEnabled() {
+        return Settings.getBoolean(SINGLE_FLIGHT, false);
+    }
+
+    /**
+     * Upstream call
+     *
+     * @param <T> result type
+     */
+    @FunctionalInterface
+    public interface Call<T> {
+
+        T execute() throws IOException;
+    }
+
+    /**
+     * Executes the call or joins the same call in flight
+     *
+     * @param <T> result type
+     * @param key identifies upstream resource
+     * @param call
+     * @return shared result
+     * @throws IOException if the call failed
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Call<T> call) throws IOException {
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> running = this.inFlight.putIfAbsent(key, flight);
+        if (null != running) {
+            this.saved.incrementAndGet();
+            return (T) join(running);
+        }
+        this.calls.incrementAndGet();
+        try {
+            T result = call.execute();
+            flight.complete(result);
+            return result;
+        } catch (IOException | RuntimeException ex) {
+            this.failed.incrementAndGet();
+            flight.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            this.inFlight.remove(key, flight);
+        }
+    }
+
+    /**
+     * Reads batch of entities, concurrent reads of the same batch share one upstream call
+     *
+     * @param loader
+     * @param datasetId
+     * @param since
+     * @param elements max number of entities
+     * @return stream over shared batch or null if batch is too large to be shared
+     * @throws IOException if the call failed
+     */
+    public EntityStream openData(SesamDataLoader loader, String datasetId, long since, int elements)
+            throws IOException {
+        byte[] batch = execute("data:" + datasetId + '@' + since + '/' + elements,
+                () -> loader.readData(datasetId, since, elements, this.maxBytes));
+        return null == batch ? null : EntityStream.of(batch);
+    }
+
+    private static Object join(CompletableFuture<Object> running) throws IOException {
+        try {
+            return running.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for upstream call", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>(4);
+        stats.put("upstreamCalls", this.calls.get());
+        stats.put("savedCalls", this.saved.get());
+        stats.put("failedCalls", this.failed.get());
+        stats.put("inFlight", this.inFlight.size());
+        return stats;
+    }
+}
@@ -0,0 +1,57 @@
+package io.sesam.odata.infrastructure;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access to virtual threads of JDK 21+ from code compiled for Java 8. Virtual threads are looked up by reflection, on
+ * older JDK they are reported as unavailable and callers keep their platform thread pools.
+ */
+public final class VirtualThreads {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VirtualThreads.class);
+
+    /**
+     * Env variable to run requests and their upstream calls on virtual threads
+     */
+    public static final String VIRTUAL_THREADS = "SESAM_VIRTUAL_THREADS";
+
+    private VirtualThreads() {
+    }
+
+    /**
+     *
+     * @return true if virtual threads are switched on
+     */
+    public static boolean isEnabled() {
+        return Settings.getBoolean(VIRTUAL_THREADS, false);
+    }
+
+    /**
+     * Creates executor starting a new virtual thread for every task
+     *
+     * @param prefix thread name prefix
+     * @return executor or null if virtual threads are switched off or not supported by running JDK
+     */
+    public static ExecutorService newPerTaskExecutor(String prefix) {
+        if (!isEnabled()) {
+            return null;
+        }
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) perTask.invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            LOGGER.warn("Virtual threads are not supported by Java {}, using platform threads",
+                    System.getProperty("java.version"));
+            return null;
+        }
+    }
+}
@@ -38,6 +38,9 @@ public class Dataset {
 
         private String origin;
 
+        @JsonProperty(value = "last-modified")
+        private String lastModified;
+
         public String getOrigin() {
             return origin;
         }
@@ -46,9 +49,17 @@ public class Dataset {
             this.origin = origin;
         }
 
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public void setLastModified(String lastModified) {
+            this.lastModified = lastModified;
+        }
+
         @Override
         public String toString() {
-            return "Runtime{" + "origin=" + origin + '}';
+            return "Runtime{" + "origin=" + origin + ", lastModified=" + lastModified + '}';
         }
         
         
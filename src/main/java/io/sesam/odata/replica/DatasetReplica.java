@@ -0,0 +1,219 @@
+package io.sesam.odata.replica;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.sesam.odata.edm.EntityMapper;
+import io.sesam.odata.infrastructure.EntityStream;
+import io.sesam.odata.infrastructure.SesamDataLoader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replica of one dataset which follows its change feed by Sesam _updated sequence. Values are stored by slots of the
+ * mapper the replica was created for, so a replica is replaced when type of the dataset changes. Requests read the
+ * store under a {@link Lease}, store of a dropped replica is dropped when the last lease is closed.
+ */
+public class DatasetReplica {
+
+    /**
+     * Read access to the replica, must be closed when the request doesn't use replica entities any more
+     */
+    public final class Lease implements Closeable {
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        public DatasetReplica getReplica() {
+            return DatasetReplica.this;
+        }
+
+        @Override
+        public void close() {
+            if (this.closed.compareAndSet(false, true)) {
+                release();
+            }
+        }
+    }
+
+    private final String datasetId;
+    private final EntityMapper mapper;
+    private final EntityStore store;
+    private final SecondaryIndexes indexes;
+    private final AtomicBoolean syncing = new AtomicBoolean();
+    private final AtomicInteger readers = new AtomicInteger();
+    private final AtomicBoolean storeDropped = new AtomicBoolean();
+    private volatile boolean dropped;
+    private volatile long caughtUpAt;
+    private volatile long syncedEntities;
+
+    /**
+     *
+     * @param datasetId
+     * @param mapper
+     * @param store
+     * @param indexedSlots slots of properties to build secondary indexes for
+     */
+    DatasetReplica(String datasetId, EntityMapper mapper, EntityStore store, List<Integer> indexedSlots) {
+        this.datasetId = datasetId;
+        this.mapper = mapper;
+        this.store = store;
+        this.indexes = new SecondaryIndexes(mapper, indexedSlots);
+        if (!this.indexes.isEmpty()) {
+            //persistent store may already contain entities
+            this.store.after(-1).forEachRemaining(this.indexes::add);
+        }
+    }
+
+    /**
+     * Reads change feed from current sequence until the end of the feed is reached
+     *
+     * @param loader
+     * @param batchSize max number of entities read in one upstream request
+     * @throws IOException
+     */
+    void sync(SesamDataLoader loader, int batchSize) throws IOException {
+        if (!this.syncing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            int read;
+            do {
+                read = 0;
+                try (EntityStream changes = loader.openChanges(this.datasetId, this.store.getSequence(), batchSize)) {
+                    while (changes.hasNext()) {
+                        apply(changes.next());
+                        read++;
+                    }
+                } finally {
+                    this.store.commit();
+                }
+                this.syncedEntities += read;
+            } while (read == batchSize && !Thread.currentThread().isInterrupted());
+            if (read < batchSize) {
+                this.caughtUpAt = System.currentTimeMillis();
+            }
+        } finally {
+            this.syncing.set(false);
+        }
+    }
+
+    private void apply(JsonNode change) {
+        String id = change.path("_id").asText(null);
+        if (null == id) {
+            return;
+        }
+        long sequence = change.path("_updated").asLong();
+        if (!this.indexes.isEmpty()) {
+            ReplicatedEntity previous = this.store.get(id);
+            if (null != previous) {
+                this.indexes.remove(previous);
+            }
+        }
+        if (change.path("_deleted").asBoolean(false)) {
+            this.store.remove(id, sequence);
+        } else {
+            ReplicatedEntity entity = new ReplicatedEntity(id, sequence, this.mapper.read(change));
+            this.store.put(entity);
+            this.indexes.add(entity);
+        }
+    }
+
+    /**
+     * Drops the replica unless it is being synchronized now, dropped replica is never synchronized again. Store is
+     * dropped now or, if requests still read it, when the last of them closes its lease.
+     *
+     * @return true if dropped
+     */
+    boolean drop() {
+        if (!this.syncing.compareAndSet(false, true)) {
+            return false;
+        }
+        this.dropped = true;
+        if (this.readers.get() == 0) {
+            dropStore();
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return lease of the replica or null if replica has been dropped
+     */
+    public Lease acquire() {
+        this.readers.incrementAndGet();
+        if (this.dropped) {
+            release();
+            return null;
+        }
+        return new Lease();
+    }
+
+    private void release() {
+        if (this.readers.decrementAndGet() == 0 && this.dropped) {
+            dropStore();
+        }
+    }
+
+    private void dropStore() {
+        //both drop and the last release may get here
+        if (this.storeDropped.compareAndSet(false, true)) {
+            this.store.drop();
+        }
+    }
+
+    boolean isSyncing() {
+        return this.syncing.get();
+    }
+
+    /**
+     *
+     * @return true if replica has reached the end of the change feed at least once
+     */
+    public boolean isReady() {
+        return this.caughtUpAt > 0;
+    }
+
+    /**
+     *
+     * @return ms since replica was last in sync with Sesam
+     */
+    public long getLag() {
+        return isReady() ? System.currentTimeMillis() - this.caughtUpAt : -1;
+    }
+
+    public String getDatasetId() {
+        return datasetId;
+    }
+
+    public EntityMapper getMapper() {
+        return mapper;
+    }
+
+    public EntityStore getStore() {
+        return store;
+    }
+
+    /**
+     *
+     * @return secondary indexes of this replica
+     */
+    public SecondaryIndexes getIndexes() {
+        return indexes;
+    }
+
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>(8);
+        stats.put("ready", isReady());
+        stats.put("entities", this.store.size());
+        stats.put("sequence", this.store.getSequence());
+        stats.put("lagMs", getLag());
+        stats.put("syncedEntities", this.syncedEntities);
+        if (!this.indexes.isEmpty()) {
+            stats.put("indexes", this.indexes.getStats());
+        }
+        return stats;
+    }
+}
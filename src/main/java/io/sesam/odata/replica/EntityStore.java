@@ -0,0 +1,68 @@
+package io.sesam.odata.replica;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Local store of latest versions of entities of one dataset. Store is written by single replication thread and read
+ * concurrently by requests.
+ */
+public interface EntityStore extends Closeable {
+
+    /**
+     * Inserts or replaces entity
+     *
+     * @param entity
+     */
+    void put(ReplicatedEntity entity);
+
+    /**
+     * Removes deleted entity
+     *
+     * @param id Sesam _id
+     * @param sequence Sesam _updated of deletion
+     */
+    void remove(String id, long sequence);
+
+    /**
+     *
+     * @return highest Sesam _updated applied to the store or -1 if store is empty
+     */
+    long getSequence();
+
+    /**
+     *
+     * @param id Sesam _id
+     * @return entity or null
+     */
+    ReplicatedEntity get(String id);
+
+    /**
+     *
+     * @param since
+     * @return entities with sequence greater than given one in ascending sequence order
+     */
+    Iterator<ReplicatedEntity> after(long since);
+
+    /**
+     *
+     * @return number of entities in the store
+     */
+    int size();
+
+    /**
+     * Makes changes applied so far durable, called after every batch of changes
+     */
+    default void commit() {
+    }
+
+    /**
+     * Closes store and removes its persistent state
+     */
+    default void drop() {
+        close();
+    }
+
+    @Override
+    void close();
+}
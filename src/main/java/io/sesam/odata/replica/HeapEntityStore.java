@@ -0,0 +1,69 @@
+package io.sesam.odata.replica;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Entity store on heap, entities are indexed by id and by sequence. Iterators stop at the sequence the store had when
+ * they were created, so an entity updated during iteration is seen at most once, in its old version or not at all.
+ */
+public class HeapEntityStore implements EntityStore {
+
+    private final Map<String, ReplicatedEntity> byId = new ConcurrentHashMap<>(1024);
+    private final ConcurrentSkipListMap<Long, ReplicatedEntity> bySequence = new ConcurrentSkipListMap<>();
+    private volatile long sequence = -1;
+
+    @Override
+    public void put(ReplicatedEntity entity) {
+        //old version is removed first, so readers may miss entity for a moment, new version is after their sequence
+        ReplicatedEntity previous = this.byId.get(entity.getId());
+        if (null != previous) {
+            this.bySequence.remove(previous.getSequence());
+        }
+        this.bySequence.put(entity.getSequence(), entity);
+        this.byId.put(entity.getId(), entity);
+        this.sequence = Math.max(this.sequence, entity.getSequence());
+    }
+
+    @Override
+    public void remove(String id, long sequence) {
+        ReplicatedEntity previous = this.byId.remove(id);
+        if (null != previous) {
+            this.bySequence.remove(previous.getSequence());
+        }
+        this.sequence = Math.max(this.sequence, sequence);
+    }
+
+    @Override
+    public long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public ReplicatedEntity get(String id) {
+        return this.byId.get(id);
+    }
+
+    @Override
+    public Iterator<ReplicatedEntity> after(long since) {
+        long last = this.sequence;
+        if (since >= last) {
+            return Collections.emptyIterator();
+        }
+        return this.bySequence.subMap(since, false, last, true).values().iterator();
+    }
+
+    @Override
+    public int size() {
+        return this.byId.size();
+    }
+
+    @Override
+    public void close() {
+        this.byId.clear();
+        this.bySequence.clear();
+    }
+}
@@ -0,0 +1,160 @@
+package io.sesam.odata.replica;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * File of fixed width entries mapped into memory segment by segment as it grows. An entry never crosses segment
+ * boundary. Absolute access only, so concurrent readers are safe while single writer appends.
+ * <p>
+ * Segments double in size from the first one up to the max size, so small files stay small. The file is open only
+ * while a segment is being mapped, mapped segments don't need an open channel.</p>
+ */
+final class MappedColumn implements Closeable {
+
+    private static final int ENTRIES_PER_SEGMENT = 1 << 20;
+    private static final int FIRST_SEGMENT_SHIFT = 10;
+
+    private final Path file;
+    private final int width;
+    private final long firstEntries;
+    private final long maxEntries;
+    //number of segments smaller than max and number of entries in them
+    private final int growingSegments;
+    private final long growingEntries;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private volatile boolean closed;
+
+    /**
+     *
+     * @param file
+     * @param width entry size in bytes
+     */
+    MappedColumn(Path file, int width) {
+        this(file, width, ENTRIES_PER_SEGMENT >> FIRST_SEGMENT_SHIFT, ENTRIES_PER_SEGMENT);
+    }
+
+    /**
+     *
+     * @param file
+     * @param width entry size in bytes
+     * @param entriesPerSegment entries in every segment
+     */
+    MappedColumn(Path file, int width, int entriesPerSegment) {
+        this(file, width, entriesPerSegment, entriesPerSegment);
+    }
+
+    /**
+     *
+     * @param file
+     * @param width entry size in bytes
+     * @param firstEntries entries in the first segment
+     * @param maxEntries entries in the largest segment, power of two multiple of first segment entries
+     */
+    MappedColumn(Path file, int width, int firstEntries, int maxEntries) {
+        this.file = file;
+        this.width = width;
+        this.firstEntries = firstEntries;
+        this.maxEntries = maxEntries;
+        this.growingSegments = Integer.numberOfTrailingZeros(maxEntries / firstEntries);
+        this.growingEntries = this.firstEntries * ((1L << this.growingSegments) - 1);
+    }
+
+    long getLong(long entry, int offset) {
+        return segment(entry).getLong(position(entry) + offset);
+    }
+
+    void putLong(long entry, int offset, long value) {
+        segment(entry).putLong(position(entry) + offset, value);
+    }
+
+    int getInt(long entry, int offset) {
+        return segment(entry).getInt(position(entry) + offset);
+    }
+
+    void putInt(long entry, int offset, int value) {
+        segment(entry).putInt(position(entry) + offset, value);
+    }
+
+    byte get(long entry, int offset) {
+        return segment(entry).get(position(entry) + offset);
+    }
+
+    void put(long entry, int offset, byte value) {
+        segment(entry).put(position(entry) + offset, value);
+    }
+
+    /**
+     * Writes mapped changes to disk
+     */
+    void force() {
+        for (MappedByteBuffer segment : this.segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * No more segments are mapped, already mapped segments stay valid until garbage collected, so late readers don't
+     * fail
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+    }
+
+    private int position(long entry) {
+        return (int) (entry - start(index(entry))) * this.width;
+    }
+
+    private MappedByteBuffer segment(long entry) {
+        int index = index(entry);
+        MappedByteBuffer[] mapped = this.segments;
+        return index < mapped.length ? mapped[index] : map(index);
+    }
+
+    private int index(long entry) {
+        if (entry < this.growingEntries) {
+            return 63 - Long.numberOfLeadingZeros(entry / this.firstEntries + 1);
+        }
+        return this.growingSegments + (int) ((entry - this.growingEntries) / this.maxEntries);
+    }
+
+    private long start(int index) {
+        if (index < this.growingSegments) {
+            return this.firstEntries * ((1L << index) - 1);
+        }
+        return this.growingEntries + (index - this.growingSegments) * this.maxEntries;
+    }
+
+    private long entries(int index) {
+        return index < this.growingSegments ? this.firstEntries << index : this.maxEntries;
+    }
+
+    private synchronized MappedByteBuffer map(int index) {
+        MappedByteBuffer[] mapped = this.segments;
+        if (index < mapped.length) {
+            return mapped[index];
+        }
+        if (this.closed) {
+            throw new IllegalStateException("Column " + this.file + " is closed");
+        }
+        MappedByteBuffer[] grown = Arrays.copyOf(mapped, index + 1);
+        try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            for (int i = mapped.length; i <= index; i++) {
+                grown[i] = channel.map(FileChannel.MapMode.READ_WRITE, start(i) * this.width,
+                        entries(i) * this.width);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Couldn't map column segment " + index, ex);
+        }
+        this.segments = grown;
+        return grown[index];
+    }
+}
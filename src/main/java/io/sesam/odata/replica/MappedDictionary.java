@@ -0,0 +1,72 @@
+package io.sesam.odata.replica;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Dictionary encoding of string column, every distinct string is stored once and referenced by int code
+ */
+final class MappedDictionary implements Closeable {
+
+    private final String name;
+    private final MappedHeap strings;
+    private final MappedColumn offsets;
+    private final MappedHashIndex index;
+    private int size;
+
+    MappedDictionary(Path dir, String name, Properties meta) {
+        this.name = name;
+        this.strings = new MappedHeap(dir, name, meta);
+        this.offsets = new MappedColumn(dir.resolve(name + ".offsets"), 8);
+        this.index = new MappedHashIndex(dir, name, meta);
+        this.size = Integer.parseInt(meta.getProperty(name + ".codes", "0"));
+    }
+
+    /**
+     *
+     * @param value
+     * @return code of given string, string is added to dictionary if it is new
+     */
+    int encode(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int hash = value.hashCode();
+        int code = this.index.find(hash, (c) -> this.strings.equalsAt(this.offsets.getLong(c, 0), bytes));
+        if (code >= 0) {
+            return code;
+        }
+        code = this.size;
+        this.offsets.putLong(code, 0, this.strings.append(bytes));
+        this.size++;
+        this.index.put(hash, code, (c) -> false);
+        return code;
+    }
+
+    String decode(int code) {
+        return new String(this.strings.read(this.offsets.getLong(code, 0)), StandardCharsets.UTF_8);
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    void save(Properties meta) {
+        this.strings.save(meta);
+        this.index.save(meta);
+        meta.setProperty(this.name + ".codes", Integer.toString(this.size));
+    }
+
+    void force() {
+        this.strings.force();
+        this.offsets.force();
+        this.index.force();
+    }
+
+    @Override
+    public void close() {
+        this.strings.close();
+        this.offsets.close();
+        this.index.close();
+    }
+}
@@ -0,0 +1,506 @@
+package io.sesam.odata.replica;
+
+import io.sesam.odata.edm.EntityMapper;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Restart durable entity store in memory mapped files, entities are kept column by column so heap usage doesn't grow
+ * with number of entities.
+ * <ul><li>rows - sequence, offset of _id and deleted flag, rows are appended in sequence order</li>
+ * <li>_id - length prefixed strings addressed by offset with hash index from _id to latest row</li>
+ * <li>integer properties - presence flag and long value per row</li>
+ * <li>other properties - dictionary encoded strings, int code per row</li></ul>
+ * <p>
+ * Updated entity is appended as a new row and its previous row is marked as dead. Once dead rows outnumber live ones,
+ * live rows are copied to a new generation of files on commit. Store state is saved on every commit, a store which
+ * wasn't committed after its last change (process crashed) is discarded on open and replicated again.</p>
+ */
+public class MappedEntityStore implements EntityStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MappedEntityStore.class);
+
+    private static final String FORMAT = "2";
+    private static final String META_FILE = "store.properties";
+    private static final String GENERATION = "gen-";
+    //rows are referenced by int in _id index
+    private static final long MAX_ROWS = Integer.MAX_VALUE;
+    private static final long MIN_DEAD_ROWS = 1 << 16;
+    private static final int ROW_WIDTH = 17;
+    private static final int SEQUENCE = 0;
+    private static final int ID_OFFSET = 8;
+    private static final int FLAGS = 16;
+    private static final byte DEAD = 1;
+    private static final byte ABSENT = 0;
+    private static final byte NULL = 1;
+    private static final byte VALUE = 2;
+    private static final int ABSENT_CODE = -1;
+    private static final int NULL_CODE = -2;
+
+    private final Path dir;
+    private final EntityMapper mapper;
+    private volatile Generation current;
+    private volatile long sequence;
+    private volatile int live;
+    private boolean dirty;
+
+    /**
+     * Opens store of given type in given directory, store is created empty if it doesn't exist, wasn't committed or
+     * was created for different type
+     *
+     * @param dir
+     * @param mapper
+     * @throws IOException
+     */
+    public MappedEntityStore(Path dir, EntityMapper mapper) throws IOException {
+        this.dir = dir;
+        this.mapper = mapper;
+        Properties meta = loadMeta();
+        if (null == meta) {
+            deleteFiles();
+            meta = new Properties();
+        }
+        Files.createDirectories(dir);
+        this.sequence = Long.parseLong(meta.getProperty("sequence", "-1"));
+        this.live = Integer.parseInt(meta.getProperty("live", "0"));
+        int number = Integer.parseInt(meta.getProperty("generation", "0"));
+        deleteOtherGenerations(number);
+        this.current = new Generation(number, meta);
+        if (this.current.rowCount > 0) {
+            LOGGER.info("Opened replica store {} with {} entities at sequence {}", dir, this.live, this.sequence);
+        }
+    }
+
+    @Override
+    public void put(ReplicatedEntity entity) {
+        Generation files = this.current;
+        long row = files.rowCount;
+        if (row >= MAX_ROWS) {
+            throw new IllegalStateException("Replica store " + this.dir + " has reached max number of rows");
+        }
+        markDirty();
+        byte[] id = entity.getId().getBytes(StandardCharsets.UTF_8);
+        int hash = entity.getId().hashCode();
+        int previous = files.find(hash, id, row);
+        long idOffset;
+        if (previous >= 0) {
+            idOffset = files.rows.getLong(previous, ID_OFFSET);
+            if (files.isDead(previous)) {
+                this.live++;
+            } else {
+                //old version is hidden first, so readers may miss entity for a moment but never see it twice
+                files.rows.put(previous, FLAGS, DEAD);
+            }
+        } else {
+            idOffset = files.ids.append(id);
+            this.live++;
+        }
+        files.append(entity.getSequence(), idOffset, entity.getValues());
+        files.idIndex.put(hash, (int) row, (candidate) -> candidate == previous);
+        this.sequence = Math.max(this.sequence, entity.getSequence());
+    }
+
+    @Override
+    public void remove(String id, long sequence) {
+        markDirty();
+        Generation files = this.current;
+        int row = files.find(id.hashCode(), id.getBytes(StandardCharsets.UTF_8), files.rowCount);
+        if (row >= 0 && !files.isDead(row)) {
+            files.rows.put(row, FLAGS, DEAD);
+            this.live--;
+        }
+        this.sequence = Math.max(this.sequence, sequence);
+    }
+
+    @Override
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    @Override
+    public ReplicatedEntity get(String id) {
+        Generation files = this.current;
+        int row = files.find(id.hashCode(), id.getBytes(StandardCharsets.UTF_8), files.rowCount);
+        if (row < 0 || files.isDead(row)) {
+            return null;
+        }
+        return new ReplicatedEntity(id, files.rows.getLong(row, SEQUENCE), files.readValues(row));
+    }
+
+    @Override
+    public Iterator<ReplicatedEntity> after(long since) {
+        Generation files = this.current;
+        long count = files.rowCount;
+        //rows are in sequence order, find first row after given sequence
+        long low = 0;
+        long high = count;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (files.rows.getLong(middle, SEQUENCE) <= since) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        long first = low;
+        return new Iterator<ReplicatedEntity>() {
+            private long row = skipDead(first);
+
+            private long skipDead(long from) {
+                long next = from;
+                while (next < count && files.isDead(next)) {
+                    next++;
+                }
+                return next;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return this.row < count;
+            }
+
+            @Override
+            public ReplicatedEntity next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                long current = this.row;
+                this.row = skipDead(current + 1);
+                return new ReplicatedEntity(
+                        new String(files.ids.read(files.rows.getLong(current, ID_OFFSET)), StandardCharsets.UTF_8),
+                        files.rows.getLong(current, SEQUENCE), files.readValues(current));
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return this.live;
+    }
+
+    /**
+     * Makes changes durable, store is compacted afterwards if most of its rows are dead
+     */
+    @Override
+    public void commit() {
+        if (!this.dirty) {
+            return;
+        }
+        this.current.force();
+        saveMeta(false);
+        this.dirty = false;
+        long dead = this.current.rowCount - this.live;
+        if (dead > Math.max(this.live, MIN_DEAD_ROWS)) {
+            compact();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            commit();
+        } finally {
+            this.current.close();
+        }
+    }
+
+    @Override
+    public void drop() {
+        this.current.close();
+        try {
+            deleteFiles();
+        } catch (IOException ex) {
+            LOGGER.warn("Couldn't delete replica store {}. Reason: {}", this.dir, ex.getMessage());
+        }
+    }
+
+    /**
+     * Copies live rows to next generation of files, readers switch to it at once. Files of the old generation are
+     * deleted, but stay mapped for readers still iterating them: every segment such reader can reach was mapped
+     * while live rows were copied.
+     */
+    private void compact() {
+        Generation old = this.current;
+        long started = System.currentTimeMillis();
+        Generation compacted;
+        try {
+            deleteFiles(this.dir.resolve(GENERATION + (old.number + 1)));
+            compacted = new Generation(old.number + 1, new Properties());
+        } catch (IOException ex) {
+            LOGGER.warn("Couldn't compact replica store {}. Reason: {}", this.dir, ex.getMessage());
+            return;
+        }
+        for (long row = 0; row < old.rowCount; row++) {
+            if (old.isDead(row)) {
+                continue;
+            }
+            byte[] id = old.ids.read(old.rows.getLong(row, ID_OFFSET));
+            long rowId = compacted.rowCount;
+            compacted.append(old.rows.getLong(row, SEQUENCE), compacted.ids.append(id), old.readValues(row));
+            compacted.idIndex.put(new String(id, StandardCharsets.UTF_8).hashCode(), (int) rowId,
+                    (candidate) -> false);
+        }
+        compacted.force();
+        this.current = compacted;
+        saveMeta(false);
+        old.close();
+        try {
+            deleteFiles(old.dir);
+        } catch (IOException ex) {
+            LOGGER.warn("Couldn't delete compacted files of {}. Reason: {}", this.dir, ex.getMessage());
+        }
+        LOGGER.info("Compacted replica store {} from {} to {} rows in {} ms", this.dir, old.rowCount,
+                compacted.rowCount, System.currentTimeMillis() - started);
+    }
+
+    /**
+     * Marks store as modified on disk before the first change after commit
+     */
+    private void markDirty() {
+        if (!this.dirty) {
+            this.dirty = true;
+            saveMeta(true);
+        }
+    }
+
+    private boolean isInteger(int slot) {
+        return "integer".equals(this.mapper.getType(slot));
+    }
+
+    private String describeType() {
+        StringBuilder type = new StringBuilder();
+        for (int slot = 0; slot < this.mapper.size(); slot++) {
+            type.append(this.mapper.getName(slot)).append(':').append(this.mapper.getType(slot)).append('|');
+        }
+        return type.toString();
+    }
+
+    private Properties loadMeta() {
+        Path file = this.dir.resolve(META_FILE);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        Properties meta = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            meta.load(in);
+        } catch (IOException ex) {
+            LOGGER.warn("Couldn't read replica store {}, replicating again. Reason: {}", this.dir, ex.getMessage());
+            return null;
+        }
+        if (!FORMAT.equals(meta.getProperty("format")) || !describeType().equals(meta.getProperty("type"))) {
+            LOGGER.info("Replica store {} was created for different type, replicating again", this.dir);
+            return null;
+        }
+        if (Boolean.parseBoolean(meta.getProperty("dirty"))) {
+            LOGGER.warn("Replica store {} wasn't committed after last change, replicating again", this.dir);
+            return null;
+        }
+        return meta;
+    }
+
+    private void saveMeta(boolean dirtyState) {
+        Properties meta = new Properties();
+        meta.setProperty("format", FORMAT);
+        meta.setProperty("type", describeType());
+        meta.setProperty("dirty", Boolean.toString(dirtyState));
+        meta.setProperty("sequence", Long.toString(this.sequence));
+        meta.setProperty("live", Integer.toString(this.live));
+        this.current.save(meta);
+        Path file = this.dir.resolve(META_FILE);
+        Path tmp = this.dir.resolve(META_FILE + ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                meta.store(out, null);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Couldn't write replica store " + this.dir, ex);
+        }
+    }
+
+    /**
+     * Deletes generations left over by compaction which didn't finish or whose files couldn't be deleted
+     */
+    private void deleteOtherGenerations(int number) throws IOException {
+        Path kept = this.dir.resolve(GENERATION + number);
+        List<Path> others;
+        try (Stream<Path> files = Files.list(this.dir)) {
+            others = files.filter((file) -> file.getFileName().toString().startsWith(GENERATION))
+                    .filter((file) -> !file.equals(kept))
+                    .collect(Collectors.toList());
+        }
+        for (Path other : others) {
+            deleteFiles(other);
+        }
+    }
+
+    private void deleteFiles() throws IOException {
+        deleteFiles(this.dir);
+    }
+
+    private static void deleteFiles(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach((file) -> file.toFile().delete());
+        }
+    }
+
+    /**
+     * Files of the store, compaction replaces them with next generation
+     */
+    private final class Generation {
+
+        private final int number;
+        private final Path dir;
+        private final MappedColumn rows;
+        private final MappedHeap ids;
+        private final MappedHashIndex idIndex;
+        private final MappedColumn[] columns;
+        private final MappedDictionary[] dictionaries;
+        private volatile long rowCount;
+
+        Generation(int number, Properties meta) throws IOException {
+            this.number = number;
+            this.dir = MappedEntityStore.this.dir.resolve(GENERATION + number);
+            Files.createDirectories(this.dir);
+            this.rowCount = Long.parseLong(meta.getProperty("rows", "0"));
+            this.rows = new MappedColumn(this.dir.resolve("rows.col"), ROW_WIDTH);
+            this.ids = new MappedHeap(this.dir, "ids", meta);
+            this.idIndex = new MappedHashIndex(this.dir, "ids", meta);
+            int slots = MappedEntityStore.this.mapper.size();
+            this.columns = new MappedColumn[slots];
+            this.dictionaries = new MappedDictionary[slots];
+            for (int slot = 0; slot < slots; slot++) {
+                if (isInteger(slot)) {
+                    this.columns[slot] = new MappedColumn(this.dir.resolve("slot-" + slot + ".col"), 9);
+                } else {
+                    this.columns[slot] = new MappedColumn(this.dir.resolve("slot-" + slot + ".col"), 4);
+                    this.dictionaries[slot] = new MappedDictionary(this.dir, "slot-" + slot, meta);
+                }
+            }
+        }
+
+        /**
+         *
+         * @param hash hash of _id
+         * @param id _id bytes
+         * @param count number of rows visible to the caller
+         * @return latest row of given _id or -1
+         */
+        int find(int hash, byte[] id, long count) {
+            return this.idIndex.find(hash,
+                    (candidate) -> candidate < count && this.ids.equalsAt(this.rows.getLong(candidate, ID_OFFSET), id));
+        }
+
+        /**
+         * Writes next row, the row becomes visible to readers once it is complete
+         */
+        void append(long rowSequence, long idOffset, EntityMapper.Values values) {
+            long row = this.rowCount;
+            this.rows.putLong(row, SEQUENCE, rowSequence);
+            this.rows.putLong(row, ID_OFFSET, idOffset);
+            this.rows.put(row, FLAGS, (byte) 0);
+            for (int slot = 0; slot < this.columns.length; slot++) {
+                writeValue(row, slot, values);
+            }
+            this.rowCount = row + 1;
+        }
+
+        boolean isDead(long row) {
+            return this.rows.get(row, FLAGS) == DEAD;
+        }
+
+        private void writeValue(long row, int slot, EntityMapper.Values values) {
+            MappedColumn column = this.columns[slot];
+            Object value = values.isPresent(slot) ? values.get(slot) : null;
+            if (isInteger(slot)) {
+                if (!values.isPresent(slot)) {
+                    column.put(row, 0, ABSENT);
+                } else if (null == value) {
+                    column.put(row, 0, NULL);
+                } else {
+                    column.put(row, 0, VALUE);
+                    column.putLong(row, 1, ((Number) value).longValue());
+                }
+            } else if (!values.isPresent(slot)) {
+                column.putInt(row, 0, ABSENT_CODE);
+            } else if (null == value) {
+                column.putInt(row, 0, NULL_CODE);
+            } else {
+                column.putInt(row, 0, this.dictionaries[slot].encode(value.toString()));
+            }
+        }
+
+        EntityMapper.Values readValues(long row) {
+            EntityMapper.Values values = MappedEntityStore.this.mapper.newValues();
+            for (int slot = 0; slot < this.columns.length; slot++) {
+                MappedColumn column = this.columns[slot];
+                if (isInteger(slot)) {
+                    byte state = column.get(row, 0);
+                    if (state != ABSENT) {
+                        values.set(slot, state == VALUE ? column.getLong(row, 1) : null);
+                    }
+                } else {
+                    int code = column.getInt(row, 0);
+                    if (code != ABSENT_CODE) {
+                        values.set(slot, code == NULL_CODE ? null : this.dictionaries[slot].decode(code));
+                    }
+                }
+            }
+            return values;
+        }
+
+        void force() {
+            this.rows.force();
+            this.ids.force();
+            this.idIndex.force();
+            for (int slot = 0; slot < this.columns.length; slot++) {
+                this.columns[slot].force();
+                if (null != this.dictionaries[slot]) {
+                    this.dictionaries[slot].force();
+                }
+            }
+        }
+
+        void save(Properties meta) {
+            meta.setProperty("generation", Integer.toString(this.number));
+            meta.setProperty("rows", Long.toString(this.rowCount));
+            this.ids.save(meta);
+            this.idIndex.save(meta);
+            for (MappedDictionary dictionary : this.dictionaries) {
+                if (null != dictionary) {
+                    dictionary.save(meta);
+                }
+            }
+        }
+
+        void close() {
+            this.rows.close();
+            this.ids.close();
+            this.idIndex.close();
+            for (int slot = 0; slot < this.columns.length; slot++) {
+                this.columns[slot].close();
+                if (null != this.dictionaries[slot]) {
+                    this.dictionaries[slot].close();
+                }
+            }
+        }
+    }
+}
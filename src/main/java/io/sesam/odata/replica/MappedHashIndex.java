@@ -0,0 +1,166 @@
+package io.sesam.odata.replica;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+
+/**
+ * Open addressing hash table in mapped file from key hash to int reference. Keys themselves are stored elsewhere and
+ * compared through given predicate. Zero filled file is an empty table, so new table needs no initialization.
+ * <p>
+ * Single writer puts while readers find concurrently. Grown table replaces the old one under write lock, so the old
+ * table is retired only after all lookups in it have finished.</p>
+ */
+final class MappedHashIndex implements Closeable {
+
+    private static final int MIN_CAPACITY = 1 << 10;
+    //entry is key hash and reference + 1, 0 marks empty entry
+    private static final int WIDTH = 8;
+
+    private final Path dir;
+    private final String name;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile Table table;
+    private int size;
+
+    MappedHashIndex(Path dir, String name, Properties meta) {
+        this.dir = dir;
+        this.name = name;
+        int capacity = Integer.parseInt(meta.getProperty(name + ".capacity", Integer.toString(MIN_CAPACITY)));
+        this.size = Integer.parseInt(meta.getProperty(name + ".size", "0"));
+        this.table = open(capacity);
+    }
+
+    /**
+     *
+     * @param hash key hash
+     * @param matches tells if key of given reference is the searched one
+     * @return reference or -1 if key is not indexed
+     */
+    int find(int hash, IntPredicate matches) {
+        this.lock.readLock().lock();
+        try {
+            Table current = this.table;
+            for (int i = spread(hash) & current.mask;; i = (i + 1) & current.mask) {
+                int reference = current.entries.getInt(i, 4);
+                if (reference == 0) {
+                    return -1;
+                }
+                if (current.entries.getInt(i, 0) == hash && matches.test(reference - 1)) {
+                    return reference - 1;
+                }
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds key or replaces reference of already indexed key
+     *
+     * @param hash key hash
+     * @param reference
+     * @param matches tells if key of given reference is the one being put
+     */
+    void put(int hash, int reference, IntPredicate matches) {
+        Table current = this.table;
+        for (int i = spread(hash) & current.mask;; i = (i + 1) & current.mask) {
+            int existing = current.entries.getInt(i, 4);
+            if (existing == 0) {
+                current.entries.putInt(i, 0, hash);
+                current.entries.putInt(i, 4, reference + 1);
+                if (++this.size * 2 > current.capacity()) {
+                    grow(current);
+                }
+                return;
+            }
+            if (current.entries.getInt(i, 0) == hash && matches.test(existing - 1)) {
+                current.entries.putInt(i, 4, reference + 1);
+                return;
+            }
+        }
+    }
+
+    private void grow(Table old) {
+        int grownCapacity = old.capacity() * 2;
+        try {
+            Path grownFile = file(grownCapacity);
+            Files.deleteIfExists(grownFile);
+            Table grown = open(grownCapacity);
+            for (int i = 0; i < old.capacity(); i++) {
+                int reference = old.entries.getInt(i, 4);
+                if (reference == 0) {
+                    continue;
+                }
+                int hash = old.entries.getInt(i, 0);
+                int j = spread(hash) & grown.mask;
+                while (grown.entries.getInt(j, 4) != 0) {
+                    j = (j + 1) & grown.mask;
+                }
+                grown.entries.putInt(j, 0, hash);
+                grown.entries.putInt(j, 4, reference);
+            }
+            //waits for lookups still running in the old table
+            this.lock.writeLock().lock();
+            try {
+                this.table = grown;
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+            old.entries.close();
+            Files.deleteIfExists(file(old.capacity()));
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Couldn't grow index " + this.name, ex);
+        }
+    }
+
+    private Table open(int capacity) {
+        return new Table(new MappedColumn(file(capacity), WIDTH, Math.min(capacity, 1 << 20)), capacity - 1);
+    }
+
+    private Path file(int tableCapacity) {
+        return this.dir.resolve(this.name + "." + tableCapacity + ".idx");
+    }
+
+    private static int spread(int hash) {
+        return (hash ^ (hash >>> 16)) * 0x9E3779B1;
+    }
+
+    void save(Properties meta) {
+        meta.setProperty(this.name + ".capacity", Integer.toString(this.table.capacity()));
+        meta.setProperty(this.name + ".size", Integer.toString(this.size));
+    }
+
+    void force() {
+        this.table.entries.force();
+    }
+
+    @Override
+    public void close() {
+        this.table.entries.close();
+    }
+
+    /**
+     * Table file with its mask, published together so a lookup never mixes them up
+     */
+    private static final class Table {
+
+        private final MappedColumn entries;
+        private final int mask;
+
+        Table(MappedColumn entries, int mask) {
+            this.entries = entries;
+            this.mask = mask;
+        }
+
+        int capacity() {
+            return this.mask + 1;
+        }
+    }
+}
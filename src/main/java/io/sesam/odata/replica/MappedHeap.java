@@ -0,0 +1,89 @@
+package io.sesam.odata.replica;
+
+import java.io.Closeable;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Append only file of length prefixed byte strings addressed by offset
+ */
+final class MappedHeap implements Closeable {
+
+    private static final int FIRST_SEGMENT_SIZE = 1 << 16;
+    private static final int SEGMENT_SIZE = 1 << 26;
+
+    private final MappedColumn bytes;
+    private final String name;
+    private long end;
+
+    MappedHeap(Path dir, String name, Properties meta) {
+        this.name = name;
+        this.bytes = new MappedColumn(dir.resolve(name + ".heap"), 1, FIRST_SEGMENT_SIZE, SEGMENT_SIZE);
+        this.end = Long.parseLong(meta.getProperty(name + ".end", "0"));
+    }
+
+    /**
+     *
+     * @param value
+     * @return offset of stored value
+     */
+    long append(byte[] value) {
+        long offset = this.end;
+        int length = value.length;
+        for (int i = 0; i < 4; i++) {
+            this.bytes.put(offset + i, 0, (byte) (length >>> (24 - 8 * i)));
+        }
+        for (int i = 0; i < length; i++) {
+            this.bytes.put(offset + 4 + i, 0, value[i]);
+        }
+        this.end = offset + 4 + length;
+        return offset;
+    }
+
+    byte[] read(long offset) {
+        byte[] value = new byte[length(offset)];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = this.bytes.get(offset + 4 + i, 0);
+        }
+        return value;
+    }
+
+    /**
+     *
+     * @param offset
+     * @param value
+     * @return true if value stored at given offset equals to given value
+     */
+    boolean equalsAt(long offset, byte[] value) {
+        if (length(offset) != value.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (this.bytes.get(offset + 4 + i, 0) != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int length(long offset) {
+        int length = 0;
+        for (int i = 0; i < 4; i++) {
+            length = (length << 8) | (this.bytes.get(offset + i, 0) & 0xff);
+        }
+        return length;
+    }
+
+    void save(Properties meta) {
+        meta.setProperty(this.name + ".end", Long.toString(this.end));
+    }
+
+    void force() {
+        this.bytes.force();
+    }
+
+    @Override
+    public void close() {
+        this.bytes.close();
+    }
+}
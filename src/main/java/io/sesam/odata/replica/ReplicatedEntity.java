@@ -0,0 +1,37 @@
+package io.sesam.odata.replica;
+
+import io.sesam.odata.edm.EntityMapper;
+
+/**
+ * Latest version of replicated Sesam entity
+ */
+public final class ReplicatedEntity {
+
+    private final String id;
+    private final long sequence;
+    private final EntityMapper.Values values;
+
+    /**
+     *
+     * @param id Sesam _id
+     * @param sequence Sesam _updated
+     * @param values property values by slot of the dataset type mapper
+     */
+    public ReplicatedEntity(String id, long sequence, EntityMapper.Values values) {
+        this.id = id;
+        this.sequence = sequence;
+        this.values = values;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public EntityMapper.Values getValues() {
+        return values;
+    }
+}
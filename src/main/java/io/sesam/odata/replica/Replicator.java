@@ -0,0 +1,249 @@
+package io.sesam.odata.replica;
+
+import io.sesam.odata.edm.EdmSchema;
+import io.sesam.odata.edm.EntityMapper;
+import io.sesam.odata.edm.SesamEdmProvider;
+import io.sesam.odata.infrastructure.SesamDataLoader;
+import io.sesam.odata.infrastructure.Settings;
+import io.sesam.odata.infrastructure.models.Dataset;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Optional replication of all registered datasets into local entity stores. Every dataset follows its own change feed
+ * incrementally, requests are served from replica as soon as it has caught up with Sesam once.
+ */
+public class Replicator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Replicator.class);
+
+    /**
+     * Env variable to switch on replication (disabled by default)
+     */
+    public static final String REPLICATION = "SESAM_REPLICATION";
+    /**
+     * Interval in ms between change feed polls
+     */
+    public static final String INTERVAL = "SESAM_REPLICATION_INTERVAL";
+    /**
+     * Max number of entities read from change feed in one request
+     */
+    public static final String BATCH_SIZE = "SESAM_REPLICATION_BATCH";
+    /**
+     * Number of datasets synchronized in parallel
+     */
+    public static final String THREADS = "SESAM_REPLICATION_THREADS";
+    /**
+     * Entity store used for replicas: heap (default) or mapped
+     */
+    public static final String STORE = "SESAM_REPLICA_STORE";
+    /**
+     * Directory of mapped replica stores
+     */
+    public static final String STORE_DIR = "SESAM_REPLICA_DIR";
+    /**
+     * Properties to build secondary indexes for, as TypeName:property,property;OtherType:property
+     */
+    public static final String INDEXES = "SESAM_REPLICA_INDEXES";
+    /**
+     * Response header with ms since served replica was last in sync with Sesam
+     */
+    public static final String LAG_HEADER = "Sesam-Replica-Lag";
+
+    private final SesamDataLoader loader;
+    private final long interval;
+    private final int batchSize;
+    private final boolean mapped;
+    private final Path storeDir;
+    private final Map<String, List<String>> indexedProperties;
+    private final Map<String, DatasetReplica> replicas = new ConcurrentHashMap<>(16);
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService workers;
+
+    public Replicator(SesamDataLoader loader) {
+        this.loader = loader;
+        this.interval = Math.max(100, Settings.getLong(INTERVAL, 5000));
+        this.batchSize = Math.max(1, Settings.getInt(BATCH_SIZE, 10000));
+        this.mapped = "mapped".equalsIgnoreCase(Settings.getString(STORE, "heap"));
+        this.storeDir = Paths.get(Settings.getString(STORE_DIR,
+                Paths.get(System.getProperty("java.io.tmpdir"), "sesam-odata-replica").toString()));
+        this.indexedProperties = parseIndexes(Settings.getString(INDEXES, ""));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "replication-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, Settings.getInt(THREADS, 4)), (runnable) -> {
+            Thread thread = new Thread(runnable, "replication-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     *
+     * @return true if replication is switched on
+     */
+    public static boolean isEnabled() {
+        return Settings.getBoolean(REPLICATION, false);
+    }
+
+    public void start() {
+        this.scheduler.scheduleWithFixedDelay(this::tick, 0, this.interval, TimeUnit.MILLISECONDS);
+        LOGGER.info("Replication to {} store started, change feeds polled every {} ms",
+                this.mapped ? this.storeDir : "heap", this.interval);
+    }
+
+    public void stop() {
+        this.scheduler.shutdownNow();
+        this.workers.shutdownNow();
+        this.replicas.values().forEach((replica) -> replica.getStore().close());
+        this.replicas.clear();
+    }
+
+    /**
+     * Returns replica which can serve given dataset with given type mapper
+     *
+     * @param datasetId
+     * @param mapper mapper of the schema version request is served by
+     * @return ready replica or null if request must be served from Sesam, replica store may be read only under
+     * {@link DatasetReplica#acquire() lease}
+     */
+    public DatasetReplica getReplica(String datasetId, EntityMapper mapper) {
+        DatasetReplica replica = this.replicas.get(datasetId);
+        if (null == replica || replica.getMapper() != mapper || !replica.isReady()) {
+            return null;
+        }
+        return replica;
+    }
+
+    /**
+     * Aligns replicas with current schema and starts synchronization of idle replicas
+     */
+    private void tick() {
+        try {
+            EdmSchema schema = SesamEdmProvider.getSchema();
+            Set<String> registered = new HashSet<>(schema.getDatasets().size() * 2);
+            schema.getDatasets().forEach((name, dataset) -> {
+                registered.add(dataset.getId());
+                try {
+                    align(name, dataset, schema.getEntityMapper(name));
+                } catch (UncheckedIOException ex) {
+                    LOGGER.warn("Couldn't replicate dataset {}. Reason: {}", dataset.getId(), ex.getMessage());
+                }
+            });
+            this.replicas.values().removeIf((replica) -> {
+                if (registered.contains(replica.getDatasetId()) || !replica.drop()) {
+                    return false;
+                }
+                LOGGER.info("Dataset {} is not exposed any more, replica dropped", replica.getDatasetId());
+                return true;
+            });
+            this.replicas.values().stream()
+                    .filter((replica) -> !replica.isSyncing())
+                    .forEach((replica) -> this.workers.execute(() -> sync(replica)));
+        } catch (RuntimeException ex) {
+            LOGGER.warn("Replication scheduling failed. Reason: {}", ex.getMessage());
+        }
+    }
+
+    private void align(String name, Dataset dataset, EntityMapper mapper) {
+        DatasetReplica replica = this.replicas.get(dataset.getId());
+        if (null != replica && replica.getMapper() == mapper) {
+            return;
+        }
+        if (null != replica) {
+            if (!replica.drop()) {
+                //replaced on next tick when synchronization is finished
+                return;
+            }
+            LOGGER.info("Type of dataset {} changed, replicating it from the beginning", dataset.getId());
+        }
+        this.replicas.put(dataset.getId(), new DatasetReplica(dataset.getId(), mapper, createStore(dataset, mapper),
+                indexedSlots(name, mapper)));
+    }
+
+    private List<Integer> indexedSlots(String name, EntityMapper mapper) {
+        List<Integer> slots = new ArrayList<>();
+        for (String property : this.indexedProperties.getOrDefault(name, Collections.emptyList())) {
+            int slot = mapper.slotOf(property);
+            if (slot < 0) {
+                LOGGER.warn("Type {} has no property {}, index skipped", name, property);
+            } else {
+                slots.add(slot);
+            }
+        }
+        return slots;
+    }
+
+    private static Map<String, List<String>> parseIndexes(String definition) {
+        Map<String, List<String>> indexes = new HashMap<>(8);
+        for (String typeIndexes : definition.split(";")) {
+            String[] parts = typeIndexes.split(":", 2);
+            if (parts.length != 2) {
+                continue;
+            }
+            List<String> properties = new ArrayList<>();
+            for (String property : parts[1].split(",")) {
+                if (!property.trim().isEmpty()) {
+                    properties.add(property.trim());
+                }
+            }
+            indexes.put(parts[0].trim(), properties);
+        }
+        return indexes;
+    }
+
+    private EntityStore createStore(Dataset dataset, EntityMapper mapper) {
+        if (!this.mapped) {
+            return new HeapEntityStore();
+        }
+        try {
+            return new MappedEntityStore(this.storeDir.resolve(dataset.getId()), mapper);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Couldn't open replica store of " + dataset.getId(), ex);
+        }
+    }
+
+    private void sync(DatasetReplica replica) {
+        if (this.replicas.get(replica.getDatasetId()) != replica) {
+            //replaced or dropped meanwhile
+            return;
+        }
+        try {
+            replica.sync(this.loader, this.batchSize);
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.warn("Replication of dataset {} failed at sequence {}. Reason: {}", replica.getDatasetId(),
+                    replica.getStore().getSequence(), ex.getMessage());
+        }
+    }
+
+    /**
+     *
+     * @return replication statistics by dataset
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new TreeMap<>();
+        this.replicas.forEach((datasetId, replica) -> stats.put(datasetId, replica.getStats()));
+        return stats;
+    }
+}
@@ -0,0 +1,126 @@
+package io.sesam.odata.replica;
+
+import io.sesam.odata.edm.EntityMapper;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Secondary indexes of replicated entities from property value to entity ids. String properties get hash index for
+ * equality lookups, integer and datetime properties get sorted index which answers both equality and range lookups.
+ * Indexes are maintained by replication thread together with the store, lookups return candidates which still have to
+ * be checked against the full filter.
+ */
+public class SecondaryIndexes {
+
+    private final EntityMapper mapper;
+    private final Map<Integer, ConcurrentMap<Object, Set<String>>> indexes = new LinkedHashMap<>(8);
+
+    /**
+     *
+     * @param mapper
+     * @param slots indexed property slots
+     */
+    SecondaryIndexes(EntityMapper mapper, List<Integer> slots) {
+        this.mapper = mapper;
+        for (Integer slot : slots) {
+            this.indexes.put(slot, isSorted(slot) ? new ConcurrentSkipListMap<>() : new ConcurrentHashMap<>(1024));
+        }
+    }
+
+    boolean isEmpty() {
+        return this.indexes.isEmpty();
+    }
+
+    void add(ReplicatedEntity entity) {
+        this.indexes.forEach((slot, index) -> {
+            Object key = key(slot, entity.getValues());
+            if (null != key) {
+                index.computeIfAbsent(key, (k) -> ConcurrentHashMap.newKeySet()).add(entity.getId());
+            }
+        });
+    }
+
+    void remove(ReplicatedEntity entity) {
+        this.indexes.forEach((slot, index) -> {
+            Object key = key(slot, entity.getValues());
+            if (null != key) {
+                index.computeIfPresent(key, (k, ids) -> {
+                    ids.remove(entity.getId());
+                    return ids.isEmpty() ? null : ids;
+                });
+            }
+        });
+    }
+
+    /**
+     *
+     * @param slot
+     * @param values normalized values (long, instant or string)
+     * @return ids of entities with any of given values or null if property isn't indexed
+     */
+    public Set<String> equal(int slot, Collection<Object> values) {
+        Map<Object, Set<String>> index = this.indexes.get(slot);
+        if (null == index) {
+            return null;
+        }
+        Set<String> ids = new HashSet<>();
+        for (Object value : values) {
+            Set<String> matching = index.get(value);
+            if (null != matching) {
+                ids.addAll(matching);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     *
+     * @param slot
+     * @param from lower bound or null
+     * @param fromInclusive
+     * @param to upper bound or null
+     * @param toInclusive
+     * @return ids of entities with values in given range or null if property has no sorted index
+     */
+    public Set<String> range(int slot, Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        Map<Object, Set<String>> index = this.indexes.get(slot);
+        if (!(index instanceof NavigableMap)) {
+            return null;
+        }
+        NavigableMap<Object, Set<String>> sorted = (NavigableMap<Object, Set<String>>) index;
+        if (null != from && null != to) {
+            sorted = sorted.subMap(from, fromInclusive, to, toInclusive);
+        } else if (null != from) {
+            sorted = sorted.tailMap(from, fromInclusive);
+        } else if (null != to) {
+            sorted = sorted.headMap(to, toInclusive);
+        }
+        Set<String> ids = new HashSet<>();
+        sorted.values().forEach(ids::addAll);
+        return ids;
+    }
+
+    private boolean isSorted(int slot) {
+        String type = this.mapper.getType(slot);
+        return "integer".equals(type) || "datetime".equals(type);
+    }
+
+    private Object key(int slot, EntityMapper.Values values) {
+        return values.isPresent(slot) ? this.mapper.toComparable(slot, values.get(slot)) : null;
+    }
+
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>(8);
+        this.indexes.forEach((slot, index) -> stats.put(this.mapper.getName(slot),
+                (index instanceof NavigableMap ? "sorted, " : "hash, ") + index.size() + " keys"));
+        return stats;
+    }
+}
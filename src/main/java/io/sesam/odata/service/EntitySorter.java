@@ -0,0 +1,358 @@
+package io.sesam.odata.service;
+
+import io.sesam.odata.edm.EntityMapper;
+import io.sesam.odata.infrastructure.Settings;
+import io.sesam.odata.replica.ReplicatedEntity;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import org.apache.olingo.server.api.ODataApplicationException;
+import org.apache.olingo.server.api.uri.queryoption.OrderByItem;
+import org.apache.olingo.server.api.uri.queryoption.OrderByOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sorts entities by $orderby and returns a window of the sorted result. Small windows are selected with bounded heap
+ * holding only entities up to the end of the window. Larger ones are sorted externally: sorted runs of fixed size are
+ * spilled to temp files and merged, so memory use doesn't depend on dataset size.
+ */
+final class EntitySorter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EntitySorter.class);
+
+    /**
+     * Max window end selected on heap, larger windows are sorted externally
+     */
+    public static final String HEAP_LIMIT_ENV = "SESAM_SORT_HEAP_LIMIT";
+    /**
+     * Number of entities in one sorted run spilled to disk
+     */
+    public static final String RUN_SIZE_ENV = "SESAM_SORT_RUN_SIZE";
+    /**
+     * Directory for spilled runs
+     */
+    public static final String SORT_DIR_ENV = "SESAM_SORT_DIR";
+
+    private static final long HEAP_LIMIT = Settings.getLong(HEAP_LIMIT_ENV, 10000);
+    private static final int RUN_SIZE = Math.max(1000, Settings.getInt(RUN_SIZE_ENV, 100000));
+    private static final Path SORT_DIR = Paths.get(Settings.getString(SORT_DIR_ENV,
+            System.getProperty("java.io.tmpdir")));
+
+    private static final byte ABSENT = 0;
+    private static final byte NULL = 1;
+    private static final byte LONG = 2;
+    private static final byte STRING = 3;
+
+    private final EntityMapper mapper;
+    private final List<Function<EntityMapper.Values, Object>> keys;
+    private final Comparator<Sortable> order;
+    private final long heapLimit;
+    private final int runSize;
+
+    /**
+     *
+     * @param orderBy
+     * @param mapper
+     * @param referenced slots of properties referenced by the order are added here, may be null
+     * @throws ODataApplicationException if order expression isn't valid or supported
+     */
+    EntitySorter(OrderByOption orderBy, EntityMapper mapper, BitSet referenced) throws ODataApplicationException {
+        this(orderBy, mapper, referenced, HEAP_LIMIT, RUN_SIZE);
+    }
+
+    /**
+     *
+     * @param orderBy
+     * @param mapper
+     * @param referenced slots of properties referenced by the order are added here, may be null
+     * @param heapLimit max window end selected on heap
+     * @param runSize number of entities in one sorted run spilled to disk
+     * @throws ODataApplicationException if order expression isn't valid or supported
+     */
+    EntitySorter(OrderByOption orderBy, EntityMapper mapper, BitSet referenced, long heapLimit, int runSize)
+            throws ODataApplicationException {
+        this.mapper = mapper;
+        this.heapLimit = heapLimit;
+        this.runSize = runSize;
+        this.keys = new ArrayList<>(orderBy.getOrders().size());
+        Comparator<Sortable> comparator = null;
+        for (OrderByItem item : orderBy.getOrders()) {
+            int index = this.keys.size();
+            this.keys.add(FilterCompiler.compileValue(item.getExpression(), mapper, referenced));
+            Comparator<Sortable> byKey = (a, b) -> compareNullsFirst(a.keys[index], b.keys[index]);
+            if (item.isDescending()) {
+                byKey = byKey.reversed();
+            }
+            comparator = null == comparator ? byKey : comparator.thenComparing(byKey);
+        }
+        //sequence makes the order total, so pages of the same result never overlap
+        Comparator<Sortable> bySequence = Comparator.comparingLong((sortable) -> sortable.entity.getSequence());
+        this.order = null == comparator ? bySequence : comparator.thenComparing(bySequence);
+    }
+
+    /**
+     *
+     * @param source entities to sort
+     * @param filter $filter predicate or null
+     * @param start index of the first entity of the window in sorted result
+     * @param end index after the last entity of the window
+     * @return sorted entities of the window
+     */
+    List<ReplicatedEntity> window(Iterator<ReplicatedEntity> source, Predicate<EntityMapper.Values> filter,
+            long start, long end) {
+        if (end <= this.heapLimit) {
+            return heapWindow(source, filter, start, (int) end);
+        }
+        return externalWindow(source, filter, start, end);
+    }
+
+    /**
+     * Bounded top-k selection, heap keeps the k smallest entities with the largest on top
+     */
+    private List<ReplicatedEntity> heapWindow(Iterator<ReplicatedEntity> source, Predicate<EntityMapper.Values> filter,
+            long start, int end) {
+        if (end <= 0) {
+            return Collections.emptyList();
+        }
+        PriorityQueue<Sortable> heap = new PriorityQueue<>(Math.min(end, 1024) + 1, this.order.reversed());
+        while (source.hasNext()) {
+            ReplicatedEntity entity = source.next();
+            if (null != filter && !filter.test(entity.getValues())) {
+                continue;
+            }
+            Sortable candidate = new Sortable(entity, keysOf(entity.getValues()));
+            if (heap.size() < end) {
+                heap.add(candidate);
+            } else if (this.order.compare(candidate, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(candidate);
+            }
+        }
+        List<Sortable> sorted = new ArrayList<>(heap);
+        sorted.sort(this.order);
+        return toEntities(sorted, start, end);
+    }
+
+    private List<ReplicatedEntity> externalWindow(Iterator<ReplicatedEntity> source,
+            Predicate<EntityMapper.Values> filter, long start, long end) {
+        List<Path> runs = new ArrayList<>();
+        try {
+            List<Sortable> run = new ArrayList<>(Math.min(this.runSize, 1024));
+            while (source.hasNext()) {
+                ReplicatedEntity entity = source.next();
+                if (null != filter && !filter.test(entity.getValues())) {
+                    continue;
+                }
+                run.add(new Sortable(entity, keysOf(entity.getValues())));
+                if (run.size() == this.runSize) {
+                    runs.add(spill(run, end));
+                    run.clear();
+                }
+            }
+            run.sort(this.order);
+            if (runs.isEmpty()) {
+                return toEntities(run, start, end);
+            }
+            runs.add(spill(run, end));
+            LOGGER.debug("Merging {} sorted runs", runs.size());
+            return merge(runs, start, end);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Couldn't sort entities", ex);
+        } finally {
+            for (Path file : runs) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ex) {
+                    LOGGER.warn("Couldn't delete sorted run {}", file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes sorted run to temp file, entities after window end can't be in the window and aren't written
+     */
+    private Path spill(List<Sortable> run, long end) throws IOException {
+        run.sort(this.order);
+        Path file = Files.createTempFile(SORT_DIR, "sesam-sort-", ".run");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file),
+                1 << 16))) {
+            long limit = Math.min(run.size(), end);
+            for (int i = 0; i < limit; i++) {
+                write(out, run.get(i).entity);
+            }
+        }
+        return file;
+    }
+
+    private List<ReplicatedEntity> merge(List<Path> runs, long start, long end) throws IOException {
+        PriorityQueue<RunReader> heads = new PriorityQueue<>(runs.size(), (a, b) -> this.order.compare(a.head, b.head));
+        List<RunReader> readers = new ArrayList<>(runs.size());
+        try {
+            for (Path file : runs) {
+                RunReader reader = new RunReader(file);
+                readers.add(reader);
+                if (reader.advance()) {
+                    heads.add(reader);
+                }
+            }
+            List<ReplicatedEntity> window = new ArrayList<>((int) Math.min(end - start, 1024));
+            for (long position = 0; position < end && !heads.isEmpty(); position++) {
+                RunReader smallest = heads.poll();
+                if (position >= start) {
+                    window.add(smallest.head.entity);
+                }
+                if (smallest.advance()) {
+                    heads.add(smallest);
+                }
+            }
+            return window;
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private Object[] keysOf(EntityMapper.Values values) {
+        Object[] result = new Object[this.keys.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = this.keys.get(i).apply(values);
+        }
+        return result;
+    }
+
+    private static List<ReplicatedEntity> toEntities(List<Sortable> sorted, long start, long end) {
+        List<ReplicatedEntity> window = new ArrayList<>();
+        for (long i = start; i < Math.min(end, sorted.size()); i++) {
+            window.add(sorted.get((int) i).entity);
+        }
+        return window;
+    }
+
+    /**
+     * Null is less than any value as defined by OData
+     */
+    private static int compareNullsFirst(Object a, Object b) {
+        if (null == a || null == b) {
+            return null == a ? (null == b ? 0 : -1) : 1;
+        }
+        return FilterCompiler.compare(a, b);
+    }
+
+    private void write(DataOutputStream out, ReplicatedEntity entity) throws IOException {
+        writeString(out, entity.getId());
+        out.writeLong(entity.getSequence());
+        EntityMapper.Values values = entity.getValues();
+        for (int slot = 0; slot < this.mapper.size(); slot++) {
+            Object value = values.get(slot);
+            if (!values.isPresent(slot)) {
+                out.writeByte(ABSENT);
+            } else if (null == value) {
+                out.writeByte(NULL);
+            } else if (value instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong((Long) value);
+            } else {
+                out.writeByte(STRING);
+                writeString(out, value.toString());
+            }
+        }
+    }
+
+    private ReplicatedEntity read(DataInputStream in) throws IOException {
+        String id = readString(in);
+        long sequence = in.readLong();
+        EntityMapper.Values values = this.mapper.newValues();
+        for (int slot = 0; slot < this.mapper.size(); slot++) {
+            switch (in.readByte()) {
+                case NULL:
+                    values.set(slot, null);
+                    break;
+                case LONG:
+                    values.set(slot, in.readLong());
+                    break;
+                case STRING:
+                    values.set(slot, readString(in));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return new ReplicatedEntity(id, sequence, values);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Entity with precomputed sort keys
+     */
+    private static final class Sortable {
+
+        final ReplicatedEntity entity;
+        final Object[] keys;
+
+        Sortable(ReplicatedEntity entity, Object[] keys) {
+            this.entity = entity;
+            this.keys = keys;
+        }
+    }
+
+    /**
+     * Sequential reader of one spilled run
+     */
+    private final class RunReader implements Closeable {
+
+        private final DataInputStream in;
+        private Sortable head;
+
+        RunReader(Path file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+        }
+
+        boolean advance() throws IOException {
+            try {
+                ReplicatedEntity entity = read(this.in);
+                this.head = new Sortable(entity, keysOf(entity.getValues()));
+                return true;
+            } catch (EOFException ex) {
+                this.head = null;
+                return false;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.in.close();
+        }
+    }
+}
@@ -0,0 +1,754 @@
+package io.sesam.odata.service;
+
+import io.sesam.odata.edm.EntityMapper;
+import io.sesam.odata.replica.SecondaryIndexes;
+import java.time.Instant;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import org.apache.olingo.commons.api.edm.EdmEnumType;
+import org.apache.olingo.commons.api.edm.EdmType;
+import org.apache.olingo.commons.api.http.HttpStatusCode;
+import org.apache.olingo.server.api.ODataApplicationException;
+import org.apache.olingo.server.api.uri.UriResource;
+import org.apache.olingo.server.api.uri.UriResourcePrimitiveProperty;
+import org.apache.olingo.server.api.uri.queryoption.FilterOption;
+import org.apache.olingo.server.api.uri.queryoption.expression.BinaryOperatorKind;
+import org.apache.olingo.server.api.uri.queryoption.expression.Expression;
+import org.apache.olingo.server.api.uri.queryoption.expression.ExpressionVisitException;
+import org.apache.olingo.server.api.uri.queryoption.expression.ExpressionVisitor;
+import org.apache.olingo.server.api.uri.queryoption.expression.Literal;
+import org.apache.olingo.server.api.uri.queryoption.expression.Member;
+import org.apache.olingo.server.api.uri.queryoption.expression.MethodKind;
+import org.apache.olingo.server.api.uri.queryoption.expression.UnaryOperatorKind;
+
+/**
+ * Compiles $filter expression into predicate over entity values. Expression tree is walked once per request and
+ * turned into nested closures bound to property slots, so evaluating an entity doesn't touch the expression tree.
+ * <p>
+ * Supported are comparison, logical and arithmetic operators, startswith, endswith, contains, length, tolower, toupper
+ * and trim. Olingo doesn't parse "in" operator yet, chain of "eq" comparisons of one property joined by "or" is
+ * compiled into set membership test instead.</p>
+ */
+final class FilterCompiler {
+
+    private FilterCompiler() {
+    }
+
+    /**
+     * Value kinds filter operands are normalized to
+     */
+    enum Kind {
+        STRING, INTEGER, DATETIME, BOOLEAN, NULL
+    }
+
+    /**
+     * Compiled part of the expression
+     */
+    static final class Operand {
+
+        final Kind kind;
+        final Function<EntityMapper.Values, Object> value;
+        final Predicate<EntityMapper.Values> predicate;
+        final boolean constant;
+        //slot of property for member operand or of compared property for equality/membership test, -1 otherwise
+        final int slot;
+        //compared constants of equality/membership test
+        final Set<Object> members;
+        //lookup of candidate entities in secondary indexes, null if condition can't be answered from indexes
+        final Candidates candidates;
+
+        private Operand(Kind kind, Function<EntityMapper.Values, Object> value, Predicate<EntityMapper.Values> predicate,
+                boolean constant, int slot, Set<Object> members, Candidates candidates) {
+            this.kind = kind;
+            this.value = value;
+            this.predicate = predicate;
+            this.constant = constant;
+            this.slot = slot;
+            this.members = members;
+            this.candidates = candidates;
+        }
+
+        private Operand(Kind kind, Function<EntityMapper.Values, Object> value, Predicate<EntityMapper.Values> predicate,
+                boolean constant, int slot, Set<Object> members) {
+            this(kind, value, predicate, constant, slot, members, null);
+        }
+
+        static Operand value(Kind kind, Function<EntityMapper.Values, Object> value) {
+            return new Operand(kind, value, null, false, -1, null);
+        }
+
+        static Operand constant(Kind kind, Object constant) {
+            return new Operand(kind, (values) -> constant, null, true, -1, null);
+        }
+
+        static Operand member(Kind kind, int slot, Function<EntityMapper.Values, Object> value) {
+            return new Operand(kind, value, null, false, slot, null);
+        }
+
+        static Operand condition(Predicate<EntityMapper.Values> predicate) {
+            return new Operand(Kind.BOOLEAN, null, predicate, false, -1, null);
+        }
+
+        static Operand membership(int slot, Set<Object> members, Predicate<EntityMapper.Values> predicate) {
+            return new Operand(Kind.BOOLEAN, null, predicate, false, slot, members,
+                    (indexes) -> indexes.equal(slot, members));
+        }
+
+        static Operand indexed(Predicate<EntityMapper.Values> predicate, Candidates candidates) {
+            return new Operand(Kind.BOOLEAN, null, predicate, false, -1, null, candidates);
+        }
+
+        Object constantValue() {
+            return this.value.apply(null);
+        }
+    }
+
+    /**
+     * Lookup of entities which may match a condition
+     */
+    @FunctionalInterface
+    interface Candidates {
+
+        /**
+         *
+         * @param indexes
+         * @return ids of candidate entities or null if indexes can't answer the condition
+         */
+        Set<String> find(SecondaryIndexes indexes);
+    }
+
+    /**
+     *
+     * @param filterOption $filter of the request, may be null
+     * @param mapper property mapper of filtered entity type
+     * @return predicate or null if there is no filter
+     * @throws ODataApplicationException if expression isn't valid or supported
+     */
+    static Predicate<EntityMapper.Values> compile(FilterOption filterOption, EntityMapper mapper)
+            throws ODataApplicationException {
+        Operand operand = compileOperand(filterOption, mapper);
+        return null == operand ? null : operand.predicate;
+    }
+
+    /**
+     *
+     * @param filterOption $filter of the request, may be null
+     * @param mapper property mapper of filtered entity type
+     * @return compiled boolean operand or null if there is no filter
+     * @throws ODataApplicationException if expression isn't valid or supported
+     */
+    static Operand compileOperand(FilterOption filterOption, EntityMapper mapper) throws ODataApplicationException {
+        return compileOperand(filterOption, mapper, null);
+    }
+
+    /**
+     *
+     * @param filterOption
+     * @param mapper
+     * @param referenced slots of properties referenced by the filter are added here, may be null
+     * @return compiled filter or null if there is no filter
+     * @throws ODataApplicationException if filter isn't valid or supported
+     */
+    static Operand compileOperand(FilterOption filterOption, EntityMapper mapper, BitSet referenced)
+            throws ODataApplicationException {
+        if (null == filterOption || null == filterOption.getExpression()) {
+            return null;
+        }
+        Operand operand;
+        try {
+            operand = filterOption.getExpression().accept(new Compiler(mapper, referenced));
+        } catch (ExpressionVisitException ex) {
+            throw badRequest("Invalid $filter expression: " + ex.getMessage());
+        }
+        if (operand.kind != Kind.BOOLEAN) {
+            throw badRequest("$filter expression must be boolean");
+        }
+        return operand;
+    }
+
+    /**
+     * Compiles value expression, e.g. $orderby item
+     *
+     * @param expression
+     * @param mapper property mapper of the entity type
+     * @param referenced slots of properties referenced by the expression are added here, may be null
+     * @return function reading normalized value of the expression from entity values
+     * @throws ODataApplicationException if expression isn't valid or supported
+     */
+    static Function<EntityMapper.Values, Object> compileValue(Expression expression, EntityMapper mapper,
+            BitSet referenced) throws ODataApplicationException {
+        Operand operand;
+        try {
+            operand = expression.accept(new Compiler(mapper, referenced));
+        } catch (ExpressionVisitException ex) {
+            throw badRequest("Invalid expression: " + ex.getMessage());
+        }
+        if (operand.kind == Kind.BOOLEAN && null != operand.predicate) {
+            Predicate<EntityMapper.Values> predicate = operand.predicate;
+            return (values) -> predicate.test(values);
+        }
+        return operand.value;
+    }
+
+    static ODataApplicationException badRequest(String message) {
+        return new ODataApplicationException(message, HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ROOT);
+    }
+
+    static ODataApplicationException notImplemented(String message) {
+        return new ODataApplicationException(message, HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ROOT);
+    }
+
+    /**
+     *
+     * @param sesamType Sesam type from pipe metadata
+     * @return filter kind of the property values
+     */
+    static Kind kindOf(String sesamType) {
+        if ("integer".equals(sesamType)) {
+            return Kind.INTEGER;
+        }
+        return "datetime".equals(sesamType) ? Kind.DATETIME : Kind.STRING;
+    }
+
+    /**
+     * Converts stored property value to filter kind
+     *
+     * @param kind
+     * @param value
+     * @return normalized value or null if it can't be converted
+     */
+    static Object normalize(Kind kind, Object value) {
+        if (null == value) {
+            return null;
+        }
+        switch (kind) {
+            case DATETIME:
+                return value instanceof Instant ? value : toInstant(value.toString());
+            case INTEGER:
+                if (value instanceof Number) {
+                    return value;
+                }
+                try {
+                    return Long.valueOf(value.toString());
+                } catch (NumberFormatException ex) {
+                    return null;
+                }
+            default:
+                return value.toString();
+        }
+    }
+
+    static Instant toInstant(String text) {
+        return EntityMapper.parseInstant(text);
+    }
+
+    /**
+     *
+     * @param kind filter kind of a property
+     * @return class of values the property is indexed by
+     */
+    private static Class<?> comparableClass(Kind kind) {
+        switch (kind) {
+            case INTEGER:
+                return Long.class;
+            case DATETIME:
+                return Instant.class;
+            default:
+                return String.class;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static int compare(Object left, Object right) {
+        if (left instanceof Number && right instanceof Number) {
+            if (left instanceof Long && right instanceof Long) {
+                return Long.compare((Long) left, (Long) right);
+            }
+            return Double.compare(((Number) left).doubleValue(), ((Number) right).doubleValue());
+        }
+        return ((Comparable<Object>) left).compareTo(right);
+    }
+
+    private static final class Compiler implements ExpressionVisitor<Operand> {
+
+        private final EntityMapper mapper;
+        private final BitSet referenced;
+
+        Compiler(EntityMapper mapper, BitSet referenced) {
+            this.mapper = mapper;
+            this.referenced = referenced;
+        }
+
+        @Override
+        public Operand visitMember(Member member) throws ODataApplicationException {
+            List<UriResource> parts = member.getResourcePath().getUriResourceParts();
+            if (parts.size() != 1 || !(parts.get(0) instanceof UriResourcePrimitiveProperty)) {
+                throw notImplemented("Only primitive properties are supported in $filter");
+            }
+            String name = ((UriResourcePrimitiveProperty) parts.get(0)).getProperty().getName();
+            int slot = this.mapper.slotOf(name);
+            if (slot < 0) {
+                throw badRequest("Unknown property " + name);
+            }
+            if (null != this.referenced) {
+                this.referenced.set(slot);
+            }
+            Kind kind = kindOf(this.mapper.getType(slot));
+            if (kind == Kind.DATETIME) {
+                return Operand.member(kind, slot, (values) -> normalize(Kind.DATETIME, values.get(slot)));
+            }
+            return Operand.member(kind, slot, (values) -> values.get(slot));
+        }
+
+        @Override
+        public Operand visitLiteral(Literal literal) throws ODataApplicationException {
+            EdmType type = literal.getType();
+            String text = literal.getText();
+            if (null == type || "null".equals(text)) {
+                return Operand.constant(Kind.NULL, null);
+            }
+            try {
+                switch (type.getName()) {
+                    case "String":
+                        return Operand.constant(Kind.STRING, text.length() >= 2 && text.startsWith("'")
+                                ? text.substring(1, text.length() - 1).replace("''", "'") : text);
+                    case "SByte":
+                    case "Byte":
+                    case "Int16":
+                    case "Int32":
+                    case "Int64":
+                        return Operand.constant(Kind.INTEGER, Long.valueOf(text));
+                    case "Decimal":
+                    case "Double":
+                    case "Single":
+                        return Operand.constant(Kind.INTEGER, Double.valueOf(text));
+                    case "Boolean":
+                        return Operand.constant(Kind.BOOLEAN, Boolean.valueOf(text));
+                    case "DateTimeOffset":
+                    case "Date":
+                        Instant instant = toInstant(text);
+                        if (null == instant) {
+                            throw badRequest("Invalid date literal " + text);
+                        }
+                        return Operand.constant(Kind.DATETIME, instant);
+                    default:
+                        return Operand.constant(Kind.STRING, text);
+                }
+            } catch (NumberFormatException ex) {
+                throw badRequest("Invalid number literal " + text);
+            }
+        }
+
+        @Override
+        public Operand visitBinaryOperator(BinaryOperatorKind operator, Operand left, Operand right)
+                throws ODataApplicationException {
+            switch (operator) {
+                case AND:
+                    return and(left, right);
+                case OR:
+                    return or(left, right);
+                case EQ:
+                case NE:
+                case GT:
+                case GE:
+                case LT:
+                case LE:
+                    return comparison(operator, left, right);
+                case ADD:
+                case SUB:
+                case MUL:
+                case DIV:
+                case MOD:
+                    return arithmetic(operator, left, right);
+                default:
+                    throw notImplemented("Operator " + operator + " is not supported in $filter");
+            }
+        }
+
+        @Override
+        public Operand visitUnaryOperator(UnaryOperatorKind operator, Operand operand)
+                throws ODataApplicationException {
+            if (operator == UnaryOperatorKind.NOT) {
+                return Operand.condition(asPredicate(operand).negate());
+            }
+            if (operand.kind != Kind.INTEGER) {
+                throw badRequest("Operator - requires numeric operand");
+            }
+            Function<EntityMapper.Values, Object> value = operand.value;
+            return Operand.value(Kind.INTEGER, (values) -> {
+                Object number = value.apply(values);
+                if (number instanceof Long) {
+                    return -(Long) number;
+                }
+                return null == number ? null : -((Number) number).doubleValue();
+            });
+        }
+
+        @Override
+        public Operand visitMethodCall(MethodKind method, List<Operand> parameters) throws ODataApplicationException {
+            switch (method) {
+                case CONTAINS:
+                    return stringCondition(parameters, String::contains);
+                case STARTSWITH:
+                    return stringCondition(parameters, String::startsWith);
+                case ENDSWITH:
+                    return stringCondition(parameters, String::endsWith);
+                case TOLOWER:
+                    return stringFunction(parameters, (text) -> text.toLowerCase(Locale.ROOT));
+                case TOUPPER:
+                    return stringFunction(parameters, (text) -> text.toUpperCase(Locale.ROOT));
+                case TRIM:
+                    return stringFunction(parameters, String::trim);
+                case LENGTH:
+                    Function<EntityMapper.Values, Object> text = asString(parameters.get(0));
+                    return Operand.value(Kind.INTEGER, (values) -> {
+                        Object value = text.apply(values);
+                        return null == value ? null : (long) value.toString().length();
+                    });
+                default:
+                    throw notImplemented("Method " + method + " is not supported in $filter");
+            }
+        }
+
+        @Override
+        public Operand visitLambdaExpression(String lambdaFunction, String lambdaVariable, Expression expression)
+                throws ODataApplicationException {
+            throw notImplemented("Lambda expressions are not supported in $filter");
+        }
+
+        @Override
+        public Operand visitAlias(String aliasName) throws ODataApplicationException {
+            throw notImplemented("Aliases are not supported in $filter");
+        }
+
+        @Override
+        public Operand visitTypeLiteral(EdmType type) throws ODataApplicationException {
+            throw notImplemented("Type literals are not supported in $filter");
+        }
+
+        @Override
+        public Operand visitLambdaReference(String variableName) throws ODataApplicationException {
+            throw notImplemented("Lambda references are not supported in $filter");
+        }
+
+        @Override
+        public Operand visitEnum(EdmEnumType type, List<String> enumValues) throws ODataApplicationException {
+            throw notImplemented("Enumerations are not supported in $filter");
+        }
+
+        private Operand and(Operand left, Operand right) throws ODataApplicationException {
+            Predicate<EntityMapper.Values> both = asPredicate(left).and(asPredicate(right));
+            Candidates leftCandidates = left.candidates;
+            Candidates rightCandidates = right.candidates;
+            if (null == leftCandidates && null == rightCandidates) {
+                return Operand.condition(both);
+            }
+            //any indexed side narrows candidates, both are intersected
+            return Operand.indexed(both, (indexes) -> {
+                Set<String> a = null == leftCandidates ? null : leftCandidates.find(indexes);
+                Set<String> b = null == rightCandidates ? null : rightCandidates.find(indexes);
+                if (null == a || null == b) {
+                    return null == a ? b : a;
+                }
+                Set<String> smaller = a.size() <= b.size() ? a : b;
+                Set<String> larger = smaller == a ? b : a;
+                smaller.retainAll(larger);
+                return smaller;
+            });
+        }
+
+        private Operand or(Operand left, Operand right) throws ODataApplicationException {
+            if (null != left.members && null != right.members && left.slot == right.slot) {
+                //a eq 1 or a eq 2 or ... is evaluated as a in (1, 2, ...)
+                Set<Object> members = new HashSet<>(left.members);
+                members.addAll(right.members);
+                int slot = left.slot;
+                Kind kind = kindOf(this.mapper.getType(slot));
+                return Operand.membership(slot, members,
+                        (values) -> members.contains(normalize(kind, values.get(slot))));
+            }
+            Predicate<EntityMapper.Values> either = asPredicate(left).or(asPredicate(right));
+            Candidates leftCandidates = left.candidates;
+            Candidates rightCandidates = right.candidates;
+            if (null == leftCandidates || null == rightCandidates) {
+                return Operand.condition(either);
+            }
+            //only if both sides are indexed
+            return Operand.indexed(either, (indexes) -> {
+                Set<String> a = leftCandidates.find(indexes);
+                Set<String> b = null == a ? null : rightCandidates.find(indexes);
+                if (null == b) {
+                    return null;
+                }
+                a.addAll(b);
+                return a;
+            });
+        }
+
+        private Operand comparison(BinaryOperatorKind operator, Operand left, Operand right)
+                throws ODataApplicationException {
+            Kind kind = commonKind(left, right);
+            if (kind == Kind.BOOLEAN) {
+                return booleanComparison(operator, left, right);
+            }
+            Function<EntityMapper.Values, Object> leftValue = coerce(left, kind);
+            Function<EntityMapper.Values, Object> rightValue = coerce(right, kind);
+            if (operator == BinaryOperatorKind.EQ || operator == BinaryOperatorKind.NE) {
+                boolean equal = operator == BinaryOperatorKind.EQ;
+                Predicate<EntityMapper.Values> predicate = (values) -> {
+                    Object a = leftValue.apply(values);
+                    Object b = rightValue.apply(values);
+                    boolean same = null == a || null == b ? a == b
+                            : (a instanceof Number && b instanceof Number ? compare(a, b) == 0 : a.equals(b));
+                    return same == equal;
+                };
+                Operand member = left.slot >= 0 ? left : right;
+                Operand other = left.slot >= 0 ? right : left;
+                if (equal && member.slot >= 0 && other.constant && kind != Kind.NULL) {
+                    //constant operand doesn't read values
+                    Object constant = (member == left ? rightValue : leftValue).apply(null);
+                    if (constant instanceof Double && (Double) constant == Math.rint((Double) constant)) {
+                        constant = ((Double) constant).longValue();
+                    }
+                    //indexes are keyed by comparable values of the property, e.g. 1.5 can't be looked up in longs
+                    if (comparableClass(kindOf(this.mapper.getType(member.slot))).isInstance(constant)) {
+                        Set<Object> members = new HashSet<>(2);
+                        members.add(constant);
+                        return Operand.membership(member.slot, members, predicate);
+                    }
+                }
+                return Operand.condition(predicate);
+            }
+            if (kind == Kind.NULL) {
+                throw badRequest("Operator " + operator + " requires comparable operands");
+            }
+            Predicate<EntityMapper.Values> predicate;
+            switch (operator) {
+                case GT:
+                    predicate = (values) -> compareValues(leftValue, rightValue, values) > 0;
+                    break;
+                case GE:
+                    predicate = (values) -> compareValues(leftValue, rightValue, values) >= 0;
+                    break;
+                case LT:
+                    predicate = (values) -> {
+                        int result = compareValues(leftValue, rightValue, values);
+                        return result < 0 && result != Integer.MIN_VALUE;
+                    };
+                    break;
+                default:
+                    predicate = (values) -> {
+                        int result = compareValues(leftValue, rightValue, values);
+                        return result <= 0 && result != Integer.MIN_VALUE;
+                    };
+                    break;
+            }
+            return rangeOperand(operator, left, right, leftValue, rightValue, predicate);
+        }
+
+        /**
+         * Conditions and boolean literals are compared as predicates, they are never null
+         */
+        private Operand booleanComparison(BinaryOperatorKind operator, Operand left, Operand right)
+                throws ODataApplicationException {
+            if (operator != BinaryOperatorKind.EQ && operator != BinaryOperatorKind.NE) {
+                throw badRequest("Operator " + operator + " requires comparable operands");
+            }
+            boolean equal = operator == BinaryOperatorKind.EQ;
+            if (left.kind == Kind.NULL || right.kind == Kind.NULL) {
+                return Operand.condition((values) -> !equal);
+            }
+            Predicate<EntityMapper.Values> a = asPredicate(left);
+            Predicate<EntityMapper.Values> b = asPredicate(right);
+            return Operand.condition((values) -> (a.test(values) == b.test(values)) == equal);
+        }
+
+        /**
+         * Comparison of indexable property with constant can be answered by sorted index
+         */
+        private Operand rangeOperand(BinaryOperatorKind operator, Operand left, Operand right,
+                Function<EntityMapper.Values, Object> leftValue, Function<EntityMapper.Values, Object> rightValue,
+                Predicate<EntityMapper.Values> predicate) {
+            boolean memberLeft = left.slot >= 0 && right.constant;
+            if (!memberLeft && !(right.slot >= 0 && left.constant)) {
+                return Operand.condition(predicate);
+            }
+            int slot = memberLeft ? left.slot : right.slot;
+            Object bound = (memberLeft ? rightValue : leftValue).apply(null);
+            if (bound instanceof Double) {
+                double number = (Double) bound;
+                if (number != Math.rint(number)) {
+                    return Operand.condition(predicate);
+                }
+                bound = (long) number;
+            }
+            if (null == bound) {
+                return Operand.condition(predicate);
+            }
+            //constant on the left side turns the operator around
+            BinaryOperatorKind memberOperator = memberLeft ? operator : mirror(operator);
+            boolean lower = memberOperator == BinaryOperatorKind.GT || memberOperator == BinaryOperatorKind.GE;
+            boolean inclusive = memberOperator == BinaryOperatorKind.GE || memberOperator == BinaryOperatorKind.LE;
+            Object value = bound;
+            return Operand.indexed(predicate, (indexes) -> lower
+                    ? indexes.range(slot, value, inclusive, null, false)
+                    : indexes.range(slot, null, false, value, inclusive));
+        }
+
+        private BinaryOperatorKind mirror(BinaryOperatorKind operator) {
+            switch (operator) {
+                case GT:
+                    return BinaryOperatorKind.LT;
+                case GE:
+                    return BinaryOperatorKind.LE;
+                case LT:
+                    return BinaryOperatorKind.GT;
+                default:
+                    return BinaryOperatorKind.GE;
+            }
+        }
+
+        private Operand arithmetic(BinaryOperatorKind operator, Operand left, Operand right)
+                throws ODataApplicationException {
+            if (left.kind != Kind.INTEGER || right.kind != Kind.INTEGER) {
+                throw notImplemented("Arithmetic operators are supported for numeric operands only");
+            }
+            Function<EntityMapper.Values, Object> leftValue = left.value;
+            Function<EntityMapper.Values, Object> rightValue = right.value;
+            return Operand.value(Kind.INTEGER, (values) -> {
+                Object a = leftValue.apply(values);
+                Object b = rightValue.apply(values);
+                if (!(a instanceof Number) || !(b instanceof Number)) {
+                    return null;
+                }
+                if (a instanceof Long && b instanceof Long) {
+                    long x = (Long) a;
+                    long y = (Long) b;
+                    switch (operator) {
+                        case ADD:
+                            return x + y;
+                        case SUB:
+                            return x - y;
+                        case MUL:
+                            return x * y;
+                        case DIV:
+                            return y == 0 ? null : x / y;
+                        default:
+                            return y == 0 ? null : x % y;
+                    }
+                }
+                double x = ((Number) a).doubleValue();
+                double y = ((Number) b).doubleValue();
+                switch (operator) {
+                    case ADD:
+                        return x + y;
+                    case SUB:
+                        return x - y;
+                    case MUL:
+                        return x * y;
+                    case DIV:
+                        return x / y;
+                    default:
+                        return x % y;
+                }
+            });
+        }
+
+        /**
+         * Comparison with null operand is false for every operator, it is marked by Integer.MIN_VALUE
+         */
+        private int compareValues(Function<EntityMapper.Values, Object> left,
+                Function<EntityMapper.Values, Object> right, EntityMapper.Values values) {
+            Object a = left.apply(values);
+            Object b = right.apply(values);
+            if (null == a || null == b) {
+                return Integer.MIN_VALUE;
+            }
+            int result = compare(a, b);
+            return result == Integer.MIN_VALUE ? -1 : result;
+        }
+
+        private Kind commonKind(Operand left, Operand right) throws ODataApplicationException {
+            if (left.kind == right.kind || right.kind == Kind.NULL) {
+                return left.kind;
+            }
+            if (left.kind == Kind.NULL) {
+                return right.kind;
+            }
+            //literal is converted to the kind of other operand
+            if (right.constant && right.kind == Kind.STRING) {
+                return left.kind;
+            }
+            if (left.constant && left.kind == Kind.STRING) {
+                return right.kind;
+            }
+            throw badRequest("Can't compare " + left.kind + " with " + right.kind);
+        }
+
+        private Function<EntityMapper.Values, Object> coerce(Operand operand, Kind kind)
+                throws ODataApplicationException {
+            if (operand.kind == kind || operand.kind == Kind.NULL) {
+                return operand.value;
+            }
+            Object converted = normalize(kind, operand.constantValue());
+            if (null == converted) {
+                throw badRequest("Can't convert " + operand.constantValue() + " to " + kind);
+            }
+            return (values) -> converted;
+        }
+
+        private Predicate<EntityMapper.Values> asPredicate(Operand operand) throws ODataApplicationException {
+            if (operand.kind != Kind.BOOLEAN) {
+                throw badRequest("Logical operators require boolean operands");
+            }
+            if (null != operand.predicate) {
+                return operand.predicate;
+            }
+            Function<EntityMapper.Values, Object> value = operand.value;
+            return (values) -> Objects.equals(Boolean.TRUE, value.apply(values));
+        }
+
+        private Function<EntityMapper.Values, Object> asString(Operand operand) throws ODataApplicationException {
+            if (operand.kind == Kind.BOOLEAN) {
+                throw badRequest("String function requires string operand");
+            }
+            Function<EntityMapper.Values, Object> value = operand.value;
+            return (values) -> {
+                Object result = value.apply(values);
+                return null == result ? null : result.toString();
+            };
+        }
+
+        private Operand stringCondition(List<Operand> parameters, StringCondition condition)
+                throws ODataApplicationException {
+            Function<EntityMapper.Values, Object> text = asString(parameters.get(0));
+            Function<EntityMapper.Values, Object> argument = asString(parameters.get(1));
+            return Operand.condition((values) -> {
+                Object a = text.apply(values);
+                Object b = argument.apply(values);
+                return null != a && null != b && condition.test((String) a, (String) b);
+            });
+        }
+
+        private Operand stringFunction(List<Operand> parameters, Function<String, String> function)
+                throws ODataApplicationException {
+            Function<EntityMapper.Values, Object> text = asString(parameters.get(0));
+            return Operand.value(Kind.STRING, (values) -> {
+                Object value = text.apply(values);
+                return null == value ? null : function.apply((String) value);
+            });
+        }
+    }
+
+    @FunctionalInterface
+    private interface StringCondition {
+
+        boolean test(String text, String argument);
+    }
+}
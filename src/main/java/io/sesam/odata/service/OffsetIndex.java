@@ -0,0 +1,158 @@
+package io.sesam.odata.service;
+
+import io.sesam.odata.infrastructure.Settings;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Sparse index of result offsets to Sesam sequence positions. Positions of every stride-th entity are recorded while
+ * pages are read, so a large $skip is answered by reading after the nearest recorded position instead of scanning the
+ * dataset from the beginning. Offsets shift when entities are updated or deleted, so positions recorded from a replica
+ * are valid only for the replica sequence they were read at. Positions recorded from Sesam expire after TTL and are
+ * dropped earlier when a later scan finds another sequence at a recorded offset. Callers record only scans which
+ * started at a position computed by the server, never at an offset taken from the request. Size of the whole result is
+ * kept with the positions once it has been counted.
+ */
+final class OffsetIndex {
+
+    /**
+     * Number of entities between recorded positions
+     */
+    public static final String STRIDE_ENV = "SESAM_OFFSET_INDEX_STRIDE";
+    /**
+     * Time in seconds positions read from Sesam are trusted
+     */
+    public static final String TTL_ENV = "SESAM_OFFSET_INDEX_TTL";
+
+    //max number of dataset and filter combinations indexed
+    private static final int MAX_QUERIES = 256;
+
+    private final long stride;
+    private final long ttl;
+    private final Map<String, Positions> positions = new ConcurrentHashMap<>(64);
+
+    OffsetIndex() {
+        this.stride = Math.max(1, Settings.getLong(STRIDE_ENV, 1000));
+        this.ttl = Settings.getLong(TTL_ENV, 300) * 1000;
+    }
+
+    /**
+     * Recorded position of entity at given offset
+     */
+    static final class Position {
+
+        final long offset;
+        //sequence to read after to get entity at the offset first
+        final long since;
+
+        Position(long offset, long since) {
+            this.offset = offset;
+            this.since = since;
+        }
+    }
+
+    /**
+     * Consumer of offsets of scanned entities
+     */
+    @FunctionalInterface
+    interface Recorder {
+
+        void record(long offset, long since);
+    }
+
+    /**
+     *
+     * @param key dataset and filter the offsets are counted for
+     * @param version replica sequence or -1 if entities are read from Sesam
+     * @param offset
+     * @return nearest recorded position at or before offset or null if there is none
+     */
+    Position floor(String key, long version, long offset) {
+        Positions known = this.positions.get(key);
+        if (null == known || !known.isValid(version, this.ttl)) {
+            return null;
+        }
+        Map.Entry<Long, Long> entry = known.byOffset.floorEntry(offset);
+        return null == entry ? null : new Position(entry.getKey(), entry.getValue());
+    }
+
+    /**
+     *
+     * @param key dataset and filter the offsets are counted for
+     * @param version replica sequence or -1 if entities are read from Sesam
+     * @return recorder keeping positions of every stride-th offset
+     */
+    Recorder recorder(String key, long version) {
+        return (offset, since) -> {
+            if (offset == 0 || offset % this.stride != 0) {
+                return;
+            }
+            Positions known = this.positions.compute(key, (k, current) -> null == current
+                    || !current.isValid(version, this.ttl) ? new Positions(version) : current);
+            Long recorded = known.byOffset.putIfAbsent(offset, since);
+            if (null != recorded && recorded != since) {
+                //entities before the offset were updated or deleted since it was recorded, other positions moved too
+                Positions moved = new Positions(version);
+                moved.byOffset.put(offset, since);
+                this.positions.replace(key, known, moved);
+            }
+            if (this.positions.size() > MAX_QUERIES) {
+                evictOldest();
+            }
+        };
+    }
+
+    /**
+     *
+     * @param key dataset and filter the result is counted for
+     * @param version replica sequence or -1 if entities are read from Sesam
+     * @return number of entities in the result or -1 if it wasn't counted yet
+     */
+    long size(String key, long version) {
+        Positions known = this.positions.get(key);
+        return null == known || !known.isValid(version, this.ttl) ? -1 : known.size;
+    }
+
+    /**
+     *
+     * @param key dataset and filter the result is counted for
+     * @param version replica sequence or -1 if entities are read from Sesam
+     * @param size number of entities in the result
+     */
+    void recordSize(String key, long version, long size) {
+        Positions known = this.positions.compute(key, (k, current) -> null == current
+                || !current.isValid(version, this.ttl) ? new Positions(version) : current);
+        known.size = size;
+        if (this.positions.size() > MAX_QUERIES) {
+            evictOldest();
+        }
+    }
+
+    private void evictOldest() {
+        this.positions.entrySet().stream()
+                .min(Comparator.comparingLong((Map.Entry<String, Positions> e) -> e.getValue().created))
+                .ifPresent((eldest) -> this.positions.remove(eldest.getKey(), eldest.getValue()));
+    }
+
+    /**
+     * Positions recorded for one dataset and filter
+     */
+    private static final class Positions {
+
+        final long version;
+        final long created = System.currentTimeMillis();
+        final ConcurrentNavigableMap<Long, Long> byOffset = new ConcurrentSkipListMap<>();
+        volatile long size = -1;
+
+        Positions(long version) {
+            this.version = version;
+        }
+
+        boolean isValid(long version, long ttl) {
+            return this.version == version && (version >= 0 || System.currentTimeMillis() - this.created < ttl);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package io.sesam.odata.service;
+
+import io.sesam.odata.infrastructure.Settings;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.olingo.server.api.ODataApplicationException;
+import org.apache.olingo.server.api.uri.UriInfo;
+import org.apache.olingo.server.api.uri.queryoption.SystemQueryOption;
+
+/**
+ * Opaque $skiptoken of a collection page. Carries the last Sesam sequence scanned by the previous page, so the next page
+ * resumes with one upstream call, the offset of the next entity in the whole result and the version of the data the
+ * offset was counted at. Query options stay in the next link, cursor keeps only a hash of them and is rejected when used
+ * with another query. Cursors are signed with HMAC keyed by a server secret, so offsets taken from a cursor were
+ * computed by the server.
+ */
+final class PageCursor {
+
+    /**
+     * Env variable with the secret cursors are signed with. Nodes behind one load balancer must share it, a random
+     * secret is generated if not set and cursors are then valid only on the node and for the lifetime of the process.
+     */
+    public static final String SECRET_ENV = "SESAM_CURSOR_SECRET";
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final byte VERSION = 2;
+    private static final int PAYLOAD_SIZE = 1 + 8 + 8 + 8 + 4;
+    private static final int SIGNATURE_SIZE = 16;
+    private static final SecretKeySpec KEY = new SecretKeySpec(secret(), ALGORITHM);
+
+    /**
+     * Position of the first page
+     */
+    static final PageCursor FIRST = new PageCursor(-1, 0, -1, 0);
+
+    //sequence to read after, -1 for the dataset start and for ordered pages which don't continue by sequence
+    final long since;
+    //offset of the next entity in the whole result, -1 if unknown
+    final long offset;
+    //replica sequence the offset was counted at or -1 if entities are read from Sesam
+    final long version;
+    final int queryHash;
+
+    PageCursor(long since, long offset, long version, int queryHash) {
+        this.since = since;
+        this.offset = offset;
+        this.version = version;
+        this.queryHash = queryHash;
+    }
+
+    /**
+     *
+     * @return url safe token
+     */
+    String encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(PAYLOAD_SIZE + SIGNATURE_SIZE);
+        buffer.put(VERSION).putLong(this.since).putLong(this.offset).putLong(this.version).putInt(this.queryHash);
+        buffer.put(sign(buffer.array(), PAYLOAD_SIZE));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+    }
+
+    /**
+     *
+     * @param token $skiptoken value
+     * @param queryHash hash of the query the token is used with
+     * @return decoded cursor
+     * @throws ODataApplicationException if token is malformed, not signed by this server or was issued for another query
+     */
+    static PageCursor decode(String token, int queryHash) throws ODataApplicationException {
+        if (!token.isEmpty() && token.chars().allMatch(Character::isDigit)) {
+            //plain sequence issued before cursors were introduced
+            return new PageCursor(Long.parseLong(token), -1, -1, queryHash);
+        }
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(token);
+        } catch (IllegalArgumentException ex) {
+            throw FilterCompiler.badRequest("Invalid $skiptoken");
+        }
+        if (bytes.length != PAYLOAD_SIZE + SIGNATURE_SIZE || bytes[0] != VERSION
+                || !MessageDigest.isEqual(sign(bytes, PAYLOAD_SIZE),
+                        Arrays.copyOfRange(bytes, PAYLOAD_SIZE, bytes.length))) {
+            throw FilterCompiler.badRequest("Invalid $skiptoken");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 1, PAYLOAD_SIZE - 1);
+        PageCursor cursor = new PageCursor(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getInt());
+        if (cursor.queryHash != queryHash) {
+            throw FilterCompiler.badRequest("$skiptoken doesn't belong to this query");
+        }
+        return cursor;
+    }
+
+    /**
+     *
+     * @param entitySetName
+     * @param uriInfo
+     * @return hash of entity set and options which define the result, paging options are not included
+     */
+    static int queryHash(String entitySetName, UriInfo uriInfo) {
+        int hash = entitySetName.hashCode();
+        hash = 31 * hash + textOf(uriInfo.getFilterOption());
+        hash = 31 * hash + textOf(uriInfo.getOrderByOption());
+        hash = 31 * hash + textOf(uriInfo.getSelectOption());
+        return hash;
+    }
+
+    private static int textOf(SystemQueryOption option) {
+        return null == option || null == option.getText() ? 0 : option.getText().hashCode();
+    }
+
+    private static byte[] sign(byte[] bytes, int length) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(KEY);
+            mac.update(bytes, 0, length);
+            return Arrays.copyOf(mac.doFinal(), SIGNATURE_SIZE);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("Can't sign $skiptoken", ex);
+        }
+    }
+
+    private static byte[] secret() {
+        String secret = Settings.getString(SECRET_ENV, null);
+        if (null != secret) {
+            return secret.getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        return random;
+    }
+}
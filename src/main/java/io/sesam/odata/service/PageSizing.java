@@ -0,0 +1,116 @@
+package io.sesam.odata.service;
+
+import io.sesam.odata.infrastructure.Settings;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses page size of entity collections. Client preference (odata.maxpagesize) wins within the maximum of the entity
+ * set, otherwise default size of the set is used. In adaptive mode size is derived from measured response bytes per
+ * entity of the set to aim for target response size.
+ */
+final class PageSizing {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PageSizing.class);
+
+    /**
+     * Default page size
+     */
+    public static final String PAGE_SIZE_ENV = "SESAM_PAGE_SIZE";
+    /**
+     * Max page size a client may ask for
+     */
+    public static final String MAX_PAGE_SIZE_ENV = "SESAM_MAX_PAGE_SIZE";
+    /**
+     * Per entity type default and max page sizes, e.g. "Person:500,5000;Order:50,1000"
+     */
+    public static final String PAGE_SIZES_ENV = "SESAM_PAGE_SIZES";
+    /**
+     * Env variable to switch on adaptive page size
+     */
+    public static final String ADAPTIVE_ENV = "SESAM_ADAPTIVE_PAGE_SIZE";
+    /**
+     * Target response size in bytes of adaptive pages
+     */
+    public static final String TARGET_BYTES_ENV = "SESAM_TARGET_PAGE_BYTES";
+
+    //weight of the last measurement in bytes per entity average
+    private static final double SMOOTHING = 0.2;
+
+    private final int defaultSize;
+    private final int maxSize;
+    private final Map<String, int[]> sizesByType;
+    private final boolean adaptive;
+    private final long targetBytes;
+    private final Map<String, Double> bytesPerEntity = new ConcurrentHashMap<>(64);
+
+    PageSizing() {
+        this.maxSize = Math.max(1, Settings.getInt(MAX_PAGE_SIZE_ENV, 10000));
+        this.defaultSize = Math.min(this.maxSize, Math.max(1, Settings.getInt(PAGE_SIZE_ENV, 100)));
+        this.sizesByType = parseSizes(Settings.getString(PAGE_SIZES_ENV, ""));
+        this.adaptive = Settings.getBoolean(ADAPTIVE_ENV, false);
+        this.targetBytes = Math.max(1, Settings.getLong(TARGET_BYTES_ENV, 1024 * 1024));
+    }
+
+    /**
+     *
+     * @param typeName EDM type name of the entity set
+     * @param preferred odata.maxpagesize preference or null
+     * @return page size
+     */
+    int pageSize(String typeName, Integer preferred) {
+        int[] sizes = this.sizesByType.get(typeName);
+        int max = null == sizes ? this.maxSize : sizes[1];
+        if (null != preferred && preferred > 0) {
+            return Math.min(preferred, max);
+        }
+        Double measured = this.adaptive ? this.bytesPerEntity.get(typeName) : null;
+        if (null != measured && measured > 0) {
+            return (int) Math.max(1, Math.min(max, this.targetBytes / measured));
+        }
+        return null == sizes ? this.defaultSize : sizes[0];
+    }
+
+    /**
+     * Records size of written page
+     *
+     * @param typeName EDM type name of the entity set
+     * @param bytes response bytes
+     * @param entities number of entities in the response
+     */
+    void record(String typeName, long bytes, int entities) {
+        if (!this.adaptive || entities == 0) {
+            return;
+        }
+        double measured = (double) bytes / entities;
+        this.bytesPerEntity.merge(typeName, measured, (old, last) -> old + SMOOTHING * (last - old));
+    }
+
+    boolean isAdaptive() {
+        return adaptive;
+    }
+
+    private Map<String, int[]> parseSizes(String definition) {
+        Map<String, int[]> sizes = new HashMap<>(8);
+        for (String typeSizes : definition.split(";")) {
+            String[] parts = typeSizes.split(":", 2);
+            if (parts.length != 2) {
+                continue;
+            }
+            String[] values = parts[1].split(",");
+            try {
+                int max = values.length > 1 ? Integer.parseInt(values[1].trim()) : this.maxSize;
+                int size = Math.min(Integer.parseInt(values[0].trim()), max);
+                if (size > 0) {
+                    sizes.put(parts[0].trim(), new int[]{size, max});
+                }
+            } catch (NumberFormatException ex) {
+                LOGGER.warn("Invalid page sizes '{}' in {}, ignored", typeSizes, PAGE_SIZES_ENV);
+            }
+        }
+        return sizes;
+    }
+}
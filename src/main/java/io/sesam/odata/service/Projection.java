@@ -0,0 +1,62 @@
+package io.sesam.odata.service;
+
+import io.sesam.odata.edm.EntityMapper;
+import java.util.BitSet;
+import java.util.List;
+import org.apache.olingo.server.api.ODataApplicationException;
+import org.apache.olingo.server.api.uri.UriResource;
+import org.apache.olingo.server.api.uri.UriResourcePrimitiveProperty;
+import org.apache.olingo.server.api.uri.queryoption.SelectItem;
+import org.apache.olingo.server.api.uri.queryoption.SelectOption;
+
+/**
+ * Resolves $select to property slots, so unselected properties are neither converted nor serialized
+ */
+final class Projection {
+
+    private Projection() {
+    }
+
+    /**
+     *
+     * @param select $select option, may be null
+     * @param mapper
+     * @return slots of selected properties or null if all properties are selected
+     * @throws ODataApplicationException if selected property isn't supported
+     */
+    static BitSet selectedSlots(SelectOption select, EntityMapper mapper) throws ODataApplicationException {
+        if (null == select || select.getSelectItems().isEmpty()) {
+            return null;
+        }
+        BitSet slots = new BitSet(mapper.size());
+        for (SelectItem item : select.getSelectItems()) {
+            if (item.isStar() || item.isAllOperationsInSchema()) {
+                return null;
+            }
+            List<UriResource> parts = item.getResourcePath().getUriResourceParts();
+            if (parts.size() != 1 || !(parts.get(0) instanceof UriResourcePrimitiveProperty)) {
+                throw FilterCompiler.notImplemented("Only primitive properties are supported in $select");
+            }
+            int slot = mapper.slotOf(((UriResourcePrimitiveProperty) parts.get(0)).getProperty().getName());
+            if (slot >= 0) {
+                slots.set(slot);
+            }
+        }
+        return slots;
+    }
+
+    /**
+     *
+     * @param selected selected slots, null for all
+     * @param referenced slots needed to evaluate the query
+     * @return slots which must be read from Sesam entity, null for all
+     */
+    static BitSet readSlots(BitSet selected, BitSet referenced) {
+        if (null == selected) {
+            return null;
+        }
+        BitSet slots = (BitSet) selected.clone();
+        slots.or(referenced);
+        return slots;
+    }
+}
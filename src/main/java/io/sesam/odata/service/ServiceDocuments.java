@@ -0,0 +1,87 @@
+package io.sesam.odata.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.olingo.commons.api.format.ContentType;
+import org.apache.olingo.server.api.OData;
+import org.apache.olingo.server.api.ServiceMetadata;
+import org.apache.olingo.server.api.serializer.SerializerException;
+import org.apache.olingo.server.api.serializer.SerializerResult;
+
+/**
+ * Metadata and service documents of one schema version serialized once and kept as ready to send bytes. Service
+ * document contains absolute URLs, so it is kept per requested base URI.
+ */
+public final class ServiceDocuments {
+
+    //upper bound of cached documents, protects from unbounded number of base URIs
+    private static final int MAX_DOCUMENTS = 64;
+
+    private final OData odata;
+    private final ServiceMetadata serviceMetadata;
+    private final Map<String, byte[]> metadataDocuments = new ConcurrentHashMap<>(4);
+    private final Map<String, byte[]> serviceDocuments = new ConcurrentHashMap<>(8);
+
+    public ServiceDocuments(OData odata, ServiceMetadata serviceMetadata) {
+        this.odata = odata;
+        this.serviceMetadata = serviceMetadata;
+    }
+
+    /**
+     *
+     * @param contentType
+     * @return serialized metadata document
+     * @throws SerializerException
+     */
+    public byte[] getMetadataDocument(ContentType contentType) throws SerializerException {
+        String key = contentType.toContentTypeString();
+        byte[] document = this.metadataDocuments.get(key);
+        if (null == document) {
+            document = toBytes(this.odata.createSerializer(contentType).metadataDocument(this.serviceMetadata));
+            cache(this.metadataDocuments, key, document);
+        }
+        return document;
+    }
+
+    /**
+     *
+     * @param contentType
+     * @param rawBaseUri
+     * @return serialized service document
+     * @throws SerializerException
+     */
+    public byte[] getServiceDocument(ContentType contentType, String rawBaseUri) throws SerializerException {
+        String key = contentType.toContentTypeString() + ' ' + rawBaseUri;
+        byte[] document = this.serviceDocuments.get(key);
+        if (null == document) {
+            document = toBytes(this.odata.createSerializer(contentType)
+                    .serviceDocument(this.serviceMetadata, rawBaseUri));
+            cache(this.serviceDocuments, key, document);
+        }
+        return document;
+    }
+
+    private static void cache(Map<String, byte[]> documents, String key, byte[] document) {
+        if (documents.size() < MAX_DOCUMENTS) {
+            documents.put(key, document);
+        }
+    }
+
+    private static byte[] toBytes(SerializerResult result) {
+        try (InputStream content = result.getContent()) {
+            byte[] buffer = new byte[8192];
+            ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+            int read;
+            while ((read = content.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
@@ -51,9 +51,18 @@ import org.apache.olingo.server.api.uri.UriInfo;
  */
 public class ServiceProcessor implements MetadataProcessor, ServiceDocumentProcessor, ErrorProcessor {
 
+    private final ServiceDocuments documents;
     private OData odata;
     private ServiceMetadata serviceMetadata;
 
+    /**
+     *
+     * @param documents pre-serialized documents of the same service metadata this processor is registered for
+     */
+    public ServiceProcessor(ServiceDocuments documents) {
+        this.documents = documents;
+    }
+
     @Override
     public void init(final OData odata, final ServiceMetadata serviceMetadata) {
         this.odata = odata;
@@ -78,8 +87,8 @@ public class ServiceProcessor implements MetadataProcessor, ServiceDocumentProce
         if (isNotModified) {
             response.setStatusCode(HttpStatusCode.NOT_MODIFIED.getStatusCode());
         } else {
-            ODataSerializer serializer = odata.createSerializer(requestedContentType);
-            response.setContent(serializer.serviceDocument(serviceMetadata, request.getRawBaseUri()).getContent());
+            response.setContent(new ByteArrayInputStream(
+                    documents.getServiceDocument(requestedContentType, request.getRawBaseUri())));
             response.setStatusCode(HttpStatusCode.OK.getStatusCode());
             response.setHeader(HttpHeader.CONTENT_TYPE, requestedContentType.toContentTypeString());
         }
@@ -103,8 +112,7 @@ public class ServiceProcessor implements MetadataProcessor, ServiceDocumentProce
         if (isNotModified) {
             response.setStatusCode(HttpStatusCode.NOT_MODIFIED.getStatusCode());
         } else {
-            ODataSerializer serializer = odata.createSerializer(requestedContentType);
-            response.setContent(serializer.metadataDocument(serviceMetadata).getContent());
+            response.setContent(new ByteArrayInputStream(documents.getMetadataDocument(requestedContentType)));
             response.setStatusCode(HttpStatusCode.OK.getStatusCode());
             response.setHeader(HttpHeader.CONTENT_TYPE, requestedContentType.toContentTypeString());
         }
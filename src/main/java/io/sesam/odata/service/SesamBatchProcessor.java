@@ -0,0 +1,214 @@
+package io.sesam.odata.service;
+
+import io.sesam.odata.infrastructure.BatchExecutor;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import org.apache.olingo.commons.api.format.ContentType;
+import org.apache.olingo.commons.api.http.HttpHeader;
+import org.apache.olingo.commons.api.http.HttpMethod;
+import org.apache.olingo.commons.api.http.HttpStatusCode;
+import org.apache.olingo.server.api.OData;
+import org.apache.olingo.server.api.ODataApplicationException;
+import org.apache.olingo.server.api.ODataContent;
+import org.apache.olingo.server.api.ODataHandler;
+import org.apache.olingo.server.api.ODataLibraryException;
+import org.apache.olingo.server.api.ODataRequest;
+import org.apache.olingo.server.api.ODataResponse;
+import org.apache.olingo.server.api.ServiceMetadata;
+import org.apache.olingo.server.api.batch.BatchFacade;
+import org.apache.olingo.server.api.deserializer.batch.BatchOptions;
+import org.apache.olingo.server.api.deserializer.batch.BatchRequestPart;
+import org.apache.olingo.server.api.deserializer.batch.ODataResponsePart;
+import org.apache.olingo.server.api.processor.BatchProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Processes $batch requests. Independent GET parts are executed concurrently on bounded {@link BatchExecutor}, each with own request
+ * handler as Olingo handlers keep per request state. Identical GET parts of one batch are executed once. Responses are
+ * buffered and written back in request order, so batch latency is close to latency of its slowest part.
+ * <p>
+ * Service is read only, change sets and other methods are executed in order by Olingo and answered by processors.</p>
+ */
+public class SesamBatchProcessor implements BatchProcessor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SesamBatchProcessor.class);
+
+    private final BatchExecutor executor;
+    private final Supplier<ODataHandler> partHandlers;
+    private OData odata;
+
+    /**
+     *
+     * @param executor executor of GET parts
+     * @param partHandlers creates handler for one part
+     */
+    public SesamBatchProcessor(BatchExecutor executor, Supplier<ODataHandler> partHandlers) {
+        this.executor = executor;
+        this.partHandlers = partHandlers;
+    }
+
+    @Override
+    public void init(OData odata, ServiceMetadata serviceMetadata) {
+        this.odata = odata;
+    }
+
+    @Override
+    public void processBatch(BatchFacade facade, ODataRequest request, ODataResponse response)
+            throws ODataApplicationException, ODataLibraryException {
+        String boundary = facade.extractBoundaryFromContentType(request.getHeader(HttpHeader.CONTENT_TYPE));
+        BatchOptions options = BatchOptions.with()
+                .rawBaseUri(request.getRawBaseUri())
+                .rawServiceResolutionUri(request.getRawServiceResolutionUri())
+                .build();
+        List<BatchRequestPart> parts = this.odata.createFixedFormatDeserializer()
+                .parseBatchRequest(request.getBody(), boundary, options);
+
+        //start all GET parts first, identical ones share one execution
+        Map<String, CompletableFuture<BufferedResponse>> executions = new HashMap<>(parts.size() * 2);
+        List<CompletableFuture<BufferedResponse>> started = new ArrayList<>(parts.size());
+        for (BatchRequestPart part : parts) {
+            ODataRequest partRequest = part.isChangeSet() ? null : part.getRequests().get(0);
+            if (null == partRequest || partRequest.getMethod() != HttpMethod.GET) {
+                started.add(null);
+                continue;
+            }
+            started.add(executions.computeIfAbsent(keyOf(partRequest),
+                    (key) -> this.executor.submit(() -> execute(partRequest))));
+        }
+        long gets = started.stream().filter((execution) -> null != execution).count();
+        this.executor.record(parts.size(), (int) gets - executions.size());
+        LOGGER.debug("Batch of {} parts, {} GET executions", parts.size(), executions.size());
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.executor.getPartTimeout());
+        List<ODataResponsePart> responseParts = new ArrayList<>(parts.size());
+        for (int i = 0; i < parts.size(); i++) {
+            CompletableFuture<BufferedResponse> execution = started.get(i);
+            if (null == execution) {
+                responseParts.add(facade.handleBatchRequest(parts.get(i)));
+            } else {
+                ODataRequest partRequest = parts.get(i).getRequests().get(0);
+                responseParts.add(new ODataResponsePart(await(execution, deadline).toResponse(partRequest), false));
+            }
+        }
+
+        String responseBoundary = "batch_" + UUID.randomUUID().toString();
+        InputStream content = this.odata.createFixedFormatSerializer().batchResponse(responseParts, responseBoundary);
+        response.setHeader(HttpHeader.CONTENT_TYPE, ContentType.MULTIPART_MIXED + ";boundary=" + responseBoundary);
+        response.setContent(content);
+        response.setStatusCode(HttpStatusCode.ACCEPTED.getStatusCode());
+    }
+
+    @Override
+    public ODataResponsePart processChangeSet(BatchFacade facade, List<ODataRequest> requests)
+            throws ODataApplicationException, ODataLibraryException {
+        //there is nothing to roll back in read only service, requests are answered one by one
+        List<ODataResponse> responses = new ArrayList<>(requests.size());
+        for (ODataRequest changeRequest : requests) {
+            responses.add(facade.handleODataRequest(changeRequest));
+        }
+        return new ODataResponsePart(responses, true);
+    }
+
+    private BufferedResponse execute(ODataRequest request) {
+        ODataResponse response = this.partHandlers.get().process(request);
+        ByteArrayOutputStream body = new ByteArrayOutputStream(8192);
+        ODataContent streamed = response.getODataContent();
+        try {
+            if (null != streamed) {
+                streamed.write(body);
+            } else if (null != response.getContent()) {
+                try (InputStream content = response.getContent()) {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = content.read(buffer)) >= 0) {
+                        body.write(buffer, 0, read);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Couldn't read batch part response", ex);
+        }
+        return new BufferedResponse(response.getStatusCode(), response.getAllHeaders(), body.toByteArray());
+    }
+
+    /**
+     * Waits for part response
+     *
+     * @param execution
+     * @param deadline System.nanoTime() the whole batch must be answered by
+     * @return part response or error response if the part failed, was rejected or didn't complete in time
+     */
+    private static BufferedResponse await(CompletableFuture<BufferedResponse> execution, long deadline) {
+        try {
+            return execution.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return BufferedResponse.error(HttpStatusCode.SERVICE_UNAVAILABLE);
+        } catch (TimeoutException ex) {
+            LOGGER.warn("Batch part didn't complete in time");
+            return BufferedResponse.error(HttpStatusCode.GATEWAY_TIMEOUT);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RejectedExecutionException) {
+                return BufferedResponse.error(HttpStatusCode.SERVICE_UNAVAILABLE);
+            }
+            LOGGER.warn("Batch part failed: {}", ex.getCause().getMessage());
+            return BufferedResponse.error(HttpStatusCode.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * Parts with the same key get the same response
+     */
+    private static String keyOf(ODataRequest request) {
+        return request.getRawRequestUri() + '\n' + request.getHeader(HttpHeader.ACCEPT) + '\n'
+                + request.getHeader(HttpHeader.PREFER) + '\n' + request.getHeader(HttpHeader.IF_NONE_MATCH) + '\n'
+                + request.getHeader(HttpHeader.IF_MATCH);
+    }
+
+    /**
+     * Part response read into memory, may be shared by several parts
+     */
+    private static final class BufferedResponse {
+
+        private final int status;
+        private final Map<String, List<String>> headers;
+        private final byte[] body;
+
+        BufferedResponse(int status, Map<String, List<String>> headers, byte[] body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        static BufferedResponse error(HttpStatusCode status) {
+            return new BufferedResponse(status.getStatusCode(), new HashMap<>(0), new byte[0]);
+        }
+
+        ODataResponse toResponse(ODataRequest request) {
+            ODataResponse response = new ODataResponse();
+            response.setStatusCode(this.status);
+            this.headers.forEach(response::addHeader);
+            response.setContent(new ByteArrayInputStream(this.body));
+            String contentId = request.getHeader(HttpHeader.CONTENT_ID);
+            if (null != contentId) {
+                response.setHeader(HttpHeader.CONTENT_ID, contentId);
+            }
+            return response;
+        }
+    }
+}
@@ -1,21 +1,35 @@
 package io.sesam.odata.service;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import io.sesam.odata.edm.SesamEdmProvider;
+import io.sesam.odata.edm.EntityMapper;
+import io.sesam.odata.edm.EdmSchema;
 import io.sesam.odata.infrastructure.AppStartListener;
+import io.sesam.odata.infrastructure.EntityFeed;
+import io.sesam.odata.infrastructure.EntityStream;
+import io.sesam.odata.infrastructure.Prefetcher;
 import io.sesam.odata.infrastructure.SesamDataLoader;
+import io.sesam.odata.infrastructure.SesamHttpClient;
+import io.sesam.odata.infrastructure.Settings;
+import io.sesam.odata.infrastructure.SingleFlight;
 import io.sesam.odata.infrastructure.models.Dataset;
-import io.sesam.odata.infrastructure.models.PipeMetadata;
-import java.io.InputStream;
+import io.sesam.odata.replica.DatasetReplica;
+import io.sesam.odata.replica.ReplicatedEntity;
+import io.sesam.odata.replica.Replicator;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import javax.servlet.ServletContext;
 import org.apache.olingo.commons.api.data.ContextURL;
 import org.apache.olingo.commons.api.data.Entity;
 import org.apache.olingo.commons.api.data.EntityCollection;
-import org.apache.olingo.commons.api.data.Property;
-import org.apache.olingo.commons.api.data.ValueType;
 import org.apache.olingo.commons.api.edm.EdmEntitySet;
 import org.apache.olingo.commons.api.edm.EdmEntityType;
 import org.apache.olingo.commons.api.ex.ODataRuntimeException;
@@ -27,14 +41,20 @@ import org.apache.olingo.server.api.ODataApplicationException;
 import org.apache.olingo.server.api.ODataLibraryException;
 import org.apache.olingo.server.api.ODataRequest;
 import org.apache.olingo.server.api.ODataResponse;
+import org.apache.olingo.server.api.prefer.PreferencesApplied;
 import org.apache.olingo.server.api.ServiceMetadata;
-import org.apache.olingo.server.api.processor.EntityCollectionProcessor;
+import org.apache.olingo.server.api.processor.CountEntityCollectionProcessor;
 import org.apache.olingo.server.api.serializer.EntityCollectionSerializerOptions;
 import org.apache.olingo.server.api.serializer.ODataSerializer;
+import org.apache.olingo.server.api.serializer.SerializerException;
 import org.apache.olingo.server.api.serializer.SerializerResult;
+import org.apache.olingo.server.api.serializer.SerializerStreamResult;
 import org.apache.olingo.server.api.uri.UriInfo;
 import org.apache.olingo.server.api.uri.UriResource;
 import org.apache.olingo.server.api.uri.UriResourceEntitySet;
+import org.apache.olingo.server.api.uri.queryoption.CountOption;
+import org.apache.olingo.server.api.uri.queryoption.OrderByOption;
+import org.apache.olingo.server.api.uri.queryoption.SelectOption;
 import org.apache.olingo.server.api.uri.queryoption.SkipOption;
 import org.apache.olingo.server.api.uri.queryoption.TopOption;
 import org.slf4j.Logger;
@@ -49,17 +69,37 @@ import org.apache.olingo.server.api.uri.queryoption.SystemQueryOptionKind;
  *
  * @author 100tsa
  */
-public class SesamEntityCollectionProcessor implements EntityCollectionProcessor {
+public class SesamEntityCollectionProcessor implements CountEntityCollectionProcessor {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(SesamEntityCollectionProcessor.class);
-    private static final int PAGE_SIZE = 100;
+    private static final PageSizing PAGE_SIZING = new PageSizing();
+    /**
+     * Env variable to switch off streaming of entity collections (enabled by default)
+     */
+    public static final String STREAMING_ENV = "SESAM_STREAMING";
+    private static final boolean STREAMING = Settings.getBoolean(STREAMING_ENV, true);
+    /**
+     * Env variable with max number of entities scanned to fill one filtered page, 0 (default) for no limit. When the
+     * limit is reached shorter page with next link is returned.
+     */
+    public static final String FILTER_SCAN_LIMIT_ENV = "SESAM_FILTER_SCAN_LIMIT";
+    private static final long FILTER_SCAN_LIMIT = Settings.getLong(FILTER_SCAN_LIMIT_ENV, 0);
+    private static final int FILTER_BATCH_SIZE = 1000;
+    private static final OffsetIndex OFFSETS = new OffsetIndex();
 
     private OData odata;
     private ServiceMetadata serviceMetadata;
     private final ServletContext ctx;
+    private final EdmSchema schema;
 
-    public SesamEntityCollectionProcessor(ServletContext servletContext) {
+    /**
+     *
+     * @param servletContext
+     * @param schema schema version served by this processor
+     */
+    public SesamEntityCollectionProcessor(ServletContext servletContext, EdmSchema schema) {
         this.ctx = servletContext;
+        this.schema = schema;
     }
 
     @Override
@@ -86,42 +126,149 @@ public class SesamEntityCollectionProcessor implements EntityCollectionProcessor
                 topNumber = topOption.getValue();
             }
 
-            int skiptoken = 0;
-            SkipTokenOption skipTokenOption = uI.getSkipTokenOption();
-            if (null != skipTokenOption) {
-                skiptoken = Integer.valueOf(skipTokenOption.getValue());
-            }
-
             EdmEntitySet edmEntitySet = uriResourceEntitySet.getEntitySet();
 
-            LOGGER.debug("Requesting {} entity set", edmEntitySet.getName());
-
-            // 2nd: fetch the data from backend for this requested EntitySetName
-            // it has to be delivered as EntitySet object
-            EntityCollection entitySet = getData(edmEntitySet, skipNumber, topNumber, skiptoken);
+            int queryHash = PageCursor.queryHash(edmEntitySet.getName(), uI);
+            SkipTokenOption skipTokenOption = uI.getSkipTokenOption();
+            PageCursor cursor = null == skipTokenOption ? PageCursor.FIRST
+                    : PageCursor.decode(skipTokenOption.getValue(), queryHash);
 
-            if (entitySet.getEntities().size() == PAGE_SIZE) {
-                entitySet.setNext(createNextLink(req.getRawRequestUri(), skiptoken + PAGE_SIZE));
-            }
+            LOGGER.debug("Requesting {} entity set", edmEntitySet.getName());
 
-            // 3rd: create a serializer based on the requested format (json)
+            // 2nd: create a serializer based on the requested format (json)
             ODataSerializer serializer = this.odata.createSerializer(cT);
 
-            // 4th: Now serialize the content: transform from the EntitySet object to InputStream
             EdmEntityType edmEntityType = edmEntitySet.getEntityType();
+            SelectOption selectOption = uI.getSelectOption();
             ContextURL contextUrl = ContextURL.with()
                     .entitySet(edmEntitySet)
+                    .selectList(this.odata.createUriHelper().buildContextURLSelectList(edmEntityType, null,
+                            selectOption))
                     .serviceRoot(new URI(req.getRawBaseUri() + "/"))
                     .build();
 
             final String id = req.getRawBaseUri() + "/" + edmEntitySet.getName();
+            CountOption countOption = uI.getCountOption();
+            boolean withCount = null != countOption && countOption.getValue();
             EntityCollectionSerializerOptions opts = EntityCollectionSerializerOptions.with().id(id)
-                    .contextURL(contextUrl).build();
-            SerializerResult serRes = serializer.entityCollection(this.serviceMetadata, edmEntityType, entitySet, opts);
-            InputStream serializedContent = serRes.getContent();
+                    .contextURL(contextUrl).count(countOption).select(selectOption).build();
+            String rawRequestUri = req.getRawRequestUri();
+            final int top = topNumber;
+
+            String edmSetName = getEdmSetName(edmEntitySet);
+            EntityMapper mapper = this.schema.getEntityMapper(edmSetName);
+            if (null == mapper) {
+                throw new ODataApplicationException("Entity set not found", HttpStatusCode.NOT_FOUND.getStatusCode(),
+                        Locale.ROOT);
+            }
+            Integer preferred = this.odata.createPreferences(req.getHeaders(HttpHeader.PREFER)).getMaxPageSize();
+            int maxPageSize = PAGE_SIZING.pageSize(edmSetName, preferred);
+            //values below 1 are ignored by page sizing, so they are not reported as applied
+            if (null != preferred && preferred > 0) {
+                res.setHeader(HttpHeader.PREFERENCE_APPLIED,
+                        PreferencesApplied.with().maxPageSize(maxPageSize).build().toValueString());
+            }
+            int pageSize = top < 0 ? maxPageSize : Math.min(maxPageSize, top);
+
+            //properties the query needs besides selected ones
+            BitSet referenced = new BitSet(mapper.size());
+            FilterCompiler.Operand filter = FilterCompiler.compileOperand(uI.getFilterOption(), mapper, referenced);
+            OrderByOption orderBy = uI.getOrderByOption();
+            EntitySorter sorter = null == orderBy || orderBy.getOrders().isEmpty() ? null
+                    : new EntitySorter(orderBy, mapper, referenced);
+            BitSet selected = Projection.selectedSlots(selectOption, mapper);
+            BitSet readSlots = Projection.readSlots(selected, referenced);
+
+            //counts and sorts of sets without ready replica scan the whole dataset in Sesam for every page
+            //lease is closed with the iterator, so the replica isn't dropped while the page is written
+            DatasetReplica.Lease lease = acquireReplica(edmEntitySet);
+            DatasetReplica replica = null == lease ? null : lease.getReplica();
+            if (null != replica) {
+                res.setHeader(Replicator.LAG_HEADER, String.valueOf(replica.getLag()));
+            }
+            String resultKey = resultKey(edmSetName, uI);
+            long version = null == replica ? -1 : replica.getStore().getSequence();
+            //next link continues after the last scanned entity, $skip is consumed and $top is reduced by served ones
+            SesamEntityIterator.NextLink nextLink = (since, offset, served) -> top < 0 || top > served
+                    ? createNextLink(rawRequestUri, new PageCursor(since, offset, version, queryHash),
+                            top < 0 ? -1 : top - served) : null;
+
+            // 3rd: open the source, entities will be fetched, filtered and converted while serializer reads them
+            SesamEntityIterator iterator;
+            try {
+                if (null != sorter) {
+                    if (cursor.offset < 0) {
+                        throw FilterCompiler.badRequest("$skiptoken doesn't belong to this query");
+                    }
+                    iterator = readOrdered(replica, lease, edmEntitySet, mapper, filter, sorter, selected, readSlots,
+                            skipNumber, topNumber, pageSize, cursor, rawRequestUri, queryHash);
+                } else {
+                    long since = cursor.since;
+                    long offset = cursor.offset;
+                    long skip = skipNumber;
+                    //offsets are recorded only from the dataset start, a recorded position or a cursor counted at the
+                    //current replica sequence, cursors of changed data would record shifted offsets for all clients
+                    boolean verified = null == skipTokenOption || version >= 0 && cursor.version == version;
+                    if (skip > 0 && offset >= 0) {
+                        OffsetIndex.Position position = OFFSETS.floor(resultKey, version, offset + skip);
+                        if (null != position && position.offset > offset) {
+                            LOGGER.debug("$skip={} of {} starts at offset {} after sequence {}", skipNumber,
+                                    edmEntitySet.getName(), position.offset, position.since);
+                            skip -= position.offset - offset;
+                            since = position.since;
+                            offset = position.offset;
+                            verified = true;
+                        }
+                    }
+                    iterator = null != replica
+                            ? readReplica(replica, lease, edmEntitySet, filter, selected, since, pageSize, nextLink)
+                            : openData(edmEntitySet, null == filter ? null : filter.predicate, selected, readSlots,
+                                    since, pageSize, skip, nextLink);
+                    iterator.skipping(skip, offset, verified ? OFFSETS.recorder(resultKey, version) : null);
+                }
+            } catch (ODataApplicationException | RuntimeException ex) {
+                if (null != lease) {
+                    lease.close();
+                }
+                throw ex;
+            }
+            if (withCount) {
+                try {
+                    iterator.setCount(toCount(countEntities(replica, edmEntitySet, mapper, filter, referenced,
+                            resultKey)));
+                } catch (ODataApplicationException | RuntimeException ex) {
+                    iterator.close();
+                    throw ex;
+                }
+            }
+            if (STREAMING) {
+                try {
+                    SerializerStreamResult serRes = serializer.entityCollectionStreamed(this.serviceMetadata,
+                            edmEntityType, iterator, opts);
+                    res.setODataContent(iterator.closeAfterWrite(serRes.getODataContent(), !PAGE_SIZING.isAdaptive()
+                            ? null : (bytes) -> PAGE_SIZING.record(edmSetName, bytes, iterator.getServed())));
+                } catch (SerializerException | RuntimeException ex) {
+                    iterator.close();
+                    throw ex;
+                }
+            } else {
+                // whole page is collected as EntitySet object before serialization
+                EntityCollection entitySet = new EntityCollection();
+                try {
+                    iterator.forEachRemaining(entitySet.getEntities()::add);
+                } finally {
+                    iterator.close();
+                }
+                entitySet.setNext(iterator.getNext());
+                entitySet.setCount(iterator.getCount());
+
+                // 4th: Now serialize the content: transform from the EntitySet object to InputStream
+                SerializerResult serRes = serializer.entityCollection(this.serviceMetadata, edmEntityType, entitySet,
+                        opts);
+                res.setContent(serRes.getContent());
+            }
 
             // Finally: configure the response object: set the body, headers and status code
-            res.setContent(serializedContent);
             res.setStatusCode(HttpStatusCode.OK.getStatusCode());
             res.setHeader(HttpHeader.CONTENT_TYPE, cT.toContentTypeString());
         } catch (URISyntaxException ex) {
@@ -129,6 +276,37 @@ public class SesamEntityCollectionProcessor implements EntityCollectionProcessor
         }
     }
 
+    @Override
+    public void countEntityCollection(ODataRequest req, ODataResponse res, UriInfo uI)
+            throws ODataApplicationException, ODataLibraryException {
+        UriResourceEntitySet uriResourceEntitySet = (UriResourceEntitySet) uI.getUriResourceParts().get(0);
+        EdmEntitySet edmEntitySet = uriResourceEntitySet.getEntitySet();
+        EntityMapper mapper = this.schema.getEntityMapper(getEdmSetName(edmEntitySet));
+        if (null == mapper) {
+            throw new ODataApplicationException("Entity set not found", HttpStatusCode.NOT_FOUND.getStatusCode(),
+                    Locale.ROOT);
+        }
+        BitSet referenced = new BitSet(mapper.size());
+        FilterCompiler.Operand filter = FilterCompiler.compileOperand(uI.getFilterOption(), mapper, referenced);
+        DatasetReplica.Lease lease = acquireReplica(edmEntitySet);
+        long count;
+        if (null == lease) {
+            count = countEntities(null, edmEntitySet, mapper, filter, referenced,
+                    resultKey(getEdmSetName(edmEntitySet), uI));
+        } else {
+            try {
+                res.setHeader(Replicator.LAG_HEADER, String.valueOf(lease.getReplica().getLag()));
+                count = countEntities(lease.getReplica(), edmEntitySet, mapper, filter, referenced,
+                        resultKey(getEdmSetName(edmEntitySet), uI));
+            } finally {
+                lease.close();
+            }
+        }
+        res.setContent(this.odata.createFixedFormatSerializer().count(toCount(count)));
+        res.setStatusCode(HttpStatusCode.OK.getStatusCode());
+        res.setHeader(HttpHeader.CONTENT_TYPE, ContentType.TEXT_PLAIN.toContentTypeString());
+    }
+
     @Override
     public void init(OData odata, ServiceMetadata serviceMetadata) {
         LOGGER.debug("Initializing oData collections processor class {}", getClass().getName());
@@ -137,63 +315,308 @@ public class SesamEntityCollectionProcessor implements EntityCollectionProcessor
     }
 
     /**
+     * Opens streamed page of entities from backend
      *
      * @param edmEntitySet
+     * @param filter $filter predicate or null
+     * @param selected slots of selected properties, null for all
+     * @param readSlots slots read from Sesam entities, null for all
+     * @param since sequence to read after
+     * @param pageSize
+     * @param skip number of entities which will be skipped before the page
+     * @param nextLink creates link to the next page
+     * @return entity iterator, must be closed after serialization
+     * @throws ODataApplicationException if upstream stream couldn't be opened
+     */
+    private SesamEntityIterator openData(EdmEntitySet edmEntitySet, Predicate<EntityMapper.Values> filter,
+            BitSet selected, BitSet readSlots, long since, int pageSize, long skip, SesamEntityIterator.NextLink nextLink)
+            throws ODataApplicationException {
+        String edmSetName = getEdmSetName(edmEntitySet);
+        Dataset dataset = this.schema.getDataset(edmSetName);
+        EntityMapper mapper = this.schema.getEntityMapper(edmSetName);
+        if (null == dataset || null == mapper) {
+            throw new ODataApplicationException("Entity set not found", HttpStatusCode.NOT_FOUND.getStatusCode(),
+                    Locale.ROOT);
+        }
+        try {
+            //filtered or skipping pages are likely to need more than one page of upstream entities
+            int batchSize = null == filter && skip == 0 ? Math.max(1, pageSize)
+                    : Math.max(FILTER_BATCH_SIZE, pageSize);
+            Prefetcher prefetcher = (Prefetcher) this.ctx.getAttribute(AppStartListener.PREFETCHER);
+            SingleFlight singleFlight = (SingleFlight) this.ctx.getAttribute(AppStartListener.SINGLE_FLIGHT);
+            SesamDataLoader loader = getDataSource();
+            EntityStream firstBatch = null == prefetcher ? null : prefetcher.take(dataset.getId(), since, batchSize);
+            if (null == firstBatch && null != singleFlight) {
+                firstBatch = singleFlight.openData(loader, dataset.getId(), since, batchSize);
+            }
+            EntityFeed feed = new EntityFeed(loader, dataset.getId(), since, batchSize, firstBatch);
+            SesamEntityIterator.NextLink link = nextLink;
+            if (null != prefetcher) {
+                //next page starts without $skip, so with the batch size of a not skipping page
+                int nextBatchSize = null == filter ? Math.max(1, pageSize) : Math.max(FILTER_BATCH_SIZE, pageSize);
+                link = (last, offset, served) -> {
+                    URI uri = nextLink.create(last, offset, served);
+                    if (null != uri) {
+                        prefetcher.prefetch(dataset.getId(), last, nextBatchSize);
+                    }
+                    return uri;
+                };
+            }
+            return new SesamEntityIterator(readFeed(feed, mapper, readSlots), feed, filter, (entity) -> toEntity(entity,
+                    mapper, edmEntitySet.getName(), selected), pageSize, FILTER_SCAN_LIMIT, since, link);
+        } catch (IOException ex) {
+            LOGGER.error("Couldn't read entities of {} from Sesam: {}", dataset.getId(), ex.getMessage());
+            throw new ODataApplicationException("Couldn't read data from Sesam",
+                    HttpStatusCode.INTERNAL_SERVER_ERROR.getStatusCode(), Locale.ROOT, ex);
+        }
+    }
+
+    /**
+     * Counts entities of the set. Replica maintains number of live entities from the change feed, so unfiltered count
+     * is taken in constant time. Filtered counts test compiled $filter against entity values without creating OData
+     * entities, only index candidates are tested when indexes can answer the filter. Filtered count is kept for the
+     * replica sequence it was taken at, so next pages of the same query don't count again. Sets without ready replica
+     * are counted by reading only filtered properties of the whole dataset from Sesam, such counts aren't kept as data
+     * in Sesam may change any time.
      *
-     * @return
+     * @param replica ready replica or null to count entities in Sesam
+     * @param edmEntitySet
+     * @param mapper
+     * @param filter compiled $filter or null
+     * @param referenced slots of properties the filter needs
+     * @param resultKey dataset and filter key of the result
+     * @return number of not deleted entities matching the filter
+     * @throws ODataApplicationException if entities couldn't be read from Sesam
+     */
+    private long countEntities(DatasetReplica replica, EdmEntitySet edmEntitySet, EntityMapper mapper,
+            FilterCompiler.Operand filter, BitSet referenced, String resultKey) throws ODataApplicationException {
+        if (null == replica) {
+            return scanUpstream(edmEntitySet, mapper, referenced, (entities) -> count(entities,
+                    null == filter ? null : filter.predicate));
+        }
+        if (null == filter) {
+            return replica.getStore().size();
+        }
+        long version = replica.getStore().getSequence();
+        long count = OFFSETS.size(resultKey, version);
+        if (count < 0) {
+            count = count(scanReplica(replica, filter, PageCursor.FIRST.since), filter.predicate);
+            OFFSETS.recordSize(resultKey, version, count);
+        }
+        return count;
+    }
+
+    private static long count(Iterator<ReplicatedEntity> entities, Predicate<EntityMapper.Values> predicate) {
+        long count = 0;
+        while (entities.hasNext()) {
+            ReplicatedEntity entity = entities.next();
+            if (null == predicate || predicate.test(entity.getValues())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int toCount(long count) {
+        //OData serializer takes int counts
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads page of entities sorted by $orderby. Whole (filtered) replica or, if the set has no ready replica, whole
+     * dataset in Sesam is scanned for every page, cursor offset is number of sorted entities already skipped or served.
+     *
+     * @param replica ready replica or null to read entities from Sesam
+     * @param lease lease of the replica, closed with the iterator
+     * @param edmEntitySet
+     * @param mapper
+     * @param filter compiled $filter or null
+     * @param sorter
+     * @param selected slots of selected properties, null for all
+     * @param readSlots slots read from Sesam entities, null for all
+     * @param skip $skip value
+     * @param top $top value or -1
+     * @param pageSize max number of entities in the page
+     * @param cursor position of the page
+     * @param rawRequestUri
+     * @param queryHash
+     * @return entity iterator over sorted page
+     * @throws ODataApplicationException if entities couldn't be read from Sesam
+     */
+    private SesamEntityIterator readOrdered(DatasetReplica replica, DatasetReplica.Lease lease,
+            EdmEntitySet edmEntitySet, EntityMapper mapper, FilterCompiler.Operand filter, EntitySorter sorter,
+            BitSet selected, BitSet readSlots, int skip, int top, int pageSize, PageCursor cursor, String rawRequestUri,
+            int queryHash) throws ODataApplicationException {
+        long version = null == replica ? -1 : replica.getStore().getSequence();
+        long start = skip + cursor.offset;
+        long limit = top < 0 ? Long.MAX_VALUE : start + top;
+        long end = Math.min(limit, start + pageSize);
+        Predicate<EntityMapper.Values> predicate = null == filter ? null : filter.predicate;
+
+        List<ReplicatedEntity> window = null != replica
+                ? sorter.window(scanReplica(replica, filter, PageCursor.FIRST.since), predicate, start, end)
+                : scanUpstream(edmEntitySet, mapper, readSlots, (entities) -> sorter.window(entities, predicate, start,
+                        end));
+        //next page continues at the end of this window unless $top is exhausted
+        SesamEntityIterator.NextLink nextLink = (since, offset, served) -> end < limit
+                ? createNextLink(rawRequestUri, new PageCursor(-1, end, version, queryHash), top < 0 ? -1 : limit - end)
+                : null;
+        return new SesamEntityIterator(window.iterator(), lease, null, (entity) -> toEntity(entity, mapper,
+                edmEntitySet.getName(), selected), pageSize, 0, 0, nextLink);
+    }
+
+    /**
+     * Reads all entities of the set from Sesam, used for results which need the whole dataset when the set has no ready
+     * replica
+     *
+     * @param <T> result type
+     * @param edmEntitySet
+     * @param mapper
+     * @param readSlots slots read from Sesam entities, null for all
+     * @param consumer computes result from entities in sequence order, entities are read while it iterates them
+     * @return result of the consumer
+     * @throws ODataApplicationException if entities couldn't be read from Sesam
      */
-    private EntityCollection getData(EdmEntitySet edmEntitySet, int skipNumber, int topNumber, int skiptoken) {
-        //TODO addsupport for skipNumber & topNumber
-        EntityCollection entityCollection = new EntityCollection();
-        List<Entity> entities = entityCollection.getEntities();
+    private <T> T scanUpstream(EdmEntitySet edmEntitySet, EntityMapper mapper, BitSet readSlots,
+            Function<Iterator<ReplicatedEntity>, T> consumer) throws ODataApplicationException {
+        Dataset dataset = this.schema.getDataset(getEdmSetName(edmEntitySet));
+        if (null == dataset) {
+            throw new ODataApplicationException("Entity set not found", HttpStatusCode.NOT_FOUND.getStatusCode(),
+                    Locale.ROOT);
+        }
+        LOGGER.debug("Scanning whole {} in Sesam, replica is not available", dataset.getId());
+        try (EntityFeed feed = new EntityFeed(getDataSource(), dataset.getId(), PageCursor.FIRST.since,
+                FILTER_BATCH_SIZE)) {
+            return consumer.apply(readFeed(feed, mapper, readSlots));
+        } catch (IOException | UncheckedIOException ex) {
+            LOGGER.error("Couldn't read entities of {} from Sesam: {}", dataset.getId(), ex.getMessage());
+            throw new ODataApplicationException("Couldn't read data from Sesam",
+                    HttpStatusCode.INTERNAL_SERVER_ERROR.getStatusCode(), Locale.ROOT, ex);
+        }
+    }
+
+    private static Iterator<ReplicatedEntity> readFeed(EntityFeed feed, EntityMapper mapper, BitSet readSlots) {
+        return new Iterator<ReplicatedEntity>() {
+            @Override
+            public boolean hasNext() {
+                return feed.hasNext();
+            }
+
+            @Override
+            public ReplicatedEntity next() {
+                JsonNode entity = feed.next();
+                return new ReplicatedEntity(entity.path("_id").asText(), entity.path("_updated").asLong(),
+                        mapper.read(entity, readSlots));
+            }
+        };
+    }
+
+    /**
+     * Reads page of entities from local replica, secondary indexes are used if they can answer the filter
+     *
+     * @param replica
+     * @param lease lease of the replica, closed with the iterator
+     * @param edmEntitySet
+     * @param filter compiled $filter or null
+     * @param selected slots of selected properties, null for all
+     * @param since sequence to read after
+     * @param pageSize
+     * @param nextLink creates link to the next page
+     * @return entity iterator
+     */
+    private SesamEntityIterator readReplica(DatasetReplica replica, DatasetReplica.Lease lease,
+            EdmEntitySet edmEntitySet, FilterCompiler.Operand filter, BitSet selected, long since, int pageSize,
+            SesamEntityIterator.NextLink nextLink) {
+        EntityMapper mapper = replica.getMapper();
+        return new SesamEntityIterator(scanReplica(replica, filter, since), lease,
+                null == filter ? null : filter.predicate, (entity) -> toEntity(entity, mapper, edmEntitySet.getName(),
+                selected), pageSize, FILTER_SCAN_LIMIT, since, nextLink);
+    }
+
+    /**
+     *
+     * @param replica
+     * @param filter compiled $filter or null
+     * @param since
+     * @return replica entities after since in sequence order, only index candidates if indexes can answer the filter
+     */
+    private static Iterator<ReplicatedEntity> scanReplica(DatasetReplica replica, FilterCompiler.Operand filter,
+            long since) {
+        if (null != filter && null != filter.candidates) {
+            Set<String> candidates = filter.candidates.find(replica.getIndexes());
+            if (null != candidates) {
+                LOGGER.debug("Filter of {} answered from index with {} candidates", replica.getDatasetId(),
+                        candidates.size());
+                return candidates.stream()
+                        .map(replica.getStore()::get)
+                        .filter((entity) -> null != entity && entity.getSequence() > since)
+                        .sorted(Comparator.comparingLong(ReplicatedEntity::getSequence))
+                        .iterator();
+            }
+        }
+        return replica.getStore().after(since);
+    }
+
+    /**
+     *
+     * @param edmSetName
+     * @param uI
+     * @return key of the dataset and filter the offsets and counts of a result are kept under
+     */
+    private static String resultKey(String edmSetName, UriInfo uI) {
+        return edmSetName + '?' + (null == uI.getFilterOption() ? "" : uI.getFilterOption().getText());
+    }
+
+    /**
+     *
+     * @param edmEntitySet
+     * @return lease of ready replica of the entity set dataset or null if set must be served from Sesam
+     */
+    private DatasetReplica.Lease acquireReplica(EdmEntitySet edmEntitySet) {
+        Replicator replicator = (Replicator) this.ctx.getAttribute(AppStartListener.REPLICATOR);
+        String edmSetName = getEdmSetName(edmEntitySet);
+        Dataset dataset = this.schema.getDataset(edmSetName);
+        if (null == replicator || null == dataset) {
+            return null;
+        }
+        DatasetReplica replica = replicator.getReplica(dataset.getId(), this.schema.getEntityMapper(edmSetName));
+        return null == replica ? null : replica.acquire();
+    }
+
+    private SesamDataLoader getDataSource() {
+        return new SesamDataLoader((SesamHttpClient) this.ctx.getAttribute(AppStartListener.SESAM_CLIENT));
+    }
+
+    private static String getEdmSetName(EdmEntitySet edmEntitySet) {
         String edmSetName = edmEntitySet.getName();
         if (edmSetName.endsWith(SET_POSTFIX)) {
             edmSetName = edmSetName.replace(SET_POSTFIX, "");
         }
-        if (!SesamEdmProvider.getEdmMap().containsKey(edmSetName)) {
-            return entityCollection;
-        }
-
-        Dataset dataset = SesamEdmProvider.getEdmRefMap().get(edmSetName);
-        List<PipeMetadata> metadata = SesamEdmProvider.getEdmMap().get(edmSetName);
-
-        SesamDataLoader dataSource = new SesamDataLoader(
-                (String) this.ctx.getAttribute(AppStartListener.SESAM_BASE_URL),
-                (byte[]) this.ctx.getAttribute(AppStartListener.SESAM_TOKEN));
-
-        List<JsonNode> data = dataSource.getData(dataset.getId(), skiptoken, PAGE_SIZE);
-        data.forEach((jsonNode) -> {
-            Entity entity = new Entity();
-            jsonNode.fields().forEachRemaining((entry) -> {
-                String key = entry.getKey();
-
-                metadata.forEach((metadataObj) -> {
-                    String[] splitedKey = key.split(":");
-                    String entityValue = entry.getValue().asText();
-                    if (metadataObj.name.equals(key) || metadataObj.name.equals(splitedKey[splitedKey.length - 1])) {
-                        Object entityValueObj = this.resolveEntityType(metadataObj.type, entityValue);
-                        if (key.contains(":")) {
-                            String[] splitedName = key.split(":");
-                            entity.addProperty(new Property(null, splitedName[1], ValueType.PRIMITIVE, entityValueObj));
-                        } else {
-                            entity.addProperty(new Property(null, key, ValueType.PRIMITIVE, entityValueObj));
-                        }
-
-                    }
-                });
+        return edmSetName;
+    }
 
-            });
-            String id = jsonNode.get("_id").asText();
-            //ensure tyhat id do not have namespace as colon is illegal as part of URI
-            //but quoted string seems to have it allowed
-            if (null != id && id.contains(":")) {
-                id = id.split(":")[1];
-            }
-            entity.setId(createId(edmEntitySet.getName(), id));
-            entities.add(entity);
-        });
+    /**
+     * Converts Sesam entity to OData entity
+     *
+     * @param entity Sesam entity
+     * @param mapper entity type property mapper
+     * @param entitySetName
+     * @param selected slots of selected properties, null for all
+     * @return
+     */
+    private Entity toEntity(ReplicatedEntity entity, EntityMapper mapper, String entitySetName, BitSet selected) {
+        Entity odataEntity = mapper.toEntity(entity.getValues(), selected);
+        odataEntity.setId(createId(entitySetName, stripNamespace(entity.getId())));
+        return odataEntity;
+    }
 
-        return entityCollection;
+    private static String stripNamespace(String id) {
+        //ensure tyhat id do not have namespace as colon is illegal as part of URI
+        //but quoted string seems to have it allowed
+        if (null != id && id.contains(":")) {
+            return id.split(":")[1];
+        }
+        return id;
     }
 
     private URI createId(String entitySetName, Object id) {
@@ -207,36 +630,40 @@ public class SesamEntityCollectionProcessor implements EntityCollectionProcessor
         }
     }
 
-    private Object resolveEntityType(String type, String entityValue) {
-        switch (type) {
-            case "string":
-                return entityValue;
-            case "integer":
-                return Long.valueOf(entityValue);
-            case "datetime":
-                return entityValue.replace("~t", "");
+    /**
+     * Creates next link from request URI, previous $skiptoken and $skip are dropped as they are consumed
+     *
+     * @param rawRequestUri
+     * @param cursor position of the next page
+     * @param top $top of the rest of the result, -1 if not limited
+     * @return next link
+     */
+    private static URI createNextLink(final String rawRequestUri, final PageCursor cursor, final long top) {
+        int queryStart = rawRequestUri.indexOf('?');
+        StringBuilder nextlink = new StringBuilder(queryStart < 0 ? rawRequestUri
+                : rawRequestUri.substring(0, queryStart));
+        char separator = '?';
+        if (queryStart >= 0) {
+            for (String parameter : rawRequestUri.substring(queryStart + 1).split("&")) {
+                String name = parameter.split("=", 2)[0].replace("%24", "$");
+                if (parameter.isEmpty() || SystemQueryOptionKind.SKIPTOKEN.toString().equals(name)
+                        || SystemQueryOptionKind.SKIP.toString().equals(name)
+                        || SystemQueryOptionKind.TOP.toString().equals(name)) {
+                    continue;
+                }
+                nextlink.append(separator).append(parameter);
+                separator = '&';
+            }
         }
-        //fallback to string as default
-        return entityValue;
-    }
-
-    private static URI createNextLink(final String rawRequestUri, final int skipToken)
-            throws ODataApplicationException {
-        // Remove a maybe existing skiptoken, making sure that the query part is not empty.
-        String nextlink = rawRequestUri.contains("?")
-                ? rawRequestUri.replaceAll("(\\$|%24)skiptoken=.+&?", "").replaceAll("(\\?|&)$", "")
-                : rawRequestUri;
-
-        // Add a question mark or an ampersand, depending on the current query part.
-        nextlink += nextlink.contains("?") ? '&' : '?';
-
-        // Append the new skiptoken.
-        nextlink += SystemQueryOptionKind.SKIPTOKEN.toString() + '=' + skipToken;
+        if (top >= 0) {
+            nextlink.append(separator).append(SystemQueryOptionKind.TOP.toString()).append('=').append(top);
+            separator = '&';
+        }
+        nextlink.append(separator).append(SystemQueryOptionKind.SKIPTOKEN.toString()).append('=').append(cursor.encode());
         try {
-            return new URI(nextlink);
+            return new URI(nextlink.toString());
         } catch (final URISyntaxException e) {
-            throw new ODataApplicationException("Exception while constructing next link",
-                    HttpStatusCode.INTERNAL_SERVER_ERROR.getStatusCode(), Locale.ROOT, e);
+            throw new ODataRuntimeException("Exception while constructing next link", e);
         }
     }
 
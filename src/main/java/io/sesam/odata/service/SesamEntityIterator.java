@@ -0,0 +1,250 @@
+package io.sesam.odata.service;
+
+import io.sesam.odata.edm.EntityMapper;
+import io.sesam.odata.replica.ReplicatedEntity;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.EntityIterator;
+import org.apache.olingo.server.api.ODataContent;
+
+/**
+ * Entity iterator for streamed serialization, filters Sesam entities and converts matching ones to OData entities one
+ * by one while serializer writes them to the client. Source is read until the page is full, so filtered pages are not
+ * shorter than unfiltered ones.
+ */
+class SesamEntityIterator extends EntityIterator implements Closeable {
+
+    /**
+     * Creates link to the next page
+     */
+    @FunctionalInterface
+    interface NextLink {
+
+        /**
+         *
+         * @param since sequence of the last scanned entity
+         * @param offset offset of the next entity in the whole result, -1 if unknown
+         * @param served number of entities in this page
+         * @return link or null if there is no next page
+         */
+        URI create(long since, long offset, int served);
+    }
+
+    private final Iterator<ReplicatedEntity> source;
+    private final Closeable resource;
+    private final Predicate<EntityMapper.Values> filter;
+    private final Function<ReplicatedEntity, Entity> converter;
+    private final int pageSize;
+    private final long scanLimit;
+    private final NextLink nextLink;
+    private ReplicatedEntity pending;
+    private long sequence;
+    private long scanned;
+    private int count;
+    private Integer total;
+    private long skip;
+    private long offset;
+    private OffsetIndex.Recorder recorder;
+
+    /**
+     *
+     * @param source Sesam entities in sequence order
+     * @param resource resource to release after serialization (upstream stream), may be null
+     * @param filter $filter predicate, null if all entities match
+     * @param converter Sesam to OData entity converter
+     * @param pageSize max number of entities in the page
+     * @param scanLimit max number of entities scanned for one page, 0 for no limit
+     * @param since sequence the page starts after
+     * @param nextLink creates link to the page starting after given sequence
+     */
+    SesamEntityIterator(Iterator<ReplicatedEntity> source, Closeable resource, Predicate<EntityMapper.Values> filter,
+            Function<ReplicatedEntity, Entity> converter, int pageSize, long scanLimit, long since,
+            NextLink nextLink) {
+        this.source = source;
+        this.resource = resource;
+        this.filter = filter;
+        this.converter = converter;
+        this.pageSize = pageSize;
+        this.scanLimit = scanLimit;
+        this.sequence = since;
+        this.nextLink = nextLink;
+    }
+
+    /**
+     * Drops first matching entities and reports offsets of matching entities while scanning
+     *
+     * @param skip number of matching entities to drop
+     * @param offset offset of the first matching entity after since in the whole result, -1 if unknown
+     * @param recorder offset consumer, used only if offset is known, may be null
+     * @return this iterator
+     */
+    SesamEntityIterator skipping(long skip, long offset, OffsetIndex.Recorder recorder) {
+        this.skip = skip;
+        this.offset = offset;
+        this.recorder = offset < 0 ? null : recorder;
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (null != this.pending) {
+            return true;
+        }
+        if (this.count >= this.pageSize) {
+            return false;
+        }
+        while (!isScanLimitReached() && this.source.hasNext()) {
+            ReplicatedEntity candidate = this.source.next();
+            long previous = this.sequence;
+            this.sequence = candidate.getSequence();
+            if (this.skip == 0) {
+                //skipped entities are not limited, the skip can't be resumed from a next link
+                this.scanned++;
+            }
+            if (null == this.filter || this.filter.test(candidate.getValues())) {
+                if (null != this.recorder) {
+                    this.recorder.record(this.offset, previous);
+                }
+                if (this.offset >= 0) {
+                    this.offset++;
+                }
+                if (this.skip > 0) {
+                    this.skip--;
+                    continue;
+                }
+                this.pending = candidate;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Entity next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Entity entity = this.converter.apply(this.pending);
+        this.pending = null;
+        this.count++;
+        return entity;
+    }
+
+    /**
+     * Next link is written after all entities, so at this point we know if page was full or scan was cut short
+     *
+     * @return next link or null if it was the last page
+     */
+    @Override
+    public URI getNext() {
+        return this.count == this.pageSize || isScanLimitReached()
+                ? this.nextLink.create(this.sequence, this.offset, this.count) : null;
+    }
+
+    /**
+     *
+     * @return total number of entities in the collection if $count was requested
+     */
+    @Override
+    public Integer getCount() {
+        return this.total;
+    }
+
+    @Override
+    public void setCount(Integer count) {
+        this.total = count;
+    }
+
+    private boolean isScanLimitReached() {
+        return this.scanLimit > 0 && this.scanned >= this.scanLimit;
+    }
+
+    @Override
+    public void close() {
+        if (null == this.resource) {
+            return;
+        }
+        try {
+            this.resource.close();
+        } catch (IOException ex) {
+            //nothing to do, page has been written or failed already
+        }
+    }
+
+    /**
+     *
+     * @return number of entities returned so far
+     */
+    int getServed() {
+        return this.count;
+    }
+
+    /**
+     * Wraps serializer content to release upstream connection when content has been written or writing failed
+     *
+     * @param content streamed serializer content
+     * @param written consumer of number of bytes written, may be null
+     * @return wrapped content
+     */
+    ODataContent closeAfterWrite(final ODataContent content, final LongConsumer written) {
+        return new ODataContent() {
+            @Override
+            public void write(WritableByteChannel channel) {
+                if (null == written) {
+                    try {
+                        content.write(channel);
+                    } finally {
+                        close();
+                    }
+                } else {
+                    write(Channels.newOutputStream(channel));
+                }
+            }
+
+            @Override
+            public void write(OutputStream stream) {
+                CountingOutputStream counting = null == written ? null : new CountingOutputStream(stream);
+                try {
+                    content.write(null == counting ? stream : counting);
+                } finally {
+                    close();
+                    if (null != counting) {
+                        written.accept(counting.bytes);
+                    }
+                }
+            }
+        };
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private long bytes;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this.bytes += len;
+        }
+    }
+}
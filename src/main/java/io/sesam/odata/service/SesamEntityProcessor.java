@@ -1,12 +1,19 @@
 package io.sesam.odata.service;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import io.sesam.odata.edm.SesamEdmProvider;
+import io.sesam.odata.edm.EntityMapper;
+import io.sesam.odata.edm.EdmSchema;
 import static io.sesam.odata.edm.SesamEdmProvider.SET_POSTFIX;
 import io.sesam.odata.infrastructure.AppStartListener;
+import io.sesam.odata.infrastructure.EntityCache;
 import io.sesam.odata.infrastructure.SesamDataLoader;
+import io.sesam.odata.infrastructure.SesamHttpClient;
+import io.sesam.odata.infrastructure.SingleFlight;
 import io.sesam.odata.infrastructure.models.Dataset;
-import io.sesam.odata.infrastructure.models.PipeMetadata;
+import io.sesam.odata.replica.DatasetReplica;
+import io.sesam.odata.replica.ReplicatedEntity;
+import io.sesam.odata.replica.Replicator;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -15,8 +22,6 @@ import java.util.Locale;
 import javax.servlet.ServletContext;
 import org.apache.olingo.commons.api.data.ContextURL;
 import org.apache.olingo.commons.api.data.Entity;
-import org.apache.olingo.commons.api.data.Property;
-import org.apache.olingo.commons.api.data.ValueType;
 import org.apache.olingo.commons.api.edm.EdmEntitySet;
 import org.apache.olingo.commons.api.edm.EdmEntityType;
 import org.apache.olingo.commons.api.format.ContentType;
@@ -36,6 +41,7 @@ import org.apache.olingo.server.api.uri.UriInfo;
 import org.apache.olingo.server.api.uri.UriParameter;
 import org.apache.olingo.server.api.uri.UriResource;
 import org.apache.olingo.server.api.uri.UriResourceEntitySet;
+import org.apache.olingo.server.api.uri.queryoption.SelectOption;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,9 +58,16 @@ public class SesamEntityProcessor implements EntityProcessor {
     private OData odata;
     private ServiceMetadata metadata;
     private final ServletContext ctx;
-
-    public SesamEntityProcessor(ServletContext ctx) {
-        this.ctx = ctx;
+    private final EdmSchema schema;
+
+    /**
+     *
+     * @param servletContext
+     * @param schema schema version served by this processor
+     */
+    public SesamEntityProcessor(ServletContext servletContext, EdmSchema schema) {
+        this.ctx = servletContext;
+        this.schema = schema;
     }
 
     @Override
@@ -69,7 +82,18 @@ public class SesamEntityProcessor implements EntityProcessor {
 
             // 2. retrieve the data from backend
             List<UriParameter> keyPredicates = uriResourceEntitySet.getKeyPredicates();
-            Entity entity = getData(edmEntitySet, keyPredicates);
+            SelectOption selectOption = uI.getSelectOption();
+            EntityVersion version = getData(edmEntitySet, keyPredicates, res);
+            if (null != version.eTag) {
+                res.setHeader(HttpHeader.ETAG, version.eTag);
+                if (this.odata.createETagHelper().checkReadPreconditions(version.eTag,
+                        req.getHeaders(HttpHeader.IF_MATCH), req.getHeaders(HttpHeader.IF_NONE_MATCH))) {
+                    res.setStatusCode(HttpStatusCode.NOT_MODIFIED.getStatusCode());
+                    return;
+                }
+            }
+            Entity entity = version.mapper.toEntity(version.values,
+                    Projection.selectedSlots(selectOption, version.mapper));
 
             // 3. serialize
             EdmEntityType entityType = edmEntitySet.getEntityType();
@@ -77,10 +101,13 @@ public class SesamEntityProcessor implements EntityProcessor {
             ContextURL contextUrl = ContextURL
                     .with()
                     .entitySet(edmEntitySet)
+                    .selectList(this.odata.createUriHelper().buildContextURLSelectList(entityType, null, selectOption))
+                    .suffix(ContextURL.Suffix.ENTITY)
                     .serviceRoot(new URI(req.getRawBaseUri() + "/"))
                     .build();
-            // expand and select currently not supported
-            EntitySerializerOptions options = EntitySerializerOptions.with().contextURL(contextUrl).build();
+            // expand currently not supported
+            EntitySerializerOptions options = EntitySerializerOptions.with().contextURL(contextUrl)
+                    .select(selectOption).build();
 
             ODataSerializer serializer = odata.createSerializer(cT);
             SerializerResult serializerResult = serializer.entity(this.metadata, entityType, entity, options);
@@ -120,64 +147,101 @@ public class SesamEntityProcessor implements EntityProcessor {
         this.metadata = serviceMetadata;
     }
 
-    private Entity getData(EdmEntitySet edmEntitySet, List<UriParameter> keyPredicates) {
-        EdmEntityType edmEntityType = edmEntitySet.getEntityType();
-        String edmTypeName = edmEntityType.getName();
+    /**
+     * Reads entity values from replica, entity cache or Sesam
+     *
+     * @param edmEntitySet
+     * @param keyPredicates
+     * @param res response to set replica lag header on
+     * @return entity values with ETag
+     * @throws ODataApplicationException if entity set or entity doesn't exist
+     */
+    private EntityVersion getData(EdmEntitySet edmEntitySet, List<UriParameter> keyPredicates, ODataResponse res)
+            throws ODataApplicationException {
         String entityId = keyPredicates.get(0).getText().replace("'", "");
 
         String edmSetName = edmEntitySet.getName();
         if (edmSetName.endsWith(SET_POSTFIX)) {
             edmSetName = edmSetName.replace(SET_POSTFIX, "");
         }
-        if (!SesamEdmProvider.getEdmMap().containsKey(edmSetName)) {
-            return null;
+        if (!this.schema.contains(edmSetName)) {
+            throw new ODataApplicationException("Entity set not found", HttpStatusCode.NOT_FOUND.getStatusCode(),
+                    Locale.ROOT);
         }
 
-        Dataset dataset = SesamEdmProvider.getEdmRefMap().get(edmSetName);
-        List<PipeMetadata> pipeMetadata = SesamEdmProvider.getEdmMap().get(edmSetName);
-
-        SesamDataLoader dataSource = new SesamDataLoader(
-                (String) this.ctx.getAttribute(AppStartListener.SESAM_BASE_URL),
-                (byte[]) this.ctx.getAttribute(AppStartListener.SESAM_TOKEN));
+        Dataset dataset = this.schema.getDataset(edmSetName);
+        EntityMapper mapper = this.schema.getEntityMapper(edmSetName);
 
         String namespacedId = dataset.getId() + ":" + entityId;
-        JsonNode entity = dataSource.getEntity(dataset.getId(), namespacedId);
-        Entity resultEntity = new Entity();
-
-        entity.fields().forEachRemaining((entry) -> {
-            String key = entry.getKey();
-
-            pipeMetadata.forEach((metadataObj) -> {
-                String[] splitedKey = key.split(":");
-                String entityValue = entry.getValue().asText();
-                if (metadataObj.name.equals(key) || metadataObj.name.equals(splitedKey[splitedKey.length - 1])) {
-                    Object entityValueObj = this.resolveEntityType(metadataObj.type, entityValue);
-                    if (key.contains(":")) {
-                        String[] splitedName = key.split(":");
-                        resultEntity.addProperty(new Property(null, splitedName[1], ValueType.PRIMITIVE, entityValueObj));
-                    } else {
-                        resultEntity.addProperty(new Property(null, key, ValueType.PRIMITIVE, entityValueObj));
-                    }
 
+        Replicator replicator = (Replicator) this.ctx.getAttribute(AppStartListener.REPLICATOR);
+        DatasetReplica replica = null == replicator ? null : replicator.getReplica(dataset.getId(), mapper);
+        DatasetReplica.Lease lease = null == replica ? null : replica.acquire();
+        if (null != lease) {
+            try {
+                res.setHeader(Replicator.LAG_HEADER, String.valueOf(replica.getLag()));
+                ReplicatedEntity replicated = replica.getStore().get(namespacedId);
+                if (null == replicated) {
+                    throw new ODataApplicationException("Entity not found", HttpStatusCode.NOT_FOUND.getStatusCode(),
+                            Locale.ROOT);
                 }
-            });
-        });
+                //replica doesn't keep _hash, sequence changes with every new version of the entity
+                return new EntityVersion(mapper, replicated.getValues(), "\"" + replicated.getSequence() + "\"");
+            } finally {
+                lease.close();
+            }
+        }
 
-        return resultEntity;
+        EntityCache cache = (EntityCache) this.ctx.getAttribute(AppStartListener.ENTITY_CACHE);
+        EntityCache.Entry cached = null == cache ? null : cache.get(dataset.getId(), namespacedId, mapper);
+        if (null == cached) {
+            SesamDataLoader dataSource = new SesamDataLoader(
+                    (SesamHttpClient) this.ctx.getAttribute(AppStartListener.SESAM_CLIENT));
+            SingleFlight singleFlight = (SingleFlight) this.ctx.getAttribute(AppStartListener.SINGLE_FLIGHT);
+            JsonNode entity;
+            if (null == singleFlight) {
+                entity = dataSource.getEntity(dataset.getId(), namespacedId);
+            } else {
+                try {
+                    entity = singleFlight.execute("entity:" + dataset.getId() + '/' + namespacedId,
+                            () -> dataSource.getEntity(dataset.getId(), namespacedId));
+                } catch (IOException ex) {
+                    throw new ODataApplicationException("Couldn't read entity from Sesam",
+                            HttpStatusCode.INTERNAL_SERVER_ERROR.getStatusCode(), Locale.ROOT, ex);
+                }
+            }
+            if (null == entity) {
+                throw new ODataApplicationException("Entity not found", HttpStatusCode.NOT_FOUND.getStatusCode(),
+                        Locale.ROOT);
+            }
+            EntityMapper.Values values = mapper.read(entity);
+            String hash = entity.path("_hash").asText(null);
+            if (null == cache) {
+                return new EntityVersion(mapper, values, toETag(hash));
+            }
+            cached = cache.put(dataset.getId(), namespacedId, mapper, values, hash);
+        }
+        return new EntityVersion(mapper, cached.getValues(), toETag(cached.getHash()));
+    }
 
+    private static String toETag(String hash) {
+        return null == hash || hash.isEmpty() ? null : "\"" + hash + "\"";
     }
 
-    private Object resolveEntityType(String type, String entityValue) {
-        switch (type) {
-            case "string":
-                return entityValue;
-            case "integer":
-                return Long.valueOf(entityValue);
-            case "datetime":
-                return entityValue;
+    /**
+     * Values of an entity with ETag of its version
+     */
+    private static final class EntityVersion {
+
+        final EntityMapper mapper;
+        final EntityMapper.Values values;
+        final String eTag;
+
+        EntityVersion(EntityMapper mapper, EntityMapper.Values values, String eTag) {
+            this.mapper = mapper;
+            this.values = values;
+            this.eTag = eTag;
         }
-        //fallback to string as default
-        return entityValue;
     }
 
 }
@@ -0,0 +1,222 @@
+package io.sesam.odata.controller;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CompressionFilterTest {
+
+    private CompressionFilter filter;
+    private HttpServletResponse wrapped;
+
+    @Before
+    public void setUp() {
+        this.filter = new CompressionFilter();
+        this.filter.init(null);
+    }
+
+    @Test
+    public void negotiatesByQuality() {
+        assertEquals("gzip", CompressionFilter.negotiate("gzip, deflate"));
+        assertEquals("gzip", CompressionFilter.negotiate("deflate, x-gzip"));
+        assertEquals("deflate", CompressionFilter.negotiate("gzip;q=0.5, deflate"));
+        assertEquals("gzip", CompressionFilter.negotiate("*"));
+        assertEquals("deflate", CompressionFilter.negotiate("gzip;q=0, *"));
+        assertNull(CompressionFilter.negotiate("gzip;q=0"));
+        assertNull(CompressionFilter.negotiate("br, identity"));
+        assertNull(CompressionFilter.negotiate("*;q=0"));
+        assertNull(CompressionFilter.negotiate(null));
+    }
+
+    @Test
+    public void gzipRoundTrip() throws Exception {
+        byte[] body = body(100000);
+        FakeResponse response = run("gzip", out -> out.write(body));
+
+        assertEquals("gzip", response.headers.get("Content-Encoding"));
+        assertArrayEquals(body, read(new GZIPInputStream(new ByteArrayInputStream(response.body.toByteArray()))));
+    }
+
+    @Test
+    public void deflateRoundTrip() throws Exception {
+        byte[] body = body(100000);
+        FakeResponse response = run("deflate", out -> {
+            for (int i = 0; i < body.length; i += 1000) {
+                out.write(body, i, 1000);
+                out.flush();
+            }
+        });
+
+        assertEquals("deflate", response.headers.get("Content-Encoding"));
+        assertArrayEquals(body, read(new InflaterInputStream(new ByteArrayInputStream(response.body.toByteArray()))));
+    }
+
+    @Test
+    public void smallBodyIsSentAsIs() throws Exception {
+        byte[] body = body(100);
+        FakeResponse response = run("gzip", out -> out.write(body));
+
+        assertNull(response.headers.get("Content-Encoding"));
+        assertEquals(100L, response.contentLength);
+        assertArrayEquals(body, response.body.toByteArray());
+    }
+
+    @Test
+    public void resetBufferRestartsCompression() throws Exception {
+        byte[] body = body(5000);
+        FakeResponse response = run("gzip", out -> {
+            out.write(body(20000));
+            response().resetBuffer();
+            out.write(body);
+        });
+
+        assertEquals("gzip", response.headers.get("Content-Encoding"));
+        assertArrayEquals(body, read(new GZIPInputStream(new ByteArrayInputStream(response.body.toByteArray()))));
+    }
+
+    @Test
+    public void resetDecidesCompressionAgain() throws Exception {
+        byte[] body = body(100);
+        FakeResponse response = run("gzip", out -> {
+            out.write(body(20000));
+            response().reset();
+            out.write(body);
+        });
+
+        assertNull(response.headers.get("Content-Encoding"));
+        assertEquals("Accept-Encoding", response.headers.get("Vary"));
+        assertArrayEquals(body, response.body.toByteArray());
+    }
+
+    private HttpServletResponse response() {
+        return this.wrapped;
+    }
+
+    private FakeResponse run(String acceptEncoding, Body body) throws Exception {
+        FakeResponse response = new FakeResponse();
+        FilterChain chain = (request, wrapper) -> {
+            this.wrapped = (HttpServletResponse) wrapper;
+            body.write(wrapper.getOutputStream());
+        };
+        this.filter.doFilter(request(acceptEncoding), response.proxy(), chain);
+        return response;
+    }
+
+    private static HttpServletRequest request(String acceptEncoding) {
+        return (HttpServletRequest) Proxy.newProxyInstance(CompressionFilterTest.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getHeader":
+                            return "Accept-Encoding".equals(args[0]) ? acceptEncoding : null;
+                        case "getMethod":
+                            return "GET";
+                        case "isAsyncStarted":
+                            return false;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static byte[] body(int size) {
+        StringBuilder json = new StringBuilder(size);
+        for (int i = 0; json.length() < size; i++) {
+            json.append("{\"_id\":\"").append(i).append("\",\"name\":\"entity ").append(i * 31).append("\"},");
+        }
+        return json.substring(0, size).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n; (n = in.read(buffer)) > 0;) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private interface Body {
+
+        void write(ServletOutputStream out) throws IOException;
+    }
+
+    /**
+     * Container response keeping headers and body in memory
+     */
+    private static final class FakeResponse {
+
+        private final Map<String, String> headers = new HashMap<>();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private long contentLength = -1;
+        private final ServletOutputStream stream = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                FakeResponse.this.body.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        HttpServletResponse proxy() {
+            return (HttpServletResponse) Proxy.newProxyInstance(CompressionFilterTest.class.getClassLoader(),
+                    new Class<?>[]{HttpServletResponse.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "setHeader":
+                            case "addHeader":
+                                this.headers.put((String) args[0], (String) args[1]);
+                                return null;
+                            case "getHeader":
+                                return this.headers.get((String) args[0]);
+                            case "setContentLength":
+                                this.contentLength = (Integer) args[0];
+                                return null;
+                            case "setContentLengthLong":
+                                this.contentLength = (Long) args[0];
+                                return null;
+                            case "getStatus":
+                                return HttpServletResponse.SC_OK;
+                            case "getContentType":
+                                return "application/json";
+                            case "getOutputStream":
+                                return this.stream;
+                            case "resetBuffer":
+                                this.body.reset();
+                                return null;
+                            case "reset":
+                                this.body.reset();
+                                this.headers.clear();
+                                this.contentLength = -1;
+                                return null;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+    }
+}
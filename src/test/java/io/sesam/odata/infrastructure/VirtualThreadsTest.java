@@ -0,0 +1,56 @@
+package io.sesam.odata.infrastructure;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class VirtualThreadsTest {
+
+    @Test
+    public void runsTasksOnVirtualThreadsOnJdk21() throws Exception {
+        assumeTrue(VirtualThreads.isEnabled() && featureVersion() >= 21);
+
+        ExecutorService executor = VirtualThreads.newPerTaskExecutor("test-");
+        assertNotNull(executor);
+        try {
+            Thread thread = executor.submit(Thread::currentThread).get(10, TimeUnit.SECONDS);
+            assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(thread));
+            assertTrue(thread.getName().startsWith("test-"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void fallsBackToPlatformThreadsBeforeJdk21() {
+        assumeTrue(featureVersion() < 21);
+
+        assertNull(VirtualThreads.newPerTaskExecutor("test-"));
+    }
+
+    @Test
+    public void executorsUseVirtualThreadsWhenAvailable() {
+        assumeTrue(VirtualThreads.isEnabled() && featureVersion() >= 21);
+
+        BatchExecutor batchExecutor = new BatchExecutor();
+        RequestExecutor requestExecutor = new RequestExecutor();
+        try {
+            assertEquals(Boolean.TRUE, batchExecutor.getStats().get("virtualThreads"));
+            assertEquals(Boolean.TRUE, requestExecutor.getStats().get("virtualThreads"));
+        } finally {
+            batchExecutor.stop();
+            requestExecutor.stop();
+        }
+    }
+
+    private static int featureVersion() {
+        String version = System.getProperty("java.specification.version");
+        return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+    }
+}
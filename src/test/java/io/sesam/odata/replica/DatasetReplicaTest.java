@@ -0,0 +1,76 @@
+package io.sesam.odata.replica;
+
+import io.sesam.odata.edm.EntityMapper;
+import io.sesam.odata.infrastructure.models.PipeMetadata;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DatasetReplicaTest {
+
+    private final EntityMapper mapper = new EntityMapper(Arrays.asList(property("name", "string")));
+
+    @Test
+    public void dropsStoreWhenLastLeaseIsClosed() {
+        HeapEntityStore store = new HeapEntityStore();
+        store.put(entity("a", 1));
+        DatasetReplica replica = new DatasetReplica("people", this.mapper, store, Collections.emptyList());
+        DatasetReplica.Lease first = replica.acquire();
+        DatasetReplica.Lease second = replica.acquire();
+
+        assertTrue(replica.drop());
+        assertNull(replica.acquire());
+        first.close();
+        first.close();
+        assertEquals(1, store.size());
+        second.close();
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void dropsIdleStoreImmediately() {
+        HeapEntityStore store = new HeapEntityStore();
+        store.put(entity("a", 1));
+        DatasetReplica replica = new DatasetReplica("people", this.mapper, store, Collections.emptyList());
+        DatasetReplica.Lease lease = replica.acquire();
+        assertNotNull(lease);
+        lease.close();
+
+        assertTrue(replica.drop());
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void heapIteratorDoesNotSeeEntityUpdatedDuringIteration() {
+        HeapEntityStore store = new HeapEntityStore();
+        store.put(entity("a", 1));
+        store.put(entity("b", 2));
+        Iterator<ReplicatedEntity> entities = store.after(-1);
+
+        assertEquals("a", entities.next().getId());
+        store.put(entity("a", 3));
+        assertEquals("b", entities.next().getId());
+        assertFalse(entities.hasNext());
+        assertFalse(store.after(3).hasNext());
+    }
+
+    private ReplicatedEntity entity(String id, long sequence) {
+        EntityMapper.Values values = this.mapper.newValues();
+        values.set(0, id);
+        return new ReplicatedEntity(id, sequence, values);
+    }
+
+    private static PipeMetadata property(String name, String type) {
+        PipeMetadata property = new PipeMetadata();
+        property.setName(name);
+        property.setType(type);
+        return property;
+    }
+}
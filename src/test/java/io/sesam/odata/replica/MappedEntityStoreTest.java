@@ -0,0 +1,191 @@
+package io.sesam.odata.replica;
+
+import io.sesam.odata.edm.EntityMapper;
+import io.sesam.odata.infrastructure.models.PipeMetadata;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedEntityStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final EntityMapper mapper = new EntityMapper(Arrays.asList(property("name", "string"),
+            property("age", "integer")));
+
+    @Test
+    public void reopensCommittedStore() throws Exception {
+        Path dir = this.folder.getRoot().toPath().resolve("store");
+        MappedEntityStore store = new MappedEntityStore(dir, this.mapper);
+        store.put(entity("a", 1, "Ann", 30L));
+        store.put(entity("b", 2, null, null));
+        store.put(new ReplicatedEntity("c", 3, this.mapper.newValues()));
+        store.close();
+
+        store = new MappedEntityStore(dir, this.mapper);
+        try {
+            assertEquals(3, store.size());
+            assertEquals(3, store.getSequence());
+            ReplicatedEntity a = store.get("a");
+            assertEquals("Ann", a.getValues().get(0));
+            assertEquals(30L, a.getValues().get(1));
+            ReplicatedEntity b = store.get("b");
+            assertTrue(b.getValues().isPresent(0));
+            assertNull(b.getValues().get(0));
+            assertTrue(b.getValues().isPresent(1));
+            assertNull(b.getValues().get(1));
+            ReplicatedEntity c = store.get("c");
+            assertFalse(c.getValues().isPresent(0));
+            assertFalse(c.getValues().isPresent(1));
+            assertEquals(Arrays.asList("a", "b", "c"), ids(store.after(-1)));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void discardsStoreNotCommittedAfterChange() throws Exception {
+        Path dir = this.folder.getRoot().toPath().resolve("store");
+        MappedEntityStore store = new MappedEntityStore(dir, this.mapper);
+        store.put(entity("a", 1, "Ann", 30L));
+        store.commit();
+        store.put(entity("b", 2, "Bob", 40L));
+
+        MappedEntityStore reopened = new MappedEntityStore(dir, this.mapper);
+        try {
+            assertEquals(0, reopened.size());
+            assertEquals(-1, reopened.getSequence());
+            assertNull(reopened.get("a"));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void updateReplacesPreviousVersion() throws Exception {
+        MappedEntityStore store = new MappedEntityStore(this.folder.getRoot().toPath(), this.mapper);
+        try {
+            store.put(entity("a", 1, "Ann", 30L));
+            store.put(entity("b", 2, "Bob", 40L));
+            store.put(entity("a", 3, "Anna", 31L));
+
+            assertEquals(2, store.size());
+            assertEquals("Anna", store.get("a").getValues().get(0));
+            assertEquals(3, store.get("a").getSequence());
+            assertEquals(Arrays.asList("b", "a"), ids(store.after(-1)));
+            assertEquals(Arrays.asList("a"), ids(store.after(2)));
+
+            store.remove("b", 4);
+            assertNull(store.get("b"));
+            assertEquals(1, store.size());
+            store.put(entity("b", 5, "Bob", 41L));
+            assertEquals(2, store.size());
+            assertEquals(41L, store.get("b").getValues().get(1));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void growsBeyondFirstSegmentsAndIndexCapacity() throws Exception {
+        Path dir = this.folder.getRoot().toPath().resolve("store");
+        int count = 100000;
+        MappedEntityStore store = new MappedEntityStore(dir, this.mapper);
+        for (int i = 0; i < count; i++) {
+            store.put(entity("entity-" + i, i, "name " + (i % 5000), (long) i));
+        }
+        store.close();
+
+        store = new MappedEntityStore(dir, this.mapper);
+        try {
+            assertEquals(count, store.size());
+            for (int i = 0; i < count; i += 997) {
+                ReplicatedEntity entity = store.get("entity-" + i);
+                assertEquals("name " + (i % 5000), entity.getValues().get(0));
+                assertEquals((long) i, entity.getValues().get(1));
+            }
+            assertEquals(count, ids(store.after(-1)).size());
+            assertNull(store.get("entity-" + count));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void compactsDeadRows() throws Exception {
+        Path dir = this.folder.getRoot().toPath().resolve("store");
+        int count = 1000;
+        int versions = 100;
+        MappedEntityStore store = new MappedEntityStore(dir, this.mapper);
+        long sequence = 0;
+        for (int version = 0; version < versions; version++) {
+            for (int i = 0; i < count; i++) {
+                store.put(entity("entity-" + i, sequence++, "version " + version, (long) i));
+            }
+        }
+        Iterator<ReplicatedEntity> beforeCompaction = store.after(-1);
+        store.commit();
+
+        assertEquals(Arrays.asList("gen-1", "store.properties"), files(dir));
+        assertEquals(count, ids(beforeCompaction).size());
+        assertEquals(count, store.size());
+        assertEquals("version " + (versions - 1), store.get("entity-7").getValues().get(0));
+        List<String> expected = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            expected.add("entity-" + i);
+        }
+        assertEquals(expected, ids(store.after(-1)));
+        store.put(entity("entity-0", sequence, "again", 0L));
+        store.close();
+
+        store = new MappedEntityStore(dir, this.mapper);
+        try {
+            assertEquals(count, store.size());
+            assertEquals(sequence, store.getSequence());
+            assertEquals("again", store.get("entity-0").getValues().get(0));
+            assertEquals(Arrays.asList("entity-0"), ids(store.after(sequence - 1)));
+        } finally {
+            store.close();
+        }
+    }
+
+    private ReplicatedEntity entity(String id, long sequence, String name, Long age) {
+        EntityMapper.Values values = this.mapper.newValues();
+        values.set(0, name);
+        values.set(1, age);
+        return new ReplicatedEntity(id, sequence, values);
+    }
+
+    private static List<String> ids(Iterator<ReplicatedEntity> entities) {
+        List<String> ids = new ArrayList<>();
+        entities.forEachRemaining((entity) -> ids.add(entity.getId()));
+        return ids;
+    }
+
+    private static List<String> files(Path dir) throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map((file) -> file.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static PipeMetadata property(String name, String type) {
+        PipeMetadata property = new PipeMetadata();
+        property.setName(name);
+        property.setType(type);
+        return property;
+    }
+}
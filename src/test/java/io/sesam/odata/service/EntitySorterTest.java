@@ -0,0 +1,116 @@
+package io.sesam.odata.service;
+
+import io.sesam.odata.edm.EdmSchema;
+import io.sesam.odata.edm.EntityMapper;
+import io.sesam.odata.edm.SesamEdmProvider;
+import io.sesam.odata.infrastructure.models.PipeMetadata;
+import io.sesam.odata.replica.ReplicatedEntity;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.olingo.server.api.OData;
+import org.apache.olingo.server.api.uri.UriInfo;
+import org.apache.olingo.server.core.uri.parser.Parser;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class EntitySorterTest {
+
+    private static final int COUNT = 5000;
+
+    private static Parser parser;
+    private static EntityMapper mapper;
+    private static List<ReplicatedEntity> entities;
+
+    @BeforeClass
+    public static void setUp() {
+        Map<String, List<PipeMetadata>> types = Collections.singletonMap("Person", Arrays.asList(
+                property("name", "string"), property("age", "integer")));
+        EdmSchema schema = SesamEdmProvider.replaceSchema(types, Collections.emptyMap());
+        OData odata = OData.newInstance();
+        parser = new Parser(odata.createServiceMetadata(new SesamEdmProvider(schema), Collections.emptyList())
+                .getEdm(), odata);
+        mapper = schema.getEntityMapper("Person");
+        Random random = new Random(42);
+        entities = new ArrayList<>(COUNT);
+        for (int i = 0; i < COUNT; i++) {
+            EntityMapper.Values values = mapper.newValues();
+            int age = random.nextInt(60);
+            if (age < 50) {
+                values.set(1, (long) age);
+            } else if (age < 55) {
+                values.set(1, null);
+            }
+            if (random.nextInt(20) > 0) {
+                values.set(0, "name " + random.nextInt(100));
+            }
+            entities.add(new ReplicatedEntity("entity-" + i, i, values));
+        }
+    }
+
+    @Test
+    public void heapAndExternalSortReturnSameWindows() throws Exception {
+        UriInfo uriInfo = parse("$orderby=age%20desc,name");
+        EntitySorter heap = new EntitySorter(uriInfo.getOrderByOption(), mapper, null, Long.MAX_VALUE, 1000);
+        EntitySorter external = new EntitySorter(uriInfo.getOrderByOption(), mapper, null, 0, 97);
+        Comparator<ReplicatedEntity> expected = Comparator
+                .comparing((ReplicatedEntity entity) -> (Long) entity.getValues().get(1),
+                        Comparator.nullsFirst(Comparator.<Long>naturalOrder()).reversed())
+                .thenComparing((entity) -> (String) entity.getValues().get(0),
+                        Comparator.nullsFirst(Comparator.<String>naturalOrder()))
+                .thenComparingLong(ReplicatedEntity::getSequence);
+
+        for (long[] window : new long[][]{{0, 0}, {0, 10}, {37, 137}, {4900, 5100}, {0, COUNT}}) {
+            List<String> sorted = ids(entities.stream().sorted(expected), window);
+            assertEquals(sorted, ids(heap.window(entities.iterator(), null, window[0], window[1])));
+            assertEquals(sorted, ids(external.window(entities.iterator(), null, window[0], window[1])));
+        }
+    }
+
+    @Test
+    public void sortsOnlyFilteredEntities() throws Exception {
+        UriInfo uriInfo = parse("$filter=age%20ge%2040&$orderby=name%20desc");
+        Predicate<EntityMapper.Values> filter = FilterCompiler.compile(uriInfo.getFilterOption(), mapper);
+        EntitySorter heap = new EntitySorter(uriInfo.getOrderByOption(), mapper, null, Long.MAX_VALUE, 1000);
+        EntitySorter external = new EntitySorter(uriInfo.getOrderByOption(), mapper, null, 0, 50);
+        Comparator<ReplicatedEntity> expected = Comparator
+                .comparing((ReplicatedEntity entity) -> (String) entity.getValues().get(0),
+                        Comparator.nullsFirst(Comparator.<String>naturalOrder()).reversed())
+                .thenComparingLong(ReplicatedEntity::getSequence);
+
+        List<String> sorted = ids(entities.stream().filter((entity) -> filter.test(entity.getValues()))
+                .sorted(expected), new long[]{10, 200});
+        assertEquals(190, sorted.size());
+        assertEquals(sorted, ids(heap.window(entities.iterator(), filter, 10, 200)));
+        assertEquals(sorted, ids(external.window(entities.iterator(), filter, 10, 200)));
+    }
+
+    private static UriInfo parse(String query) throws Exception {
+        return parser.parseUri("Person" + SesamEdmProvider.SET_POSTFIX, query, null, "http://localhost/");
+    }
+
+    private static List<String> ids(Stream<ReplicatedEntity> sorted, long[] window) {
+        return sorted.skip(window[0]).limit(window[1] - window[0]).map(ReplicatedEntity::getId)
+                .collect(Collectors.toList());
+    }
+
+    private static List<String> ids(List<ReplicatedEntity> window) {
+        return window.stream().map(ReplicatedEntity::getId).collect(Collectors.toList());
+    }
+
+    private static PipeMetadata property(String name, String type) {
+        PipeMetadata property = new PipeMetadata();
+        property.setName(name);
+        property.setType(type);
+        return property;
+    }
+}
@@ -0,0 +1,201 @@
+package io.sesam.odata.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.sesam.odata.edm.EdmSchema;
+import io.sesam.odata.edm.EntityMapper;
+import io.sesam.odata.edm.SesamEdmProvider;
+import io.sesam.odata.infrastructure.models.PipeMetadata;
+import io.sesam.odata.replica.ReplicatedEntity;
+import io.sesam.odata.replica.SecondaryIndexes;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import org.apache.olingo.commons.api.http.HttpStatusCode;
+import org.apache.olingo.server.api.OData;
+import org.apache.olingo.server.api.ODataApplicationException;
+import org.apache.olingo.server.api.uri.UriInfo;
+import org.apache.olingo.server.core.uri.parser.Parser;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FilterCompilerTest {
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private static Parser parser;
+    private static EntityMapper mapper;
+
+    @BeforeClass
+    public static void setUpSchema() {
+        Map<String, List<PipeMetadata>> types = Collections.singletonMap("Person", Arrays.asList(
+                property("name", "string"), property("age", "integer"), property("born", "datetime")));
+        EdmSchema schema = SesamEdmProvider.replaceSchema(types, Collections.emptyMap());
+        OData odata = OData.newInstance();
+        parser = new Parser(odata.createServiceMetadata(new SesamEdmProvider(schema), Collections.emptyList())
+                .getEdm(), odata);
+        mapper = schema.getEntityMapper("Person");
+    }
+
+    @Test
+    public void comparisonsWithNullAreFalse() throws Exception {
+        EntityMapper.Values missing = values("{}");
+        EntityMapper.Values nulls = values("{\"name\": null, \"age\": null}");
+        for (String filter : Arrays.asList("age gt 30", "age ge 30", "age lt 30", "age le 30", "age eq 30",
+                "name eq 'Ann'", "startswith(name,'A')", "length(name) lt 10", "age add 1 lt 100")) {
+            Predicate<EntityMapper.Values> predicate = compile(filter).predicate;
+            assertFalse(filter, predicate.test(missing));
+            assertFalse(filter, predicate.test(nulls));
+        }
+        assertTrue(compile("age eq null").predicate.test(missing));
+        assertTrue(compile("age eq null").predicate.test(nulls));
+        assertFalse(compile("age ne null").predicate.test(nulls));
+        assertTrue(compile("age ne 30").predicate.test(nulls));
+        assertFalse(compile("age eq null").predicate.test(values("{\"age\": 30}")));
+        assertFalse(compile("age gt null").predicate.test(values("{\"age\": 30}")));
+    }
+
+    @Test
+    public void comparesByPropertyKind() throws Exception {
+        EntityMapper.Values ann = values("{\"name\": \"Ann\", \"age\": 30, \"born\": \"~t1990-05-01T10:00:00Z\"}");
+
+        assertTrue(compile("age gt 29 and age lt 31").predicate.test(ann));
+        assertTrue(compile("age eq 30.0").predicate.test(ann));
+        assertTrue(compile("age mul 2 eq 60").predicate.test(ann));
+        assertTrue(compile("born gt 1990-01-01T00:00:00Z").predicate.test(ann));
+        assertFalse(compile("born lt 1990-05-01T10:00:00Z").predicate.test(ann));
+        assertTrue(compile("tolower(name) eq 'ann' and not contains(name,'x')").predicate.test(ann));
+        assertFalse(compile("name gt 'B'").predicate.test(ann));
+    }
+
+    @Test
+    public void comparesConditionsWithBooleans() throws Exception {
+        EntityMapper.Values ann = values("{\"name\": \"Ann\", \"age\": 30}");
+
+        assertTrue(compile("contains(name,'n') eq true").predicate.test(ann));
+        assertFalse(compile("contains(name,'x') eq true").predicate.test(ann));
+        assertTrue(compile("(age eq 1) eq false").predicate.test(ann));
+        assertFalse(compile("(age eq 30) ne true").predicate.test(ann));
+        assertTrue(compile("true eq startswith(name,'A')").predicate.test(ann));
+        assertTrue(compile("(age eq 30) eq (age gt 20)").predicate.test(ann));
+        assertFalse(compile("contains(name,'n') eq null").predicate.test(ann));
+        assertNull(compile("(age eq 30) eq true").members);
+        assertStatus(HttpStatusCode.BAD_REQUEST, "contains(name,'n') gt false");
+    }
+
+    @Test
+    public void rewritesEqualityChainIntoMembership() throws Exception {
+        FilterCompiler.Operand names = compile("name eq 'a' or name eq 'b' or 'c' eq name");
+        assertEquals(mapper.slotOf("name"), names.slot);
+        assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), names.members);
+        assertTrue(names.predicate.test(values("{\"name\": \"c\"}")));
+        assertFalse(names.predicate.test(values("{\"name\": \"d\"}")));
+        assertFalse(names.predicate.test(values("{}")));
+
+        FilterCompiler.Operand ages = compile("age eq 1 or age eq 2.0");
+        assertEquals(new HashSet<>(Arrays.asList(1L, 2L)), ages.members);
+        assertTrue(ages.predicate.test(values("{\"age\": 2}")));
+        assertFalse(ages.predicate.test(values("{\"age\": 3}")));
+
+        FilterCompiler.Operand mixed = compile("name eq 'a' or age eq 1");
+        assertNull(mixed.members);
+        assertTrue(mixed.predicate.test(values("{\"age\": 1}")));
+        assertNull(compile("age eq null or age eq 1").members);
+    }
+
+    @Test
+    public void findsCandidatesInIndexes() throws Exception {
+        SecondaryIndexes indexes = indexes(
+                entity("a", "{\"name\": \"Ann\", \"age\": 30}"),
+                entity("b", "{\"name\": \"Bob\", \"age\": 40}"),
+                entity("c", "{\"name\": \"Cid\", \"age\": 50}"),
+                entity("d", "{\"name\": \"Ann\"}"));
+
+        assertEquals(ids("a", "d"), compile("name eq 'Ann'").candidates.find(indexes));
+        assertEquals(ids("a", "b", "d"), compile("name eq 'Ann' or name eq 'Bob'").candidates.find(indexes));
+        assertEquals(ids("b", "c"), compile("age gt 30").candidates.find(indexes));
+        assertEquals(ids("a", "b"), compile("45 gt age").candidates.find(indexes));
+        assertEquals(ids("b"), compile("age ge 40 and age le 40").candidates.find(indexes));
+        assertEquals(ids("a"), compile("name eq 'Ann' and age lt 35").candidates.find(indexes));
+        assertEquals(ids("a", "c", "d"), compile("name eq 'Ann' and contains(name,'n') or age eq 50")
+                .candidates.find(indexes));
+        assertNull(compile("name eq 'Ann' or contains(name,'o')").candidates);
+        assertNull(compile("age gt 30.5").candidates);
+        //non integral number can't equal an integer property, index is keyed by longs
+        FilterCompiler.Operand fraction = compile("age eq 1.5");
+        assertNull(fraction.members);
+        assertNull(fraction.candidates);
+        assertFalse(fraction.predicate.test(values("{\"age\": 1}")));
+        assertNull(compile("age eq 1.5 or age eq 30").candidates);
+        //range on hash indexed property can't be answered by the index
+        assertNull(compile("name gt 'B'").candidates.find(indexes));
+    }
+
+    @Test
+    public void rejectsUnsupportedFilters() throws Exception {
+        assertStatus(HttpStatusCode.NOT_IMPLEMENTED, "substring(name,1) eq 'nn'");
+        assertStatus(HttpStatusCode.NOT_IMPLEMENTED, "year(born) eq 1990");
+    }
+
+    private static FilterCompiler.Operand compile(String filter) throws Exception {
+        UriInfo uriInfo = parser.parseUri("Person" + SesamEdmProvider.SET_POSTFIX,
+                "$filter=" + filter.replace(" ", "%20"), null, "http://localhost/");
+        return FilterCompiler.compileOperand(uriInfo.getFilterOption(), mapper);
+    }
+
+    private static void assertStatus(HttpStatusCode status, String filter) throws Exception {
+        try {
+            compile(filter);
+            fail(filter);
+        } catch (ODataApplicationException ex) {
+            assertEquals(filter, status.getStatusCode(), ex.getStatusCode());
+        }
+    }
+
+    private static EntityMapper.Values values(String json) throws Exception {
+        return mapper.read(JSON.readTree(json));
+    }
+
+    private static ReplicatedEntity entity(String id, String json) throws Exception {
+        return new ReplicatedEntity(id, 0, values(json));
+    }
+
+    private static Set<String> ids(String... ids) {
+        return new HashSet<>(Arrays.asList(ids));
+    }
+
+    /**
+     * Indexes are built by replication only, so they are created the same way here
+     */
+    private static SecondaryIndexes indexes(ReplicatedEntity... entities) throws Exception {
+        Constructor<SecondaryIndexes> constructor = SecondaryIndexes.class.getDeclaredConstructor(EntityMapper.class,
+                List.class);
+        constructor.setAccessible(true);
+        SecondaryIndexes indexes = constructor.newInstance(mapper,
+                Arrays.asList(mapper.slotOf("name"), mapper.slotOf("age")));
+        Method add = SecondaryIndexes.class.getDeclaredMethod("add", ReplicatedEntity.class);
+        add.setAccessible(true);
+        for (ReplicatedEntity entity : entities) {
+            add.invoke(indexes, entity);
+        }
+        return indexes;
+    }
+
+    private static PipeMetadata property(String name, String type) {
+        PipeMetadata property = new PipeMetadata();
+        property.setName(name);
+        property.setType(type);
+        return property;
+    }
+}
@@ -0,0 +1,44 @@
+package io.sesam.odata.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class OffsetIndexTest {
+
+    private final OffsetIndex index = new OffsetIndex();
+
+    @Test
+    public void findsNearestRecordedPosition() {
+        OffsetIndex.Recorder recorder = this.index.recorder("Person", 10);
+        for (long offset = 0; offset < 3500; offset++) {
+            recorder.record(offset, offset * 2);
+        }
+
+        OffsetIndex.Position position = this.index.floor("Person", 10, 2999);
+        assertEquals(2000, position.offset);
+        assertEquals(4000, position.since);
+        assertEquals(3000, this.index.floor("Person", 10, 3000).offset);
+        assertNull(this.index.floor("Person", 10, 999));
+        //recorded for another replica sequence
+        assertNull(this.index.floor("Person", 11, 2999));
+    }
+
+    @Test
+    public void dropsPositionsWhenScanFindsOtherSequence() {
+        OffsetIndex.Recorder first = this.index.recorder("Person", -1);
+        first.record(1000, 1000);
+        first.record(2000, 2000);
+        first.record(3000, 3000);
+
+        //entity before offset 2000 was updated and moved to the end of the dataset
+        OffsetIndex.Recorder second = this.index.recorder("Person", -1);
+        second.record(1000, 1000);
+        second.record(2000, 2001);
+
+        assertEquals(2001, this.index.floor("Person", -1, 2500).since);
+        assertEquals(2000, this.index.floor("Person", -1, 3500).offset);
+        assertNull(this.index.floor("Person", -1, 1500));
+    }
+}
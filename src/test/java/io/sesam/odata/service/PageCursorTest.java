@@ -0,0 +1,113 @@
+package io.sesam.odata.service;
+
+import io.sesam.odata.edm.EdmSchema;
+import io.sesam.odata.edm.SesamEdmProvider;
+import io.sesam.odata.infrastructure.models.PipeMetadata;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.apache.olingo.commons.api.http.HttpStatusCode;
+import org.apache.olingo.server.api.OData;
+import org.apache.olingo.server.api.ODataApplicationException;
+import org.apache.olingo.server.core.uri.parser.Parser;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+public class PageCursorTest {
+
+    private static final String SET = "Person" + SesamEdmProvider.SET_POSTFIX;
+
+    private static Parser parser;
+
+    @BeforeClass
+    public static void setUpSchema() {
+        Map<String, List<PipeMetadata>> types = Collections.singletonMap("Person", Arrays.asList(
+                property("name", "string"), property("age", "integer")));
+        EdmSchema schema = SesamEdmProvider.replaceSchema(types, Collections.emptyMap());
+        OData odata = OData.newInstance();
+        parser = new Parser(odata.createServiceMetadata(new SesamEdmProvider(schema), Collections.emptyList())
+                .getEdm(), odata);
+    }
+
+    @Test
+    public void decodesEncodedCursor() throws Exception {
+        String token = new PageCursor(123456789L, 2000, 77, 42).encode();
+
+        PageCursor cursor = PageCursor.decode(token, 42);
+        assertEquals(123456789L, cursor.since);
+        assertEquals(2000, cursor.offset);
+        assertEquals(77, cursor.version);
+        assertEquals(42, cursor.queryHash);
+        assertEquals(token, token.replaceAll("[^A-Za-z0-9_-]", ""));
+    }
+
+    @Test
+    public void acceptsPlainSequence() throws Exception {
+        PageCursor cursor = PageCursor.decode("98765", 7);
+        assertEquals(98765, cursor.since);
+        assertEquals(-1, cursor.offset);
+        assertEquals(-1, cursor.version);
+    }
+
+    @Test
+    public void rejectsTamperedTokens() throws Exception {
+        byte[] bytes = Base64.getUrlDecoder().decode(new PageCursor(100, 10, -1, 42).encode());
+        assertRejected(new PageCursor(100, 10, -1, 43).encode(), 42);
+        assertRejected("", 42);
+        assertRejected("not a token", 42);
+        assertRejected(encode(Arrays.copyOf(bytes, bytes.length - 1)), 42);
+        assertRejected(encode(Arrays.copyOf(bytes, bytes.length + 1)), 42);
+        byte[] version = bytes.clone();
+        version[0] = 1;
+        assertRejected(encode(version), 42);
+        byte[] signature = bytes.clone();
+        signature[signature.length - 1] ^= 1;
+        assertRejected(encode(signature), 42);
+        //offset changed, query hash left as it was
+        byte[] offset = bytes.clone();
+        offset[16] ^= 1;
+        assertRejected(encode(offset), 42);
+    }
+
+    @Test
+    public void hashesResultDefiningOptionsOnly() throws Exception {
+        int hash = queryHash("$filter=age%20gt%201&$orderby=name&$select=name");
+
+        assertEquals(hash, queryHash("$filter=age%20gt%201&$orderby=name&$select=name&$top=5&$skip=10"));
+        assertEquals(hash, queryHash("$filter=age%20gt%201&$orderby=name&$select=name&$count=true"));
+        assertNotEquals(hash, queryHash("$filter=age%20gt%202&$orderby=name&$select=name"));
+        assertNotEquals(hash, queryHash("$filter=age%20gt%201&$orderby=age&$select=name"));
+        assertNotEquals(hash, queryHash("$filter=age%20gt%201&$orderby=name&$select=age"));
+        assertNotEquals(hash, queryHash("$filter=age%20gt%201&$orderby=name"));
+    }
+
+    private static int queryHash(String query) throws Exception {
+        return PageCursor.queryHash(SET, parser.parseUri(SET, query, null, "http://localhost/"));
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static void assertRejected(String token, int queryHash) {
+        try {
+            PageCursor.decode(token, queryHash);
+            fail(token);
+        } catch (ODataApplicationException ex) {
+            assertEquals(token, HttpStatusCode.BAD_REQUEST.getStatusCode(), ex.getStatusCode());
+        }
+    }
+
+    private static PipeMetadata property(String name, String type) {
+        PipeMetadata property = new PipeMetadata();
+        property.setName(name);
+        property.setType(type);
+        return property;
+    }
+}